@@ -0,0 +1,44 @@
+package my.cute.markov2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+
+/*
+ * temp directory handling shared by the benchmarks. every trial gets its own
+ * directory so databases from different parameter combinations never see each
+ * other's shard files
+ */
+public final class BenchmarkFiles {
+
+	private BenchmarkFiles() {}
+
+	public static Path createTempDirectory(String prefix) throws IOException {
+		return Files.createTempDirectory("markov2-bench-" + prefix + "-");
+	}
+
+	public static void delete(Path directory) throws IOException {
+		if(directory != null) {
+			FileUtils.deleteDirectory(directory.toFile());
+		}
+	}
+
+	/*
+	 * total size on disk of all files under the given directory
+	 */
+	public static long sizeOf(Path directory) {
+		File file = directory.toFile();
+		return file.exists() ? FileUtils.sizeOfDirectory(file) : 0L;
+	}
+
+	/*
+	 * number of regular files under the given directory
+	 */
+	public static long countFiles(Path directory) {
+		File file = directory.toFile();
+		return file.exists() ? FileUtils.listFiles(file, null, true).size() : 0L;
+	}
+}
@@ -0,0 +1,30 @@
+package my.cute.markov2.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * main class of benchmarks.jar
+ * accepts the usual jmh command line (benchmark regex, -p param=value, -f, -wi, etc)
+ * but always attaches the gc profiler, so every result comes with bytes allocated
+ * per operation (gc.alloc.rate.norm) next to the throughput/time numbers
+ * eg: java -jar markov2-bench/target/benchmarks.jar MarkovDatabaseBenchmark -p shardCacheSize=64
+ */
+public final class BenchmarkRunner {
+
+	private BenchmarkRunner() {}
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		Options options = new OptionsBuilder()
+				.parent(commandLine)
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,124 @@
+package my.cute.markov2.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/*
+ * seeded generator for synthetic chat lines
+ * word frequencies follow a zipf distribution (a handful of words like "the", "lol"
+ * are used constantly and there's a very long tail of words that are used once or
+ * twice), which is roughly what real chat logs look like and is what decides how
+ * followingwordsets and shards end up being shaped in the database
+ * line lengths are geometric-ish with a floor of 1 word, so most lines are short
+ * and the occasional one is long, again like chat
+ * same seed + same parameters always produces the same corpus, so benchmark
+ * runs are comparable to each other
+ */
+public final class ChatCorpus {
+
+	/*
+	 * characters used to build synthetic words. weighted towards letters
+	 * but includes digits/punctuation/non-ascii so every kind of shard key
+	 * (letters, 0, !, @) shows up
+	 */
+	private static final String LETTERS = "abcdefghijklmnopqrstuvwxyz";
+	private static final String OTHER = "0123456789.,!?:;'\"()-éü";
+
+	private final SplittableRandom random;
+	private final String[] vocabulary;
+	/*
+	 * cumulative zipf weights over the vocabulary, used to pick words by
+	 * binary search. cumulative[i] is the probability of picking a word
+	 * with rank <= i
+	 */
+	private final double[] cumulative;
+	private final int meanLineLength;
+	private final int maxLineLength;
+
+	/*
+	 * seed: seed for all randomness in this corpus
+	 * vocabularySize: number of distinct words that can appear
+	 * exponent: zipf exponent. ~1.0 is typical for natural language, higher
+	 * values concentrate use on fewer words
+	 * meanLineLength: average number of words per line
+	 */
+	public ChatCorpus(long seed, int vocabularySize, double exponent, int meanLineLength) {
+		if(vocabularySize <= 0) throw new IllegalArgumentException("vocabularySize must be positive");
+		if(meanLineLength <= 0) throw new IllegalArgumentException("meanLineLength must be positive");
+		this.random = new SplittableRandom(seed);
+		this.meanLineLength = meanLineLength;
+		this.maxLineLength = meanLineLength * 8;
+		this.vocabulary = new String[vocabularySize];
+		SplittableRandom wordRandom = new SplittableRandom(seed ^ 0x5DEECE66DL);
+		for(int i=0; i < vocabularySize; i++) {
+			this.vocabulary[i] = buildWord(wordRandom, i);
+		}
+		this.cumulative = new double[vocabularySize];
+		double total = 0;
+		for(int i=0; i < vocabularySize; i++) {
+			total += 1.0 / Math.pow(i + 1, exponent);
+			this.cumulative[i] = total;
+		}
+		for(int i=0; i < vocabularySize; i++) {
+			this.cumulative[i] /= total;
+		}
+	}
+
+	/*
+	 * typical chat-like defaults: 50k word vocabulary, zipf exponent 1.0, 8 words per line
+	 */
+	public ChatCorpus(long seed) {
+		this(seed, 50000, 1.0, 8);
+	}
+
+	/*
+	 * builds a word for the given rank. frequent words are short, rare words
+	 * are longer, and the rank is mixed in so every word is distinct
+	 */
+	private static String buildWord(SplittableRandom random, int rank) {
+		int length = 1 + Math.min(10, (int) (Math.log(rank + 2) / Math.log(3))) + random.nextInt(3);
+		StringBuilder sb = new StringBuilder(length + 6);
+		for(int i=0; i < length; i++) {
+			if(random.nextInt(10) == 0) {
+				sb.append(OTHER.charAt(random.nextInt(OTHER.length())));
+			} else {
+				sb.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+			}
+		}
+		sb.append(Integer.toString(rank, 36));
+		return sb.toString();
+	}
+
+	public String nextWord() {
+		int index = Arrays.binarySearch(this.cumulative, this.random.nextDouble());
+		//binarySearch returns (-(insertion point) - 1) when there's no exact match
+		if(index < 0) index = -index - 1;
+		return this.vocabulary[Math.min(index, this.vocabulary.length - 1)];
+	}
+
+	public List<String> nextLine() {
+		//geometric distribution with the given mean, floored at 1 word
+		double p = 1.0 / this.meanLineLength;
+		int length = 1 + (int) (Math.log(1 - this.random.nextDouble()) / Math.log(1 - p));
+		length = Math.min(length, this.maxLineLength);
+		List<String> line = new ArrayList<>(length);
+		for(int i=0; i < length; i++) {
+			line.add(this.nextWord());
+		}
+		return line;
+	}
+
+	public List<List<String>> nextLines(int count) {
+		List<List<String>> lines = new ArrayList<>(count);
+		for(int i=0; i < count; i++) {
+			lines.add(this.nextLine());
+		}
+		return lines;
+	}
+
+	public int getVocabularySize() {
+		return this.vocabulary.length;
+	}
+}
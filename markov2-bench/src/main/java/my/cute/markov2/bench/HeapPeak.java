@@ -0,0 +1,34 @@
+package my.cute.markov2.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+/*
+ * tracks peak heap use across an operation via the memory pool mxbeans
+ * note the result is the sum of each heap pool's own peak, and the pools don't
+ * necessarily peak at the same moment, so this is an upper bound on the real
+ * peak (close enough to compare runs against each other)
+ */
+public final class HeapPeak {
+
+	private HeapPeak() {}
+
+	public static void reset() {
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	public static double peakMegabytes() {
+		long bytes = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				bytes += pool.getPeakUsage().getUsed();
+			}
+		}
+		return bytes / 1e6;
+	}
+}
@@ -0,0 +1,214 @@
+package my.cute.markov2.bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import my.cute.markov2.MarkovDatabase;
+import my.cute.markov2.RandomSource;
+import my.cute.markov2.exceptions.FollowingWordRemovalException;
+import my.cute.markov2.impl.MarkovDatabaseBuilder;
+
+/*
+ * end-to-end benchmarks for the public MarkovDatabase api, run against a database
+ * pre-trained on a synthetic zipfian chat corpus (see ChatCorpus)
+ * every benchmark runs at each combination of shardCacheSize / fixedCleanupThreshold
+ * so cache tuning can be based on numbers instead of guesses
+ * run with the gc profiler (BenchmarkRunner does this by default, or pass -prof gc)
+ * to get bytes allocated per operation (gc.alloc.rate.norm) next to throughput
+ *
+ * fst needs the --add-opens flags on newer jdks, same as the surefire config in markov2
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {
+		"--add-opens=java.base/java.lang=ALL-UNNAMED",
+		"--add-opens=java.base/java.math=ALL-UNNAMED",
+		"--add-opens=java.base/java.util=ALL-UNNAMED",
+		"--add-opens=java.base/java.util.concurrent=ALL-UNNAMED",
+		"--add-opens=java.base/java.net=ALL-UNNAMED",
+		"--add-opens=java.base/java.text=ALL-UNNAMED"})
+public class MarkovDatabaseBenchmark {
+
+	private static final long CORPUS_SEED = 20191105L;
+	private static final long GENERATION_SEED = 20191106L;
+	private static final int BATCH_LINES = 1000;
+
+	/*
+	 * shared database, trained once per trial on trainingLines lines of the corpus
+	 */
+	@State(Scope.Benchmark)
+	public static class DatabaseState {
+
+		/*
+		 * -1 is unbounded (builder default)
+		 */
+		@Param({"-1", "64", "1024"})
+		public int shardCacheSize;
+
+		/*
+		 * 0 lets caffeine decide when to clean up (builder default)
+		 */
+		@Param({"0", "1000"})
+		public int fixedCleanupThreshold;
+
+		@Param({"50000"})
+		public int trainingLines;
+
+		MarkovDatabase database;
+		Path directory;
+		/*
+		 * lines that are known to have been processed into the database
+		 */
+		List<List<String>> processedLines;
+		/*
+		 * fresh lines from the same distribution for processLine()
+		 */
+		List<List<String>> newLines;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			this.directory = BenchmarkFiles.createTempDirectory("db");
+			this.database = new MarkovDatabaseBuilder("bench", this.directory.toString())
+					.shardCacheSize(this.shardCacheSize)
+					.fixedCleanupThreshold(this.fixedCleanupThreshold)
+					.build();
+			this.database.load();
+			ChatCorpus corpus = new ChatCorpus(CORPUS_SEED);
+			this.processedLines = corpus.nextLines(this.trainingLines);
+			for(List<String> line : this.processedLines) {
+				this.database.processLine(line);
+			}
+			this.newLines = corpus.nextLines(this.trainingLines);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			this.database.close();
+			BenchmarkFiles.delete(this.directory);
+		}
+	}
+
+	/*
+	 * per-thread position in the line lists so threads don't all hammer the same line
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int index = 0;
+
+		int next(int bound) {
+			int current = this.index;
+			this.index = (current + 1) % bound;
+			return current;
+		}
+	}
+
+	/*
+	 * per-thread seeded randomness for the generation benchmarks, so every run
+	 * generates the same lines (each fork is a fresh jvm, so the counter restarts)
+	 */
+	@State(Scope.Thread)
+	public static class Generation {
+		private static final AtomicInteger THREADS = new AtomicInteger();
+
+		RandomSource random;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			this.random = RandomSource.seeded(GENERATION_SEED + THREADS.getAndIncrement());
+		}
+	}
+
+	@Benchmark
+	public boolean processLine(DatabaseState state, Cursor cursor) throws IOException {
+		return state.database.processLine(state.newLines.get(cursor.next(state.newLines.size())));
+	}
+
+	/*
+	 * processLines() on consecutive slices of the new lines, reported per line so it
+	 * lines up with processLine()
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_LINES)
+	public int processLines(DatabaseState state, Cursor cursor) throws IOException {
+		int from = cursor.next(state.newLines.size() / BATCH_LINES) * BATCH_LINES;
+		return state.database.processLines(state.newLines.subList(from, from + BATCH_LINES));
+	}
+
+	@Benchmark
+	public String generateLine(DatabaseState state, Generation generation) throws IOException {
+		return state.database.generateLine(generation.random);
+	}
+
+	@Benchmark
+	public String generateLineWithStartingWord(DatabaseState state, Cursor cursor, Generation generation) throws IOException {
+		return state.database.generateLine(state.processedLines.get(cursor.next(state.processedLines.size())).get(0),
+				generation.random);
+	}
+
+	/*
+	 * time to first word with generateWords(), to compare against generateLine()
+	 */
+	@Benchmark
+	public String generateFirstWord(DatabaseState state, Generation generation) {
+		return state.database.generateWords(generation.random).next();
+	}
+
+	@Benchmark
+	public boolean contains(DatabaseState state, Cursor cursor) throws IOException {
+		return state.database.contains(state.processedLines.get(cursor.next(state.processedLines.size())));
+	}
+
+	/*
+	 * removeLine() is destructive - a line can only be removed as many times as it was
+	 * processed - so it's measured in fixed-size batches, and every removed line is
+	 * processed back in before the next iteration (outside of the measurement)
+	 */
+	@State(Scope.Benchmark)
+	public static class RemovalState {
+
+		static final int BATCH_SIZE = 5000;
+
+		private int removed = 0;
+
+		@Setup(Level.Iteration)
+		public void restore(DatabaseState state) throws IOException {
+			for(int i=0; i < this.removed; i++) {
+				state.database.processLine(state.processedLines.get(i));
+			}
+			this.removed = 0;
+		}
+
+		List<String> nextLine(DatabaseState state) {
+			return state.processedLines.get(this.removed++);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 3, batchSize = RemovalState.BATCH_SIZE)
+	@Measurement(iterations = 10, batchSize = RemovalState.BATCH_SIZE)
+	public boolean removeLine(DatabaseState state, RemovalState removal) throws IOException, FollowingWordRemovalException {
+		return state.database.removeLine(removal.nextLine(state));
+	}
+}
@@ -0,0 +1,391 @@
+package my.cute.markov2.impl;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import my.cute.markov2.MarkovDatabase;
+import my.cute.markov2.bench.BenchmarkFiles;
+import my.cute.markov2.bench.ChatCorpus;
+import my.cute.markov2.exceptions.FollowingWordRemovalException;
+
+/*
+ * multithreaded stress test + lost update detector
+ * runs concurrent processLine/generateLine/removeLine/save against a single database
+ * at increasing thread counts, reports throughput at each, and then checks the final
+ * database state against a reference model built from every operation that reported
+ * success:
+ * 	- exact count of every bigram -> word
+ * 	- StartDatabaseShard.totalCount against the number of lines in the model
+ * 	- LargeFollowingWordSet.totalWordCount against the sum of its entries
+ * processLine/removeLine are commutative so the model doesn't care about interleaving;
+ * each thread keeps its own counts and they're summed at the end. generateLine's
+ * fallback (adding END_TOKEN for a bigram that's missing a following word) does modify
+ * the database, so fallbacks are reported separately - any fallback is already a sign
+ * of a lost update
+ *
+ * usage: ConcurrencyStressHarness [opsPerThread] [shardCacheSize] [threadCounts...]
+ * eg: java -cp markov2-bench/target/benchmarks.jar my.cute.markov2.impl.ConcurrencyStressHarness 50000 256 1 2 4 8
+ * (needs the same --add-opens flags as the benchmarks on newer jdks)
+ * if the workers stop making progress (no operation finishes) for -Dstress.timeoutSeconds
+ * (default 300) the run is treated as a deadlock: the deadlocked threads are dumped and
+ * it exits with status 2. runs that are just slow (eg small caches, where most
+ * operations load and evict shards) keep going as long as operations finish
+ * -Dstress.maxSeconds caps how long each thread count runs (default 0, no cap). when
+ * it's reached the workers stop after their current operation and the run is reported
+ * as not finished, but what they did is still checked against the model
+ * -Dstress.writeAheadLog=true and -Dstress.logStructuredStorage=true run it with
+ * MarkovDatabaseBuilder.writeAheadLog()/logStructuredStorage() on. the check loads
+ * shard files the same way either way, runs included
+ */
+public final class ConcurrencyStressHarness {
+
+	private static final String DATABASE_ID = "stress";
+	/*
+	 * see MarkovDatabaseImpl.DATABASE_DIRECTORY_NAME
+	 */
+	private static final String DATABASE_DIRECTORY_NAME = "~database";
+	private static final int MAX_EXAMPLES = 10;
+	/*
+	 * a run where no operation finishes for this long is treated as hung (deadlock)
+	 */
+	private static final long TIMEOUT_SECONDS = Long.getLong("stress.timeoutSeconds", 300);
+	/*
+	 * stop each run after this long, finished or not. 0 for no limit
+	 */
+	private static final long MAX_SECONDS = Long.getLong("stress.maxSeconds", 0);
+	/*
+	 * how often the main thread checks on the workers
+	 */
+	private static final long POLL_MILLIS = 1000;
+	/*
+	 * MarkovDatabaseBuilder.writeAheadLog() and logStructuredStorage()
+	 */
+	private static final boolean WRITE_AHEAD_LOG = Boolean.getBoolean("stress.writeAheadLog");
+	private static final boolean LOG_STRUCTURED_STORAGE = Boolean.getBoolean("stress.logStructuredStorage");
+	/*
+	 * operation mix, out of 1000
+	 */
+	private static final int PROCESS_WEIGHT = 600;
+	private static final int GENERATE_WEIGHT = 250;
+	private static final int REMOVE_WEIGHT = 149;
+	//remaining 1 in 1000 is save()
+
+	private ConcurrencyStressHarness() {}
+
+	public static void main(String[] args) throws Exception {
+		int opsPerThread = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int shardCacheSize = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+		List<Integer> threadCounts = new ArrayList<>();
+		for(int i=2; i < args.length; i++) {
+			threadCounts.add(Integer.parseInt(args[i]));
+		}
+		if(threadCounts.isEmpty()) {
+			int cores = Runtime.getRuntime().availableProcessors();
+			for(int threads = 1; threads <= cores * 2; threads *= 2) {
+				threadCounts.add(threads);
+			}
+		}
+
+		if(WRITE_AHEAD_LOG || LOG_STRUCTURED_STORAGE) {
+			System.out.printf("writeAheadLog=%b logStructuredStorage=%b%n", WRITE_AHEAD_LOG, LOG_STRUCTURED_STORAGE);
+		}
+		System.out.printf("%8s %12s %10s %12s %10s %12s %12s %10s%n", "threads", "ops/s", "errors", "mismatches",
+				"fallbacks", "totalCount", "expected", "largeBad");
+		boolean allConsistent = true;
+		for(int threads : threadCounts) {
+			Result result = run(threads, opsPerThread, shardCacheSize);
+			allConsistent &= result.isConsistent();
+			System.out.printf("%8d %12.0f %10d %12d %10d %12d %12d %10d%n", threads, result.opsPerSecond, result.errors,
+					result.mismatches, result.fallbacks, result.totalCount, result.expectedLines, result.badLargeSets);
+			if(result.completedOps < result.requestedOps) {
+				System.out.printf("\tdid not finish: stopped after %d of %d ops (stress.maxSeconds=%d)%n", result.completedOps,
+						result.requestedOps, MAX_SECONDS);
+			}
+			for(String example : result.examples) {
+				System.out.println("\t" + example);
+			}
+		}
+		System.exit(allConsistent ? 0 : 1);
+	}
+
+	static final class Result {
+		double opsPerSecond;
+		long errors;
+		long mismatches;
+		long fallbacks;
+		long totalCount;
+		long expectedLines;
+		long badLargeSets;
+		/*
+		 * operations the workers got through, less than asked for if MAX_SECONDS stopped them
+		 */
+		long completedOps;
+		long requestedOps;
+		final List<String> examples = new ArrayList<>();
+
+		void addExample(String example) {
+			if(this.examples.size() < MAX_EXAMPLES) {
+				this.examples.add(example);
+			}
+		}
+
+		boolean isConsistent() {
+			return this.errors == 0 && this.mismatches == 0 && this.fallbacks == 0
+					&& this.totalCount == this.expectedLines && this.badLargeSets == 0;
+		}
+	}
+
+	/*
+	 * counts of each bigram -> word that the database should hold, plus the number of lines
+	 */
+	static final class Model {
+		final Map<Bigram, TObjectIntMap<String>> counts = new HashMap<>();
+		long lines = 0;
+
+		void apply(List<String> line, int delta) {
+			Bigram bigram = new Bigram(MarkovDatabaseImpl.START_TOKEN, line.get(0));
+			for(int i=1; i < line.size(); i++) {
+				String word = MyStringPool.INSTANCE.intern(line.get(i));
+				this.adjust(bigram, word, delta);
+				bigram = new Bigram(bigram.getWord2(), word);
+			}
+			this.adjust(bigram, MarkovDatabaseImpl.END_TOKEN, delta);
+			this.lines += delta;
+		}
+
+		private void adjust(Bigram bigram, String word, int delta) {
+			this.counts.computeIfAbsent(bigram, b -> new TObjectIntHashMap<>()).adjustOrPutValue(word, delta, delta);
+		}
+
+		void merge(Model other) {
+			other.counts.forEach((bigram, words) -> words.forEachEntry((word, count) ->
+			{
+				this.adjust(bigram, word, count);
+				return true;
+			}));
+			this.lines += other.lines;
+		}
+	}
+
+	static Result run(int threads, int opsPerThread, int shardCacheSize) throws Exception {
+		Path directory = BenchmarkFiles.createTempDirectory("stress");
+		try {
+			MarkovDatabase database = new MarkovDatabaseBuilder(DATABASE_ID, directory.toString())
+					.shardCacheSize(shardCacheSize)
+					.writeAheadLog(WRITE_AHEAD_LOG)
+					.logStructuredStorage(LOG_STRUCTURED_STORAGE)
+					.build();
+			database.load();
+			long fallbacksBefore = database.getMetrics().getNextWordFallbackCount();
+
+			Model[] models = new Model[threads];
+			AtomicLong errors = new AtomicLong();
+			AtomicLong completed = new AtomicLong();
+			AtomicBoolean stop = new AtomicBoolean(false);
+			List<String> examples = new ArrayList<>();
+			CountDownLatch start = new CountDownLatch(1);
+			List<Thread> workers = new ArrayList<>(threads);
+			for(int t=0; t < threads; t++) {
+				final int threadIndex = t;
+				models[t] = new Model();
+				Thread worker = new Thread(() ->
+				{
+					try {
+						start.await();
+						runWorker(database, models[threadIndex], threadIndex, opsPerThread, completed, stop);
+					} catch (Exception ex) {
+						errors.incrementAndGet();
+						synchronized(examples) {
+							examples.add("worker " + threadIndex + " failed: " + ex);
+						}
+					}
+				}, "stress-" + t);
+				workers.add(worker);
+				worker.start();
+			}
+
+			long startTime = System.nanoTime();
+			start.countDown();
+			long lastCompleted = 0;
+			long lastProgress = System.currentTimeMillis();
+			for(Thread worker : workers) {
+				while(worker.isAlive()) {
+					worker.join(POLL_MILLIS);
+					long now = System.currentTimeMillis();
+					long done = completed.get();
+					if(done != lastCompleted) {
+						lastCompleted = done;
+						lastProgress = now;
+					} else if(now - lastProgress > TIMEOUT_SECONDS * 1000) {
+						reportHang(threads);
+					}
+					if(MAX_SECONDS > 0 && System.nanoTime() - startTime > MAX_SECONDS * 1_000_000_000L) {
+						stop.set(true);
+					}
+				}
+			}
+			double seconds = (System.nanoTime() - startTime) / 1e9;
+
+			Model model = new Model();
+			for(Model threadModel : models) {
+				model.merge(threadModel);
+			}
+			database.save();
+
+			Result result = verify(directory, model);
+			result.completedOps = completed.get();
+			result.requestedOps = (long) threads * opsPerThread;
+			result.opsPerSecond = result.completedOps / seconds;
+			result.errors += errors.get();
+			result.fallbacks = database.getMetrics().getNextWordFallbackCount() - fallbacksBefore;
+			database.close();
+			result.examples.addAll(0, examples);
+			return result;
+		} finally {
+			BenchmarkFiles.delete(directory);
+		}
+	}
+
+	private static void runWorker(MarkovDatabase database, Model model, int threadIndex, int ops, AtomicLong completed,
+			AtomicBoolean stop) throws IOException, FollowingWordRemovalException {
+		ChatCorpus corpus = new ChatCorpus(threadIndex * 7919L + 1);
+		SplittableRandom random = new SplittableRandom(threadIndex);
+		//lines this thread has processed and not yet removed
+		Deque<List<String>> removable = new ArrayDeque<>();
+		for(int i=0; i < ops && !stop.get(); i++) {
+			int roll = random.nextInt(1000);
+			if(roll < PROCESS_WEIGHT) {
+				List<String> line = corpus.nextLine();
+				if(database.processLine(line)) {
+					model.apply(line, 1);
+					removable.addLast(line);
+				}
+			} else if(roll < PROCESS_WEIGHT + GENERATE_WEIGHT) {
+				database.generateLine();
+			} else if(roll < PROCESS_WEIGHT + GENERATE_WEIGHT + REMOVE_WEIGHT) {
+				List<String> line = removable.pollFirst();
+				if(line != null && database.removeLine(line)) {
+					model.apply(line, -1);
+				}
+			} else {
+				database.save();
+			}
+			completed.incrementAndGet();
+		}
+	}
+
+	/*
+	 * workers didn't finish in time. dumps any deadlocked threads (or every stress
+	 * thread if the jvm doesn't see a deadlock) and exits, since hung workers can't
+	 * be stopped and the database can't be verified
+	 */
+	private static void reportHang(int threads) {
+		System.out.printf("%8d hung: no operation finished for %d seconds%n", threads, TIMEOUT_SECONDS);
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		long[] deadlocked = threadBean.findDeadlockedThreads();
+		ThreadInfo[] infos = deadlocked != null
+				? threadBean.getThreadInfo(deadlocked, true, true)
+				: threadBean.dumpAllThreads(true, true);
+		for(ThreadInfo info : infos) {
+			if(deadlocked != null || info.getThreadName().startsWith("stress-")) {
+				System.out.print(info);
+			}
+		}
+		System.exit(2);
+	}
+
+	/*
+	 * loads every shard file written by save() and compares it against the model
+	 */
+	private static Result verify(Path directory, Model model) throws IOException {
+		Result result = new Result();
+		result.expectedLines = model.lines;
+		Path databaseDirectory = directory.resolve(DATABASE_ID).resolve(DATABASE_DIRECTORY_NAME);
+		ShardLoader loader = new ShardLoader(DATABASE_ID, databaseDirectory.toString(), SaveType.SERIALIZE,
+				FollowingWordSetPolicy.DEFAULT);
+		Map<Bigram, TObjectIntMap<String>> actual = new HashMap<>();
+
+		List<Path> files;
+		try (Stream<Path> stream = Files.walk(databaseDirectory)) {
+			files = stream.filter(path -> path.toString().endsWith(".database")).collect(Collectors.toList());
+		}
+		for(Path file : files) {
+			DatabaseShard shard = loader.getShardFromFile(file);
+			if(shard instanceof StartDatabaseShard) {
+				result.totalCount = ((StartDatabaseShard) shard).getTotalCount();
+			}
+			for(Map.Entry<Bigram, FollowingWordSet> entry : shard.database.entrySet()) {
+				TObjectIntMap<String> counts = countsOf(entry.getValue());
+				actual.put(entry.getKey(), counts);
+				if(entry.getValue() instanceof LargeFollowingWordSet) {
+					int sum = 0;
+					for(int count : counts.values()) sum += count;
+					if(sum != entry.getValue().size()) {
+						result.badLargeSets++;
+						result.addExample(entry.getKey() + ": totalWordCount " + entry.getValue().size() + " but entries sum to " + sum);
+					}
+				}
+			}
+		}
+
+		//every expected count must be present...
+		model.counts.forEach((bigram, words) -> words.forEachEntry((word, expected) ->
+		{
+			TObjectIntMap<String> counts = actual.get(bigram);
+			int found = counts == null ? 0 : counts.get(word);
+			if(found != expected) {
+				result.mismatches++;
+				result.addExample(bigram + " -> " + word + ": expected " + expected + ", found " + found);
+			}
+			return true;
+		}));
+		//...and nothing else
+		actual.forEach((bigram, words) -> words.forEachEntry((word, found) ->
+		{
+			TObjectIntMap<String> expectedCounts = model.counts.get(bigram);
+			if(expectedCounts == null || !expectedCounts.containsKey(word)) {
+				result.mismatches++;
+				result.addExample(bigram + " -> " + word + ": expected 0, found " + found);
+			}
+			return true;
+		}));
+		return result;
+	}
+
+	private static TObjectIntMap<String> countsOf(FollowingWordSet set) {
+		TObjectIntMap<String> counts = new TObjectIntHashMap<>();
+		if(set instanceof LargeFollowingWordSet) {
+			((LargeFollowingWordSet) set).forEachEntry((word, count) ->
+			{
+				counts.put(word, count);
+				return true;
+			});
+		} else {
+			List<String> words = set.getWords();
+			synchronized(words) {
+				for(String word : words) {
+					counts.adjustOrPutValue(word, 1, 1);
+				}
+			}
+		}
+		return counts;
+	}
+}
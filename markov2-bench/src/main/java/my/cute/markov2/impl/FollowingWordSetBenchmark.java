@@ -0,0 +1,218 @@
+package my.cute.markov2.impl;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import my.cute.markov2.RandomSource;
+
+/*
+ * microbenchmarks for the individual followingwordset operations, for each
+ * representation over a range of set sizes and duplication levels
+ * (duplication = average uses per unique word, see WordSetFixtures.words())
+ * sizes straddle the current SMALL/LARGE thresholds (4 and 24) so the numbers
+ * can be used to check where each representation stops paying for itself
+ * retained memory for the same grid is printed by FollowingWordSetFootprint
+ *
+ * tiny sets are promoted once they hold FollowingWordSetPolicy's tinyMaxSize words (4
+ * by default), so they get their own grid of the sizes they can actually have
+ * (TinySetState, the tiny* benchmarks). they're also immutable, so "add" and "remove"
+ * for them measure building the replacement set, which is what DatabaseShard does
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {
+		"--add-opens=java.base/java.lang=ALL-UNNAMED",
+		"--add-opens=java.base/java.math=ALL-UNNAMED",
+		"--add-opens=java.base/java.util=ALL-UNNAMED",
+		"--add-opens=java.base/java.util.concurrent=ALL-UNNAMED",
+		"--add-opens=java.base/java.net=ALL-UNNAMED",
+		"--add-opens=java.base/java.text=ALL-UNNAMED"})
+public class FollowingWordSetBenchmark {
+
+	private static final long WORD_SEED = 24L;
+
+	/*
+	 * the set being measured and the words it was built from. subclasses are the grids
+	 */
+	public abstract static class WordSetState {
+
+		FollowingWordSet set;
+		List<String> words;
+		private int index = 0;
+
+		abstract WordSetRepresentation representation();
+
+		abstract int setSize();
+
+		abstract int duplication();
+
+		/*
+		 * rebuilt every iteration so destructive benchmarks always start
+		 * from the same set
+		 */
+		@Setup(Level.Iteration)
+		public void setUp() {
+			this.words = WordSetFixtures.words(this.setSize(), this.duplication(), WORD_SEED);
+			this.set = WordSetFixtures.build(this.representation(), this.words);
+			this.index = 0;
+		}
+
+		/*
+		 * cycles through words in the set, so lookups are weighted by
+		 * frequency just like they are during processing/removal
+		 */
+		String nextWord() {
+			String word = this.words.get(this.index);
+			this.index = (this.index + 1) % this.words.size();
+			return word;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class SetState extends WordSetState {
+
+		@Param({"SMALL", "LARGE"})
+		public WordSetRepresentation representation;
+
+		@Param({"4", "16", "24", "64", "256", "1024"})
+		public int setSize;
+
+		@Param({"1", "4", "16"})
+		public int duplication;
+
+		@Override
+		WordSetRepresentation representation() {
+			return this.representation;
+		}
+
+		@Override
+		int setSize() {
+			return this.setSize;
+		}
+
+		@Override
+		int duplication() {
+			return this.duplication;
+		}
+	}
+
+	/*
+	 * up to the default tinyMaxSize. duplication only goes as far as the sizes allow
+	 */
+	@State(Scope.Thread)
+	public static class TinySetState extends WordSetState {
+
+		@Param({"1", "2", "3", "4"})
+		public int setSize;
+
+		@Param({"1", "4"})
+		public int duplication;
+
+		@Override
+		WordSetRepresentation representation() {
+			return WordSetRepresentation.TINY;
+		}
+
+		@Override
+		int setSize() {
+			return this.setSize;
+		}
+
+		@Override
+		int duplication() {
+			return this.duplication;
+		}
+	}
+
+	@Benchmark
+	public String getRandomWeightedWord(SetState state) {
+		return state.set.getRandomWeightedWord(RandomSource.threadLocal());
+	}
+
+	/*
+	 * first call on a large set builds its count index, so this is the steady
+	 * state cost (an index that's kept up to date by addWord()/remove())
+	 */
+	@Benchmark
+	public TopWords getTopWords(SetState state) {
+		return state.set.getTopWords(8);
+	}
+
+	@Benchmark
+	public boolean containsCount(SetState state) {
+		return state.set.contains(state.nextWord(), 2);
+	}
+
+	/*
+	 * removing a word is destructive, so each op removes a word and adds it
+	 * back. subtract the addWord score to get the cost of the removal alone
+	 */
+	@Benchmark
+	public Object removeThenAdd(SetState state) {
+		String word = state.nextWord();
+		state.set.remove(word);
+		state.set.addWord(word);
+		return state.set;
+	}
+
+	/*
+	 * adding grows small sets without bound, so adds are measured in fixed
+	 * batches and the set is rebuilt between iterations
+	 */
+	static final int ADD_BATCH_SIZE = 1000;
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Warmup(iterations = 50, batchSize = ADD_BATCH_SIZE)
+	@Measurement(iterations = 200, batchSize = ADD_BATCH_SIZE)
+	public Object addWord(SetState state) {
+		String word = state.nextWord();
+		state.set.addWord(word);
+		return state.set;
+	}
+
+	@Benchmark
+	public String tinyGetRandomWeightedWord(TinySetState state) {
+		return state.set.getRandomWeightedWord(RandomSource.threadLocal());
+	}
+
+	@Benchmark
+	public TopWords tinyGetTopWords(TinySetState state) {
+		return state.set.getTopWords(8);
+	}
+
+	@Benchmark
+	public boolean tinyContainsCount(TinySetState state) {
+		return state.set.contains(state.nextWord(), 2);
+	}
+
+	/*
+	 * the set itself is never changed, so no batches needed here
+	 */
+	@Benchmark
+	public Object tinyRemoveThenAdd(TinySetState state) {
+		String word = state.nextWord();
+		return TinyFollowingWordSet.of(TinyFollowingWordSet.remove((TinyFollowingWordSet) state.set, word), word);
+	}
+
+	@Benchmark
+	public Object tinyAddWord(TinySetState state) {
+		return TinyFollowingWordSet.of(state.set, state.nextWord());
+	}
+}
@@ -0,0 +1,52 @@
+package my.cute.markov2.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jol.info.GraphLayout;
+
+/*
+ * prints the retained heap of each followingwordset representation over the
+ * same size/duplication grid as FollowingWordSetBenchmark, measured with jol
+ * the word strings, database id and the bigram are excluded since they're shared through
+ * MyStringPool / owned by the shard map, so the numbers are only what the
+ * set itself costs. tiny sets are also pooled, so for them this is the cost
+ * of the first copy (later identical sets are free), and only measured up to
+ * tinyMaxSize, since they're promoted past that
+ * eg: java -cp markov2-bench/target/benchmarks.jar my.cute.markov2.impl.FollowingWordSetFootprint
+ */
+public final class FollowingWordSetFootprint {
+
+	private static final int[] SIZES = {1, 2, 4, 8, 16, 24, 32, 64, 128, 256, 1024};
+	private static final int[] DUPLICATION = {1, 2, 4, 8, 16};
+
+	private FollowingWordSetFootprint() {}
+
+	public static void main(String[] args) {
+		System.out.printf("%-6s %6s %6s %8s %10s %12s%n", "type", "size", "dup", "unique", "bytes", "bytes/word");
+		for(int size : SIZES) {
+			for(int duplication : DUPLICATION) {
+				List<String> words = WordSetFixtures.words(size, duplication, 24L);
+				long unique = words.stream().distinct().count();
+				for(WordSetRepresentation representation : WordSetRepresentation.values()) {
+					if(representation == WordSetRepresentation.TINY && size > FollowingWordSetPolicy.DEFAULT.getTinyMaxSize()) continue;
+					long bytes = retainedBytes(WordSetFixtures.build(representation, words), words);
+					System.out.printf("%-6s %6d %6d %8d %10d %12.1f%n", representation, size, duplication, unique,
+							bytes, (double) bytes / size);
+				}
+			}
+		}
+	}
+
+	/*
+	 * retained size of the set minus anything it shares with the rest of the database
+	 */
+	static long retainedBytes(FollowingWordSet set, List<String> words) {
+		List<Object> shared = new ArrayList<>(words.size() + 2);
+		shared.addAll(words);
+		shared.add(WordSetFixtures.BIGRAM);
+		shared.add(WordSetFixtures.DATABASE_ID);
+		GraphLayout setLayout = GraphLayout.parseInstance(set);
+		return setLayout.subtract(GraphLayout.parseInstance(shared.toArray())).totalSize();
+	}
+}
@@ -0,0 +1,288 @@
+package my.cute.markov2.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.FileFilterUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import my.cute.markov2.MarkovDatabase;
+import my.cute.markov2.bench.BenchmarkFiles;
+import my.cute.markov2.bench.ChatCorpus;
+import my.cute.markov2.bench.HeapPeak;
+
+/*
+ * benchmarks for everything that touches disk: single shard save/load (the largest
+ * regular shard and the start shard), saving the whole cache, backup save/restore
+ * and text export, on generated databases of different sizes
+ * bigrams is the number of bigram->word occurrences processed into the database
+ * (ie total words + one end token per line) - a 10M database takes a few minutes
+ * to generate, and that happens once per fork
+ *
+ * shard-level benchmarks are throughput and report megabytes/files as aux counters,
+ * so they show up as MB/s and files/s. whole-database operations are single shot
+ * and report MB/s, files/s and peak heap (see HeapPeak) for each run
+ */
+@Fork(value = 1, jvmArgsAppend = {
+		"-Xmx8g",
+		"--add-opens=java.base/java.lang=ALL-UNNAMED",
+		"--add-opens=java.base/java.math=ALL-UNNAMED",
+		"--add-opens=java.base/java.util=ALL-UNNAMED",
+		"--add-opens=java.base/java.util.concurrent=ALL-UNNAMED",
+		"--add-opens=java.base/java.net=ALL-UNNAMED",
+		"--add-opens=java.base/java.text=ALL-UNNAMED"})
+public class PersistenceBenchmark {
+
+	private static final long CORPUS_SEED = 20191105L;
+	private static final String DATABASE_ID = "bench";
+	private static final String BACKUP_NAME = "bench";
+	/*
+	 * see MarkovDatabaseImpl.DATABASE_DIRECTORY_NAME
+	 */
+	private static final String DATABASE_DIRECTORY_NAME = "~database";
+
+	@State(Scope.Benchmark)
+	public static class DatabaseState {
+
+		@Param({"10000", "1000000", "10000000"})
+		public long bigrams;
+
+		MarkovDatabase database;
+		Path directory;
+		Path databaseDirectory;
+		Path largestShardFile;
+		Path startShardFile;
+		long databaseBytes;
+		long databaseFiles;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			this.directory = BenchmarkFiles.createTempDirectory("persistence");
+			//unbounded cache so every shard is resident when save() is measured
+			this.database = new MarkovDatabaseBuilder(DATABASE_ID, this.directory.toString()).build();
+			this.database.load();
+			ChatCorpus corpus = new ChatCorpus(CORPUS_SEED);
+			long processed = 0;
+			while(processed < this.bigrams) {
+				List<String> line = corpus.nextLine();
+				this.database.processLine(line);
+				processed += line.size() + 1;
+			}
+			this.database.save();
+			this.database.saveBackup(BACKUP_NAME);
+
+			this.databaseDirectory = this.directory.resolve(DATABASE_ID).resolve(DATABASE_DIRECTORY_NAME);
+			this.databaseBytes = BenchmarkFiles.sizeOf(this.databaseDirectory);
+			this.databaseFiles = BenchmarkFiles.countFiles(this.databaseDirectory);
+			this.startShardFile = this.databaseDirectory.resolve(MarkovDatabaseImpl.START_KEY + ".database");
+			try (Stream<Path> files = Files.walk(this.databaseDirectory)) {
+				this.largestShardFile = files.filter(path -> Files.isRegularFile(path) && !path.equals(this.startShardFile))
+						.max(Comparator.comparingLong(path -> path.toFile().length()))
+						.orElseThrow(() -> new IllegalStateException("no shards generated"));
+			}
+		}
+
+		/*
+		 * exportToTextFile() writes into the database's parent directory; clean up
+		 * after each iteration so the exports don't pile up
+		 */
+		@TearDown(Level.Iteration)
+		public void deleteExports() {
+			File parent = this.directory.resolve(DATABASE_ID).toFile();
+			for(File export : FileUtils.listFiles(parent, FileFilterUtils.suffixFileFilter(".txt"), null)) {
+				export.delete();
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			this.database.close();
+			BenchmarkFiles.delete(this.directory);
+		}
+	}
+
+	/*
+	 * shards loaded straight from their files, outside of the database's cache
+	 */
+	@State(Scope.Thread)
+	public static class ShardState {
+
+		DatabaseShard shard;
+		StartDatabaseShard startShard;
+		double shardMegabytes;
+		double startShardMegabytes;
+
+		@Setup(Level.Trial)
+		public void setUp(DatabaseState database) throws IOException {
+			ShardLoader loader = new ShardLoader(DATABASE_ID, database.databaseDirectory.toString(), SaveType.SERIALIZE,
+					FollowingWordSetPolicy.DEFAULT);
+			this.shard = loader.getShardFromFile(database.largestShardFile);
+			this.startShard = (StartDatabaseShard) loader.getShardFromFile(database.startShardFile);
+			this.shardMegabytes = database.largestShardFile.toFile().length() / 1e6;
+			this.startShardMegabytes = database.startShardFile.toFile().length() / 1e6;
+		}
+	}
+
+	/*
+	 * accumulated per op, reported as a rate (MB/s, files/s) in throughput mode
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class IoCounters {
+		public double megabytes;
+		public long files;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			this.megabytes = 0;
+			this.files = 0;
+		}
+
+		void record(double megabytes) {
+			this.megabytes += megabytes;
+			this.files++;
+		}
+	}
+
+	/*
+	 * recorded directly by single shot benchmarks, which run one op per iteration
+	 */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class OneShotCounters {
+		public double megabytesPerSecond;
+		public double filesPerSecond;
+		public double peakHeapMegabytes;
+
+		private long start;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			this.megabytesPerSecond = 0;
+			this.filesPerSecond = 0;
+			this.peakHeapMegabytes = 0;
+			System.gc();
+			HeapPeak.reset();
+			this.start = System.nanoTime();
+		}
+
+		void record(double megabytes, long files) {
+			double seconds = (System.nanoTime() - this.start) / 1e9;
+			this.megabytesPerSecond = megabytes / seconds;
+			this.filesPerSecond = files / seconds;
+			this.peakHeapMegabytes = HeapPeak.peakMegabytes();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Warmup(iterations = 3, time = 5)
+	@Measurement(iterations = 5, time = 5)
+	public DatabaseShard saveShard(ShardState state, IoCounters counters) throws IOException {
+		state.shard.saveAsObject();
+		counters.record(state.shardMegabytes);
+		return state.shard;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Warmup(iterations = 3, time = 5)
+	@Measurement(iterations = 5, time = 5)
+	public DatabaseShard loadShard(ShardState state, IoCounters counters) throws IOException {
+		state.shard.loadFromObject();
+		counters.record(state.shardMegabytes);
+		return state.shard;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Warmup(iterations = 3, time = 5)
+	@Measurement(iterations = 5, time = 5)
+	public DatabaseShard saveStartShard(ShardState state, IoCounters counters) throws IOException {
+		state.startShard.saveAsObject();
+		counters.record(state.startShardMegabytes);
+		return state.startShard;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Warmup(iterations = 3, time = 5)
+	@Measurement(iterations = 5, time = 5)
+	public DatabaseShard loadStartShard(ShardState state, IoCounters counters) throws IOException {
+		state.startShard.loadFromObject();
+		counters.record(state.startShardMegabytes);
+		return state.startShard;
+	}
+
+	/*
+	 * ShardCache.save() with every shard resident
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 5)
+	public void saveAll(DatabaseState state, OneShotCounters counters) throws IOException {
+		state.database.save();
+		counters.record(state.databaseBytes / 1e6, state.databaseFiles);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 5)
+	public Path saveBackup(DatabaseState state, OneShotCounters counters) throws IOException {
+		Path backup = state.database.saveBackup(BACKUP_NAME);
+		counters.record(state.databaseBytes / 1e6, state.databaseFiles);
+		return backup;
+	}
+
+	/*
+	 * includes everything loadBackup() does: saving and clearing the cache, writing
+	 * the temporary recovery backup, unpacking and reloading the start shard
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 5)
+	public void loadBackup(DatabaseState state, OneShotCounters counters) throws IOException {
+		state.database.loadBackup(BACKUP_NAME);
+		counters.record(state.databaseBytes / 1e6, state.databaseFiles);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 5)
+	public void exportToTextFile(DatabaseState state, OneShotCounters counters) throws IOException {
+		state.database.exportToTextFile();
+		counters.record(state.databaseBytes / 1e6, state.databaseFiles);
+	}
+}
@@ -0,0 +1,92 @@
+package my.cute.markov2.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import my.cute.markov2.bench.BenchmarkFiles;
+import my.cute.markov2.exceptions.FollowingWordRemovalException;
+
+/*
+ * measures the promotion/demotion paths in DatabaseShard.addFollowingWord() and
+ * removeFollowingWord()
+ * each op is add, add, remove, remove of two new words starting from a set of
+ * startSize words. with policy=SIZE_ONLY (the old fixed thresholds):
+ * 	startSize=3: tiny -> tiny(4) -> small(5) -> small(4) -> tiny(3), one promotion + one demotion
+ * 	startSize=23: small -> large(24) -> large(25) -> large(24) -> small(23), same at the large threshold
+ * 	startSize=12: small the whole time, baseline with no conversions
+ * the difference against the baseline is the cost of a set thrashing back and
+ * forth across a threshold. with policy=DEFAULT the hysteresis means a set settles
+ * into one representation after the first op (small at startSize=3; at startSize=23
+ * large if the words are repeated enough, otherwise small), so every size should
+ * cost about the same as the baseline
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {
+		"--add-opens=java.base/java.lang=ALL-UNNAMED",
+		"--add-opens=java.base/java.math=ALL-UNNAMED",
+		"--add-opens=java.base/java.util=ALL-UNNAMED",
+		"--add-opens=java.base/java.util.concurrent=ALL-UNNAMED",
+		"--add-opens=java.base/java.net=ALL-UNNAMED",
+		"--add-opens=java.base/java.text=ALL-UNNAMED"})
+public class WordSetConversionBenchmark {
+
+	@State(Scope.Thread)
+	public static class ShardState {
+
+		@Param({"3", "12", "23"})
+		public int startSize;
+
+		@Param({"1", "4"})
+		public int duplication;
+
+		@Param({"DEFAULT", "SIZE_ONLY"})
+		public String policy;
+
+		DatabaseShard shard;
+		Path directory;
+		final String first = MyStringPool.INSTANCE.intern("~conversion-first");
+		final String second = MyStringPool.INSTANCE.intern("~conversion-second");
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			this.directory = BenchmarkFiles.createTempDirectory("conversion");
+			List<String> words = WordSetFixtures.words(this.startSize, this.duplication, 3L);
+			FollowingWordSetPolicy wordSetPolicy = this.policy.equals("SIZE_ONLY")
+					? FollowingWordSetPolicy.SIZE_ONLY : FollowingWordSetPolicy.DEFAULT;
+			this.shard = WordSetFixtures.shard(words, this.directory.toString(), wordSetPolicy);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			BenchmarkFiles.delete(this.directory);
+		}
+	}
+
+	@Benchmark
+	public DatabaseShard addAddRemoveRemove(ShardState state) throws FollowingWordRemovalException {
+		state.shard.addFollowingWord(WordSetFixtures.BIGRAM, state.first);
+		state.shard.addFollowingWord(WordSetFixtures.BIGRAM, state.second);
+		state.shard.removeFollowingWord(WordSetFixtures.BIGRAM, state.second);
+		state.shard.removeFollowingWord(WordSetFixtures.BIGRAM, state.first);
+		return state.shard;
+	}
+}
@@ -0,0 +1,65 @@
+package my.cute.markov2.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import my.cute.markov2.bench.ChatCorpus;
+
+/*
+ * builds followingwordsets of a given representation/size/duplication for the
+ * word set benchmarks. lives in the impl package because the fws classes are
+ * package-private
+ */
+final class WordSetFixtures {
+
+	static final String DATABASE_ID = MyStringPool.INSTANCE.intern("bench");
+	static final Bigram BIGRAM = new Bigram("bench", "bigram");
+
+	private WordSetFixtures() {}
+
+	/*
+	 * returns size words drawn from a zipfian vocabulary of size/duplication words,
+	 * so duplication is roughly the average number of uses per unique word
+	 * (1 = almost every word distinct, 16 = a few words used over and over)
+	 */
+	static List<String> words(int size, int duplication, long seed) {
+		int vocabulary = Math.max(1, size / Math.max(1, duplication));
+		ChatCorpus corpus = new ChatCorpus(seed, vocabulary, 1.0, 1);
+		List<String> words = new ArrayList<>(size);
+		for(int i=0; i < size; i++) {
+			words.add(MyStringPool.INSTANCE.intern(corpus.nextWord()));
+		}
+		return words;
+	}
+
+	static FollowingWordSet build(WordSetRepresentation representation, List<String> words) {
+		switch(representation) {
+			case TINY:
+				return TinyFollowingWordSet.of(words);
+			case SMALL:
+				return small(words);
+			case LARGE:
+				return new LargeFollowingWordSet(small(words));
+			default:
+				throw new IllegalArgumentException("unknown representation " + representation);
+		}
+	}
+
+	private static SmallFollowingWordSet small(List<String> words) {
+		return new SmallFollowingWordSet(Collections.synchronizedList(new ArrayList<>(words)), BIGRAM, DATABASE_ID);
+	}
+
+	/*
+	 * shard containing BIGRAM with the given words, built through the normal
+	 * addFollowingWord() path so the set ends up in whatever representation
+	 * the given policy picks for it
+	 */
+	static DatabaseShard shard(List<String> words, String parentPath, FollowingWordSetPolicy policy) {
+		DatabaseShard shard = new DatabaseShard(DATABASE_ID, MyStringPool.INSTANCE.intern("B~B"), parentPath, policy);
+		for(String word : words) {
+			shard.addFollowingWord(BIGRAM, word);
+		}
+		return shard;
+	}
+}
@@ -0,0 +1,11 @@
+package my.cute.markov2.impl;
+
+/*
+ * followingwordset implementations, as a benchmark parameter
+ * public because the jmh generated code lives in a different package
+ */
+public enum WordSetRepresentation {
+	TINY,
+	SMALL,
+	LARGE
+}
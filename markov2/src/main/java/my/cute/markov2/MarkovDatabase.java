@@ -3,7 +3,10 @@ package my.cute.markov2;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import my.cute.markov2.exceptions.FollowingWordRemovalException;
 
@@ -19,6 +22,24 @@ public interface MarkovDatabase {
 	 */
 	public boolean processLine(List<String> words) throws IOException;
 	
+	/*
+	 * processLine() for each of the given lines, for processing a lot of lines at once
+	 * (eg importing a chat history). lines are taken in batches, and the bigrams in a
+	 * batch are grouped by shard, so each shard is locked and updated a handful of
+	 * times per batch instead of once per word. empty lines are skipped
+	 * returns the number of lines processed
+	 * not included in the processLine() latency metrics
+	 */
+	public int processLines(Iterable<List<String>> lines) throws IOException;
+	
+	/*
+	 * processLine() on the database's io executor (see MarkovDatabaseBuilder.ioExecutor()),
+	 * so the calling thread never waits on shard loads/saves. the list is copied first
+	 * lines processed this way can be processed in any order relative to each other
+	 * IOExceptions complete the future exceptionally (wrapped in CompletionException)
+	 */
+	public CompletableFuture<Boolean> processLineAsync(List<String> words);
+	
 	/*
 	 * generates a message from the database with a weighted random starting word
 	 */
@@ -29,6 +50,101 @@ public interface MarkovDatabase {
 	 */
 	public String generateLine(String startingWord) throws IOException;
 	
+	/*
+	 * same as generateLine(), but with the given source of randomness instead of
+	 * the database's (eg RandomSource.seeded() for a reproducible line)
+	 */
+	public String generateLine(RandomSource random) throws IOException;
+	
+	public String generateLine(String startingWord, RandomSource random) throws IOException;
+	
+	/*
+	 * generateLine() that never blocks the calling thread on disk
+	 * if the line pool has a line, or every shard the line needs is already in memory,
+	 * the line is generated right away on the calling thread and the future is already
+	 * complete. otherwise the line is generated on the io executor instead (see
+	 * MarkovDatabaseBuilder.ioExecutor()), where loading shards doesn't hold anyone up
+	 * either way it's the line generateLine() would have given, so a seeded source
+	 * stays reproducible
+	 */
+	public CompletableFuture<String> generateLineAsync();
+	
+	public CompletableFuture<String> generateLineAsync(String startingWord);
+	
+	/*
+	 * generates a line that contains the given word somewhere in it, not just at the
+	 * start: walks backwards from the word to a line start, then forwards to a line end
+	 * needs the reverse index (MarkovDatabaseBuilder.reverseIndex()), throws
+	 * IllegalStateException otherwise
+	 * returns null if the database has never seen the word
+	 */
+	public String generateLineContaining(String word) throws IOException;
+	
+	public String generateLineContaining(String word, RandomSource random) throws IOException;
+	
+	/*
+	 * generates a line like generateLine(), but every word (including the first) is
+	 * picked only from the k most frequent choices at that point, weighted by how often
+	 * they were used. lower k gives more predictable lines. exactly k words are picked
+	 * from (fewer if there aren't k); ties for the kth are broken alphabetically
+	 */
+	public String generateLineTopK(int k) throws IOException;
+	
+	public String generateLineTopK(int k, RandomSource random) throws IOException;
+	
+	/*
+	 * beam search for the most probable line in the database, keeping the beamWidth
+	 * best partial lines at each step. no randomness: the same database always gives
+	 * the same line. wider beams search more lines and take longer
+	 * "most probable" is the whole line's probability, so short common lines tend to win
+	 */
+	public String generateMostLikelyLine(int beamWidth) throws IOException;
+	
+	/*
+	 * same as generateMostLikelyLine(int), for lines starting with the given word
+	 */
+	public String generateMostLikelyLine(String startingWord, int beamWidth) throws IOException;
+	
+	/*
+	 * generates a line one word at a time, with a weighted random starting word
+	 * each word is only generated when it's asked for, so the caller can stop early
+	 * (eg at a length limit) or start using the line before the rest of it exists,
+	 * which matters when later words need shards loaded from disk
+	 * the iterator isn't thread-safe. hasNext()/next() throw UncheckedIOException if a
+	 * shard can't be loaded
+	 */
+	public Iterator<String> generateWords();
+	
+	public Iterator<String> generateWords(String startingWord);
+	
+	public Iterator<String> generateWords(RandomSource random);
+	
+	public Iterator<String> generateWords(String startingWord, RandomSource random);
+	
+	/*
+	 * generates count lines with weighted random starting words
+	 * lines are generated in parallel on the database's executor (see
+	 * MarkovDatabaseBuilder.executorService()), and the walks share shard lookups,
+	 * so this is much faster than calling generateLine() count times
+	 * returns the lines in a list of size count
+	 */
+	public List<String> generateLines(int count) throws IOException;
+	
+	/*
+	 * same as generateLines(int), but line i of the result starts with
+	 * startingWords.get(i)
+	 */
+	public List<String> generateLines(List<String> startingWords) throws IOException;
+	
+	/*
+	 * generateLines() with the given source of randomness instead of the database's
+	 * with a seeded source the whole batch is reproducible, however the lines get
+	 * split between threads
+	 */
+	public List<String> generateLines(int count, RandomSource random) throws IOException;
+	
+	public List<String> generateLines(List<String> startingWords, RandomSource random) throws IOException;
+	
 	/*
 	 * used to check if the database has processed the given line (as a list of words)
 	 * not sure why this would really be needed for general use but might as well
@@ -75,6 +191,18 @@ public interface MarkovDatabase {
 	 */
 	public void save() throws IOException;
 	
+	/*
+	 * save() on the io executor
+	 */
+	public CompletableFuture<Void> saveAsync();
+	
+	/*
+	 * saves the database and lets go of what it holds outside itself (its metrics
+	 * mbean and registry entry, the write-ahead log's file), so nothing keeps it
+	 * reachable once the caller drops it. the database shouldn't be used after this
+	 */
+	public void close() throws IOException;
+	
 	/*
 	 * loads database from disk
 	 * must call load() after creating database and before using it
@@ -122,4 +250,26 @@ public interface MarkovDatabase {
 	
 	public String getId();
 	
+	/*
+	 * runtime metrics for this database (cache behaviour, shard i/o, operation latency)
+	 * the same object is registered as a jmx mbean when the database is created
+	 */
+	public MarkovDatabaseMetricsMXBean getMetrics();
+	
+	/*
+	 * estimated retained heap of each shard currently loaded in memory, keyed by shard key
+	 * (the start shard is always loaded and is reported by getStartShardMemoryFootprint())
+	 * walks every loaded shard, so this is O(database size in memory)
+	 */
+	public Map<String, MemoryFootprint> getShardMemoryFootprints();
+	
+	public MemoryFootprint getStartShardMemoryFootprint();
+	
+	/*
+	 * estimated retained heap of everything this database currently holds in memory
+	 * strings and tiny sets shared between shards are only counted once here, so this
+	 * is less than the sum of the individual shard footprints
+	 */
+	public MemoryFootprint getMemoryFootprint();
+	
 }
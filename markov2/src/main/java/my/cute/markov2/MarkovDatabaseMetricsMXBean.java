@@ -0,0 +1,124 @@
+package my.cute.markov2;
+
+import java.util.Map;
+
+/*
+ * runtime metrics for a MarkovDatabase
+ * every database registers one of these with the platform mbean server under
+ * my.cute.markov2:type=MarkovDatabase,id=<database id>, so it can be watched
+ * from jconsole/visualvm/any jmx collector, and it's also available directly
+ * via MarkovDatabase.getMetrics()
+ * all counts are cumulative since the first database with this id was created in
+ * this jvm
+ */
+public interface MarkovDatabaseMetricsMXBean {
+
+	/*
+	 * shard cache stats, straight from caffeine
+	 * the start shard is kept outside the cache and isn't counted here. hits/misses
+	 * only cover lookups (generation, contains); writes update shards through an
+	 * atomic compute on the cache's map, which caffeine doesn't count
+	 */
+	public long getCacheHitCount();
+
+	public long getCacheMissCount();
+
+	public double getCacheHitRate();
+
+	public long getCacheLoadCount();
+
+	public long getCacheTotalLoadTimeNanos();
+
+	public long getCacheEvictionCount();
+
+	/*
+	 * approximate number of shards currently held in the cache
+	 */
+	public long getResidentShardCount();
+
+	/*
+	 * shard loads from disk, including the start shard and shards loaded
+	 * outside of the cache (eg isValid())
+	 */
+	public long getShardLoadCount();
+
+	public long getShardLoadTimeNanos();
+
+	/*
+	 * shard saves to disk, both on eviction and from save()
+	 */
+	public long getShardSaveCount();
+
+	public long getShardSaveTimeNanos();
+
+	/*
+	 * shards that would have been saved but hadn't changed since they were loaded
+	 * or last saved, so nothing was written
+	 */
+	public long getShardSaveSkippedCount();
+
+	/*
+	 * shard saves that only wrote the shard's changes as a new run, and shard saves
+	 * that wrote the whole shard over its runs (see MarkovDatabaseBuilder.logStructuredStorage)
+	 */
+	public long getShardRunWriteCount();
+
+	public long getShardCompactionCount();
+
+	/*
+	 * latency percentiles in microseconds, keyed "count", "p50", "p90", "p99",
+	 * "p999" and "max"
+	 */
+	public Map<String, Double> getProcessLineLatencyMicros();
+
+	public Map<String, Double> getGenerateLineLatencyMicros();
+
+	/*
+	 * number of times line generation hit a bigram with no following words and
+	 * had to fall back to ending the line (see MarkovDatabaseImpl.getRandomWeightedNextWord())
+	 */
+	public long getNextWordFallbackCount();
+
+	/*
+	 * number of times a generated line was thrown away and generated again because
+	 * a backup load or clear() ran while it was being generated
+	 */
+	public long getGenerateLineRetryCount();
+
+	/*
+	 * number of times weighted sampling ran off the end of a set because its stored
+	 * total word count didn't match its contents ("totalWordCount probably wrong")
+	 */
+	public long getWordCountMismatchCount();
+
+	/*
+	 * generateLine() calls answered from the line pool, and calls that found it empty
+	 * and generated a line live (see MarkovDatabaseBuilder.linePoolSize()). both stay 0
+	 * with no pool
+	 */
+	public long getLinePoolHitCount();
+
+	public long getLinePoolMissCount();
+
+	/*
+	 * pooled lines thrown away because the database changed too much since they were
+	 * generated (see MarkovDatabaseBuilder.linePoolMaxAge())
+	 */
+	public long getLinePoolStaleCount();
+
+	/*
+	 * number of generateLineAsync() calls that needed a shard that wasn't in memory
+	 * and so were handed off to the io executor instead of finishing on the calling thread
+	 */
+	public long getAsyncHandoffCount();
+
+	/*
+	 * records written to the write-ahead log, and the fsyncs it took to write them
+	 * (see MarkovDatabaseBuilder.writeAheadLog()). concurrent writers share fsyncs,
+	 * so under load there should be noticeably fewer syncs than records
+	 */
+	public long getLogRecordCount();
+
+	public long getLogSyncCount();
+
+}
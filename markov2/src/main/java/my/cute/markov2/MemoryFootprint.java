@@ -0,0 +1,129 @@
+package my.cute.markov2;
+
+/*
+ * estimated retained heap of (part of) a database, split by what the memory is used for
+ * estimates assume a 64-bit jvm with compressed oops and compact strings (the default
+ * for heaps under 32gb), and they're built from the shape of the data rather than
+ * measured, so treat them as good approximations rather than exact numbers
+ *
+ * strings and tiny word sets are pooled and shared across the whole database (and
+ * across databases). a footprint counts each pooled object once, so the footprint of
+ * a single shard includes every string it references, while a whole database
+ * footprint counts strings shared between shards only once. consequently the
+ * per-shard footprints add up to more than the database footprint
+ */
+public final class MemoryFootprint {
+
+	private final long databaseMapBytes;
+	private final long bigramBytes;
+	private final long tinySetBytes;
+	private final long smallSetBytes;
+	private final long largeSetBytes;
+	private final long stringBytes;
+	private final long bigramCount;
+	private final long tinySetCount;
+	private final long smallSetCount;
+	private final long largeSetCount;
+
+	public MemoryFootprint(long databaseMapBytes, long bigramBytes, long tinySetBytes, long smallSetBytes,
+			long largeSetBytes, long stringBytes, long bigramCount, long tinySetCount, long smallSetCount,
+			long largeSetCount) {
+		this.databaseMapBytes = databaseMapBytes;
+		this.bigramBytes = bigramBytes;
+		this.tinySetBytes = tinySetBytes;
+		this.smallSetBytes = smallSetBytes;
+		this.largeSetBytes = largeSetBytes;
+		this.stringBytes = stringBytes;
+		this.bigramCount = bigramCount;
+		this.tinySetCount = tinySetCount;
+		this.smallSetCount = smallSetCount;
+		this.largeSetCount = largeSetCount;
+	}
+
+	/*
+	 * the shard objects and the maps holding bigram->followingwordset (DatabaseWrapper
+	 * and its ConcurrentHashMap table/nodes)
+	 */
+	public long getDatabaseMapBytes() {
+		return this.databaseMapBytes;
+	}
+
+	/*
+	 * Bigram keys, not including the strings they reference
+	 */
+	public long getBigramBytes() {
+		return this.bigramBytes;
+	}
+
+	/*
+	 * TinyFollowingWordSets (each distinct pooled instance counted once)
+	 */
+	public long getTinySetBytes() {
+		return this.tinySetBytes;
+	}
+
+	public long getSmallSetBytes() {
+		return this.smallSetBytes;
+	}
+
+	public long getLargeSetBytes() {
+		return this.largeSetBytes;
+	}
+
+	/*
+	 * distinct pooled strings referenced by bigrams and followingwordsets
+	 */
+	public long getStringBytes() {
+		return this.stringBytes;
+	}
+
+	public long getBigramCount() {
+		return this.bigramCount;
+	}
+
+	public long getTinySetCount() {
+		return this.tinySetCount;
+	}
+
+	public long getSmallSetCount() {
+		return this.smallSetCount;
+	}
+
+	public long getLargeSetCount() {
+		return this.largeSetCount;
+	}
+
+	public long getTotalBytes() {
+		return this.databaseMapBytes + this.bigramBytes + this.tinySetBytes + this.smallSetBytes
+				+ this.largeSetBytes + this.stringBytes;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("MemoryFootprint [totalBytes=");
+		builder.append(this.getTotalBytes());
+		builder.append(", databaseMapBytes=");
+		builder.append(databaseMapBytes);
+		builder.append(", bigramBytes=");
+		builder.append(bigramBytes);
+		builder.append(", tinySetBytes=");
+		builder.append(tinySetBytes);
+		builder.append(", smallSetBytes=");
+		builder.append(smallSetBytes);
+		builder.append(", largeSetBytes=");
+		builder.append(largeSetBytes);
+		builder.append(", stringBytes=");
+		builder.append(stringBytes);
+		builder.append(", bigramCount=");
+		builder.append(bigramCount);
+		builder.append(", tinySetCount=");
+		builder.append(tinySetCount);
+		builder.append(", smallSetCount=");
+		builder.append(smallSetCount);
+		builder.append(", largeSetCount=");
+		builder.append(largeSetCount);
+		builder.append("]");
+		return builder.toString();
+	}
+}
@@ -0,0 +1,74 @@
+package my.cute.markov2;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * source of randomness for line generation. every weighted choice made while
+ * generating a line (start word, each following word) is one nextInt() call
+ * set one for a whole database with MarkovDatabaseBuilder.randomSource(), or pass
+ * one to a single generateLine()/generateLines() call
+ *
+ * sources set on the builder are shared by every thread generating lines, so they
+ * need to be thread-safe. threadLocal() (the default) has no shared state at all,
+ * so it's the fastest choice when lines are generated from several threads
+ *
+ * seeded(seed) makes generation reproducible: the same seed, database contents
+ * and sequence of calls always give the same lines. generateLines() gives each line
+ * its own split() of the source before any of them start, so batches are
+ * reproducible too no matter how the lines are spread across threads
+ */
+@FunctionalInterface
+public interface RandomSource {
+
+	/*
+	 * uniformly distributed int in [0, bound). bound is always positive
+	 */
+	public int nextInt(int bound);
+
+	/*
+	 * returns a source for generating one line independently of this one (eg on
+	 * another thread). sources that are fine to share just return themselves;
+	 * seeded sources return a new independent generator seeded from this one
+	 */
+	public default RandomSource split() {
+		return this;
+	}
+
+	/*
+	 * ThreadLocalRandom. thread-safe without any shared state (no contention between
+	 * threads), not reproducible
+	 */
+	public static RandomSource threadLocal() {
+		return ThreadLocalSource.INSTANCE;
+	}
+
+	/*
+	 * SplittableRandom with the given seed, for reproducible generation
+	 * thread-safe, but reproducible only as long as the order of calls using it is
+	 * (eg when it's shared by several threads, which thread gets which number isn't)
+	 */
+	public static RandomSource seeded(long seed) {
+		return new SplittableRandomSource(seed);
+	}
+
+	/*
+	 * uses the given Random. java.util.Random is thread-safe, but every call from
+	 * every thread updates its single seed, so it scales poorly when shared
+	 */
+	public static RandomSource of(Random random) {
+		return random::nextInt;
+	}
+
+	/*
+	 * enum singleton so it has a readable toString()
+	 */
+	static enum ThreadLocalSource implements RandomSource {
+		INSTANCE;
+
+		@Override
+		public int nextInt(int bound) {
+			return ThreadLocalRandom.current().nextInt(bound);
+		}
+	}
+}
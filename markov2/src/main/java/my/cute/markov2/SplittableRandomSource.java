@@ -0,0 +1,31 @@
+package my.cute.markov2;
+
+import java.util.SplittableRandom;
+
+/*
+ * RandomSource.seeded(). SplittableRandom isn't thread-safe, so calls are
+ * synchronized; uncontended unless the same source is shared between threads,
+ * which is also when it stops being reproducible anyway
+ */
+final class SplittableRandomSource implements RandomSource {
+
+	private final SplittableRandom random;
+
+	SplittableRandomSource(long seed) {
+		this(new SplittableRandom(seed));
+	}
+
+	private SplittableRandomSource(SplittableRandom random) {
+		this.random = random;
+	}
+
+	@Override
+	public synchronized int nextInt(int bound) {
+		return this.random.nextInt(bound);
+	}
+
+	@Override
+	public synchronized RandomSource split() {
+		return new SplittableRandomSource(this.random.split());
+	}
+}
@@ -0,0 +1,131 @@
+package my.cute.markov2.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import gnu.trove.iterator.TLongIntIterator;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+/*
+ * which write-ahead log records a shard already has (see WriteAheadLog), so replaying
+ * the log after a crash doesn't apply anything twice to a shard that was saved
+ * (eg evicted) after some of the log's records reached it
+ * every record up to upTo is entirely in the shard. for records after that, counts
+ * has how many of the record's changes to this shard are in it. a record's changes
+ * are always applied in the same order (live and on replay), so replay skips that
+ * many and applies the rest
+ * saved as a trailer at the end of the shard's file, after the serialized data, so
+ * files without one (from before the log existed) still load. a shard with no
+ * trailer has nothing from the log
+ */
+final class AppliedRecords {
+
+	private static final long MAGIC = 0x6d6b76324c4f4731L;
+	/*
+	 * magic, upTo, number of counts
+	 */
+	private static final int FOOTER_BYTES = 8 + 8 + 4;
+	/*
+	 * counts are folded into upTo once there are this many
+	 */
+	private static final int PRUNE_SIZE = 16;
+
+	private long upTo = -1;
+	private TLongIntMap counts = null;
+
+	/*
+	 * records that the given number of the record's changes were just applied. watermark
+	 * is WriteAheadLog.getWatermark(): every record up to it is finished, so its
+	 * changes to this shard are all in by now
+	 */
+	synchronized void applied(long seq, int changes, long watermark) {
+		if(seq <= this.upTo) return;
+		if(this.counts == null) this.counts = new TLongIntHashMap(4);
+		this.counts.adjustOrPutValue(seq, changes, changes);
+		if(this.counts.size() >= PRUNE_SIZE) this.prune(watermark);
+	}
+
+	/*
+	 * true if the shard already has the index-th change (0-based) of the given record
+	 */
+	synchronized boolean has(long seq, int index) {
+		return seq <= this.upTo || (this.counts != null && index < this.counts.get(seq));
+	}
+
+	private void prune(long watermark) {
+		if(watermark <= this.upTo) return;
+		this.upTo = watermark;
+		if(this.counts == null) return;
+		for(TLongIntIterator iterator = this.counts.iterator(); iterator.hasNext();) {
+			iterator.advance();
+			if(iterator.key() <= this.upTo) iterator.remove();
+		}
+		if(this.counts.isEmpty()) this.counts = null;
+	}
+
+	/*
+	 * true if this shard has never seen the log
+	 */
+	synchronized boolean isEmpty() {
+		return this.upTo < 0 && this.counts == null;
+	}
+
+	/*
+	 * writes the trailer. watermark as in applied(), or -1 if there's no log
+	 */
+	synchronized void write(OutputStream output, long watermark) throws IOException {
+		this.prune(watermark);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		int size = this.counts == null ? 0 : this.counts.size();
+		if(this.counts != null) {
+			for(TLongIntIterator iterator = this.counts.iterator(); iterator.hasNext();) {
+				iterator.advance();
+				out.writeLong(iterator.key());
+				out.writeInt(iterator.value());
+			}
+		}
+		out.writeLong(this.upTo);
+		out.writeInt(size);
+		out.writeLong(MAGIC);
+		out.flush();
+		bytes.writeTo(output);
+	}
+
+	/*
+	 * reads the trailer from the end of the given shard file, if it has one
+	 */
+	synchronized void read(Path file) throws IOException {
+		this.upTo = -1;
+		this.counts = null;
+		if(!Files.isRegularFile(file)) return;
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+			long length = raf.length();
+			if(length < FOOTER_BYTES) return;
+			raf.seek(length - 8);
+			if(raf.readLong() != MAGIC) return;
+			raf.seek(length - FOOTER_BYTES);
+			long savedUpTo = raf.readLong();
+			int size = raf.readInt();
+			if(size < 0 || length < FOOTER_BYTES + size * 12L) return;
+			this.upTo = savedUpTo;
+			if(size == 0) return;
+			byte[] entries = new byte[size * 12];
+			raf.seek(length - FOOTER_BYTES - entries.length);
+			raf.readFully(entries);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(entries));
+			this.counts = new TLongIntHashMap(size * 2);
+			for(int i=0; i < size; i++) {
+				this.counts.put(in.readLong(), in.readInt());
+			}
+		}
+	}
+}
@@ -0,0 +1,409 @@
+package my.cute.markov2.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import gnu.trove.iterator.TObjectIntIterator;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+/*
+ * builds a database's shard files straight from a corpus, without going through
+ * MarkovDatabase/ShardCache, for rebuilding a database from a big chat history
+ * lines are tokenized and their bigrams counted in parallel (fork/join), the
+ * counts are merged per shard key, and write() turns each shard's counts into
+ * followingwordsets and saves it to the file DatabaseShard would load it from
+ * no locks, no cache evictions/reloads, and each shard is written exactly once
+ * the result is the same database processLine() on every line would have made
+ * (word order inside sets aside, so seeded generation can differ)
+ *
+ * offline only: the database must not be open anywhere while write() runs.
+ * anything already in the database is kept and the imported lines are added to
+ * it. the reverse index is deleted, since it'd be out of date (it's rebuilt on the
+ * next load() with MarkovDatabaseBuilder.reverseIndex() on)
+ * all counts are held in memory until write(), so the whole model has to fit,
+ * same as with an unbounded shardCacheSize
+ *
+ * 	new BulkImporter(builder).importText(history).importJson(export).write();
+ * or from the command line, see main()
+ */
+public final class BulkImporter {
+
+	private static final Logger logger = LoggerFactory.getLogger(BulkImporter.class);
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+	/*
+	 * splits on whitespace. what processLine() gets is up to the caller, so this is
+	 * only a default (see tokenizer())
+	 */
+	private static final Function<String, List<String>> DEFAULT_TOKENIZER = line ->
+	{
+		String trimmed = line.trim();
+		if(trimmed.isEmpty()) return Collections.emptyList();
+		return Arrays.asList(WHITESPACE.split(trimmed));
+	};
+	/*
+	 * lines read before handing them to the pool as one task
+	 */
+	private static final int CHUNK_SIZE = 16384;
+	/*
+	 * CountTask splits until it has at most this many lines
+	 */
+	private static final int COUNT_THRESHOLD = 1024;
+	/*
+	 * WriteTask splits until it has at most this many shards
+	 */
+	private static final int WRITE_THRESHOLD = 16;
+	/*
+	 * field chat exports keep message text in (see importJson(Path))
+	 */
+	private static final String DEFAULT_JSON_FIELD = "content";
+
+	private final String id;
+	/*
+	 * the database's directory and the shard directory inside it
+	 */
+	private final String path;
+	private final String databasePath;
+	private final FollowingWordSetPolicy policy;
+	private final ForkJoinPool pool;
+	private Function<String, List<String>> tokenizer = DEFAULT_TOKENIZER;
+	/*
+	 * shard key -> bigram -> following word -> count, for everything imported
+	 * since the last write()
+	 */
+	private final ConcurrentMap<String, Map<Bigram, TObjectIntMap<String>>> counts = new ConcurrentHashMap<>();
+	private final LongAdder lines = new LongAdder();
+
+	/*
+	 * imports into the database the given builder would open. counting runs on the
+	 * builder's executorService if it's a ForkJoinPool (default commonPool()),
+	 * otherwise on ForkJoinPool.commonPool()
+	 */
+	public BulkImporter(MarkovDatabaseBuilder builder) {
+		this.id = builder.getId();
+		this.path = builder.getParentPath() + File.separator + this.id;
+		this.databasePath = this.path + File.separator + MarkovDatabaseImpl.DATABASE_DIRECTORY_NAME;
+		this.policy = builder.getFollowingWordSetPolicy();
+		this.pool = builder.getExecutorService() instanceof ForkJoinPool ? (ForkJoinPool) builder.getExecutorService()
+				: ForkJoinPool.commonPool();
+	}
+
+	/*
+	 * splits each line of the corpus into the words processLine() would have been
+	 * given. an empty list skips the line. called from several threads at once
+	 * default splits on whitespace
+	 */
+	public BulkImporter tokenizer(Function<String, List<String>> tokenizer) {
+		if(tokenizer == null) throw new IllegalArgumentException("tokenizer must be non-null");
+		this.tokenizer = tokenizer;
+		return this;
+	}
+
+	/*
+	 * imports a utf-8 text file with one line per line
+	 */
+	public BulkImporter importText(Path file) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			Chunker chunker = new Chunker();
+			for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+				chunker.add(line);
+			}
+			chunker.finish();
+		}
+		return this;
+	}
+
+	/*
+	 * imports a json chat export, taking every "content" string as a line (the
+	 * field discord exports keep message text in)
+	 */
+	public BulkImporter importJson(Path file) throws IOException {
+		return this.importJson(file, DEFAULT_JSON_FIELD);
+	}
+
+	/*
+	 * imports a json chat export, taking every string value of a field with the
+	 * given name as a line, wherever it is in the document. read with gson's
+	 * streaming reader, so the export is never all in memory at once
+	 */
+	public BulkImporter importJson(Path file, String field) throws IOException {
+		try (JsonReader reader = new JsonReader(Files.newBufferedReader(file, StandardCharsets.UTF_8))) {
+			reader.setLenient(true);
+			Chunker chunker = new Chunker();
+			String name = null;
+			for(JsonToken token = reader.peek(); token != JsonToken.END_DOCUMENT; token = reader.peek()) {
+				switch(token) {
+					case BEGIN_OBJECT:
+						reader.beginObject();
+						name = null;
+						break;
+					case END_OBJECT:
+						reader.endObject();
+						break;
+					case BEGIN_ARRAY:
+						reader.beginArray();
+						name = null;
+						break;
+					case END_ARRAY:
+						reader.endArray();
+						break;
+					case NAME:
+						name = reader.nextName();
+						break;
+					case STRING:
+						String value = reader.nextString();
+						if(field.equals(name)) chunker.add(value);
+						name = null;
+						break;
+					default:
+						reader.skipValue();
+						name = null;
+				}
+			}
+			chunker.finish();
+		}
+		return this;
+	}
+
+	/*
+	 * imports the given lines
+	 */
+	public BulkImporter importLines(Iterable<String> lines) {
+		Chunker chunker = new Chunker();
+		for(String line : lines) {
+			chunker.add(line);
+		}
+		chunker.finish();
+		return this;
+	}
+
+	/*
+	 * number of (non-empty) lines imported since the last write()
+	 */
+	public long getLineCount() {
+		return this.lines.sum();
+	}
+
+	/*
+	 * writes everything imported so far into the database's shard files, merging
+	 * with whatever's already in them, and deletes the reverse index
+	 * returns the number of shards written. counts are dropped afterwards, so the
+	 * importer can be reused for another batch
+	 */
+	public int write() throws IOException {
+		List<String> keys = new ArrayList<>(this.counts.keySet());
+		if(keys.isEmpty()) return 0;
+		long start = System.nanoTime();
+		try {
+			this.pool.invoke(new WriteTask(keys, 0, keys.size()));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		FileUtils.deleteDirectory(new File(this.path + File.separator + MarkovDatabaseImpl.REVERSE_INDEX_DIRECTORY_NAME));
+		logger.info(this + ": wrote " + keys.size() + " shards (" + this.lines.sum() + " lines) in "
+				+ (System.nanoTime() - start) / 1000000 + "ms");
+		this.counts.clear();
+		this.lines.reset();
+		return keys.size();
+	}
+
+	/*
+	 * collects lines into chunks and counts each one on the pool while the next is
+	 * read. only a few chunks are left in flight at once, so reading can't get far
+	 * ahead of counting and fill memory with unprocessed lines
+	 */
+	private final class Chunker {
+		private final Deque<ForkJoinTask<Void>> pending = new ArrayDeque<>();
+		private final int maxPending = Math.max(2, pool.getParallelism() * 2);
+		private List<String> chunk = new ArrayList<>(CHUNK_SIZE);
+
+		void add(String line) {
+			this.chunk.add(line);
+			if(this.chunk.size() == CHUNK_SIZE) this.submit();
+		}
+
+		void finish() {
+			if(!this.chunk.isEmpty()) this.submit();
+			while(!this.pending.isEmpty()) {
+				this.pending.poll().join();
+			}
+		}
+
+		private void submit() {
+			this.pending.add(pool.submit(new CountTask(this.chunk, 0, this.chunk.size())));
+			this.chunk = new ArrayList<>(CHUNK_SIZE);
+			while(this.pending.size() > this.maxPending) {
+				this.pending.poll().join();
+			}
+		}
+	}
+
+	/*
+	 * tokenizes lines[start, end) and adds their bigrams to counts. each leaf counts
+	 * into its own maps first and then merges them shard by shard, so threads only
+	 * contend when they merge into the same shard at the same time
+	 */
+	private final class CountTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<String> lines;
+		private final int start;
+		private final int end;
+
+		CountTask(List<String> lines, int start, int end) {
+			this.lines = lines;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if(this.end - this.start > COUNT_THRESHOLD) {
+				int middle = (this.start + this.end) >>> 1;
+				invokeAll(new CountTask(this.lines, this.start, middle), new CountTask(this.lines, middle, this.end));
+				return;
+			}
+			Map<String, Map<Bigram, TObjectIntMap<String>>> local = new HashMap<>();
+			int counted = 0;
+			for(int i=this.start; i < this.end; i++) {
+				List<String> words = tokenizer.apply(this.lines.get(i));
+				if(words.isEmpty()) continue;
+				String[] line = MarkovDatabaseImpl.toLine(words);
+				for(int j=0; j < words.size(); j++) {
+					Bigram bigram = new Bigram(j == 0 ? MarkovDatabaseImpl.START_TOKEN : line[j - 1], line[j]);
+					local.computeIfAbsent(MarkovDatabaseImpl.getKey(bigram), key -> new HashMap<>())
+						.computeIfAbsent(bigram, key -> new TObjectIntHashMap<>(4))
+						.adjustOrPutValue(line[j + 1], 1, 1);
+				}
+				counted++;
+			}
+			for(Map.Entry<String, Map<Bigram, TObjectIntMap<String>>> shard : local.entrySet()) {
+				Map<Bigram, TObjectIntMap<String>> total = counts.computeIfAbsent(shard.getKey(), key -> new HashMap<>());
+				synchronized(total) {
+					for(Map.Entry<Bigram, TObjectIntMap<String>> bigram : shard.getValue().entrySet()) {
+						TObjectIntMap<String> existing = total.putIfAbsent(bigram.getKey(), bigram.getValue());
+						if(existing != null) {
+							for(TObjectIntIterator<String> iterator = bigram.getValue().iterator(); iterator.hasNext();) {
+								iterator.advance();
+								existing.adjustOrPutValue(iterator.key(), iterator.value(), iterator.value());
+							}
+						}
+					}
+				}
+			}
+			BulkImporter.this.lines.add(counted);
+		}
+	}
+
+	/*
+	 * builds and saves the shards for keys[start, end)
+	 */
+	private final class WriteTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<String> keys;
+		private final int start;
+		private final int end;
+
+		WriteTask(List<String> keys, int start, int end) {
+			this.keys = keys;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if(this.end - this.start > WRITE_THRESHOLD) {
+				int middle = (this.start + this.end) >>> 1;
+				invokeAll(new WriteTask(this.keys, this.start, middle), new WriteTask(this.keys, middle, this.end));
+				return;
+			}
+			for(int i=this.start; i < this.end; i++) {
+				try {
+					writeShard(this.keys.get(i));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+	}
+
+	/*
+	 * loads whatever the shard already has, adds the imported counts, and saves it
+	 * keys come from MarkovDatabaseImpl.getKey(), so the start key is the START_KEY
+	 * instance DatabaseShard compares against
+	 */
+	private void writeShard(String key) throws IOException {
+		DatabaseShard shard = key == MarkovDatabaseImpl.START_KEY
+				? new StartDatabaseShard(this.id, key, this.databasePath, this.policy)
+				: new DatabaseShard(this.id, key, this.databasePath, this.policy);
+		shard.load();
+		for(Map.Entry<Bigram, TObjectIntMap<String>> bigram : this.counts.get(key).entrySet()) {
+			shard.addFollowingWords(bigram.getKey(), bigram.getValue());
+		}
+		//not save(), which only logs failures
+		shard.saveAsObject();
+	}
+
+	@Override
+	public String toString() {
+		return "BulkImporter-" + this.id;
+	}
+
+	/*
+	 * BulkImporter <id> <parent path> <file>...
+	 * imports the given files into the database with the given id and parent path
+	 * (as passed to MarkovDatabaseBuilder) and writes it. files ending in .json are
+	 * read as chat exports (see importJson(Path)), anything else as text with one
+	 * line per line
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length < 3) {
+			System.err.println("usage: BulkImporter <id> <parent path> <file>...");
+			System.exit(1);
+		}
+		BulkImporter importer = new BulkImporter(new MarkovDatabaseBuilder(args[0], args[1]));
+		for(int i=2; i < args.length; i++) {
+			Path file = Paths.get(args[i]);
+			long before = importer.getLineCount();
+			if(file.getFileName().toString().toLowerCase().endsWith(".json")) {
+				importer.importJson(file);
+			} else {
+				importer.importText(file);
+			}
+			System.out.println(file + ": " + (importer.getLineCount() - before) + " lines");
+		}
+		long lines = importer.getLineCount();
+		int shards = importer.write();
+		System.out.println(args[0] + ": imported " + lines + " lines into " + shards + " shards");
+	}
+}
@@ -0,0 +1,212 @@
+package my.cute.markov2.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.PriorityQueue;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+/*
+ * words kept in order of count (highest first), for top-k queries (see TopWords)
+ * used by LargeFollowingWordSet and StartWordIndex, which build one the first time
+ * they're asked for their top words and keep it up to date from then on
+ * words with the same count sit next to each other in one run ("bucket"), and the
+ * first and last position of every bucket is tracked. a count going up by 1 swaps
+ * the word with the first word of its bucket and moves the bucket boundary, so it
+ * lands at the end of the next bucket up without anything else moving. going down
+ * by 1 does the same with the last word. so every change is O(1), and reading the
+ * top k is just the first k positions, apart from picking which of the words tied
+ * with the kth make the cut (see top())
+ * not thread-safe; owners only use it under their own lock
+ */
+final class CountOrder {
+
+	private static final int NONE = -1;
+
+	/*
+	 * position -> word/count, highest count first. only [0, size) is used
+	 */
+	private String[] words;
+	private int[] counts;
+	private int size;
+	/*
+	 * word -> position
+	 */
+	private final TObjectIntMap<String> positions;
+	/*
+	 * count -> first/last position of the words with that count
+	 */
+	private final TIntIntMap bucketFirst = new TIntIntHashMap(16, 0.5f, NONE, NONE);
+	private final TIntIntMap bucketLast = new TIntIntHashMap(16, 0.5f, NONE, NONE);
+
+	/*
+	 * builds the order from the first n of the given words and counts, which must be
+	 * distinct words with positive counts. O(n log n); arrays are taken over
+	 */
+	CountOrder(String[] words, int[] counts, int n) {
+		Integer[] indices = new Integer[n];
+		for(int i=0; i < n; i++) {
+			indices[i] = i;
+		}
+		Arrays.sort(indices, (first, second) -> Integer.compare(counts[second], counts[first]));
+		this.words = new String[Math.max(n, 4)];
+		this.counts = new int[this.words.length];
+		this.positions = new TObjectIntHashMap<>(Math.max(n * 2, 16), 0.5f, NONE);
+		for(int i=0; i < n; i++) {
+			this.words[i] = words[indices[i]];
+			this.counts[i] = counts[indices[i]];
+			this.positions.put(this.words[i], i);
+			if(i == 0 || this.counts[i] != this.counts[i - 1]) {
+				this.bucketFirst.put(this.counts[i], i);
+			}
+			this.bucketLast.put(this.counts[i], i);
+		}
+		this.size = n;
+	}
+
+	/*
+	 * adds 1 to the given word's count (adding the word if it's new)
+	 */
+	void increment(String word) {
+		int position = this.positions.get(word);
+		if(position == NONE) {
+			if(this.size == this.words.length) {
+				this.words = Arrays.copyOf(this.words, this.size * 2);
+				this.counts = Arrays.copyOf(this.counts, this.size * 2);
+			}
+			//every other word has a count of at least 1, so the end is the right place
+			position = this.size++;
+			this.words[position] = word;
+			this.counts[position] = 1;
+			this.positions.put(word, position);
+			this.joinBucket(1, position);
+			return;
+		}
+		int count = this.counts[position];
+		int first = this.bucketFirst.get(count);
+		this.swap(position, first);
+		this.leaveBucket(count, first, true);
+		//first is right after the end of the bucket for count + 1 (if there is one)
+		this.counts[first] = count + 1;
+		this.joinBucket(count + 1, first);
+	}
+
+	/*
+	 * takes 1 from the given word's count, dropping the word if it reaches 0
+	 * does nothing if the word isn't there
+	 */
+	void decrement(String word) {
+		int position = this.positions.get(word);
+		if(position == NONE) return;
+		int count = this.counts[position];
+		int last = this.bucketLast.get(count);
+		this.swap(position, last);
+		this.leaveBucket(count, last, false);
+		if(count == 1) {
+			//1 is the lowest bucket, so last is the last position
+			this.positions.remove(word);
+			this.words[last] = null;
+			this.size--;
+			return;
+		}
+		this.counts[last] = count - 1;
+		this.joinBucket(count - 1, last);
+	}
+
+	/*
+	 * the min(k, size()) highest counted words. if the kth word's count is shared
+	 * with words past it, the alphabetically first of that bucket make the cut, so
+	 * the result only depends on the counts and not on the order ties happen to be
+	 * in. picking them is O(t log k) for a bucket of t words, and nothing is sorted
+	 * except the k results (see TopWords). outOf is the owning set's total
+	 */
+	TopWords top(int k, long outOf) {
+		int end = Math.min(k, this.size);
+		String[] topWords = Arrays.copyOf(this.words, end);
+		int[] topCounts = Arrays.copyOf(this.counts, end);
+		if(end > 0 && end < this.size && this.counts[end] == this.counts[end - 1]) {
+			int count = this.counts[end - 1];
+			int first = this.bucketFirst.get(count);
+			int last = this.bucketLast.get(count);
+			//keep the alphabetically first (end - first) of the bucket, largest on top
+			int wanted = end - first;
+			PriorityQueue<String> kept = new PriorityQueue<>(wanted, Collections.reverseOrder());
+			for(int i=first; i <= last; i++) {
+				if(kept.size() < wanted) {
+					kept.add(this.words[i]);
+				} else if(this.words[i].compareTo(kept.peek()) < 0) {
+					kept.poll();
+					kept.add(this.words[i]);
+				}
+			}
+			for(int i=first; i < end; i++) {
+				topWords[i] = kept.poll();
+			}
+		}
+		return TopWords.of(topWords, topCounts, end, outOf);
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	/*
+	 * length of the word/count arrays, for memory footprint estimates
+	 */
+	int capacity() {
+		return this.words.length;
+	}
+
+	/*
+	 * number of distinct counts, for memory footprint estimates
+	 */
+	int buckets() {
+		return this.bucketFirst.size();
+	}
+
+	/*
+	 * the word at position (which is the first or last of its bucket) is leaving the
+	 * bucket for count
+	 */
+	private void leaveBucket(int count, int position, boolean fromFront) {
+		if(this.bucketFirst.get(count) == this.bucketLast.get(count)) {
+			this.bucketFirst.remove(count);
+			this.bucketLast.remove(count);
+		} else if(fromFront) {
+			this.bucketFirst.put(count, position + 1);
+		} else {
+			this.bucketLast.put(count, position - 1);
+		}
+	}
+
+	/*
+	 * position is right next to the bucket for count (or where it would be), so the
+	 * bucket just grows to cover it
+	 */
+	private void joinBucket(int count, int position) {
+		int first = this.bucketFirst.get(count);
+		if(first == NONE) {
+			this.bucketFirst.put(count, position);
+			this.bucketLast.put(count, position);
+		} else if(position < first) {
+			this.bucketFirst.put(count, position);
+		} else {
+			this.bucketLast.put(count, position);
+		}
+	}
+
+	private void swap(int i, int j) {
+		if(i == j) return;
+		String word = this.words[i];
+		this.words[i] = this.words[j];
+		this.words[j] = word;
+		int count = this.counts[i];
+		this.counts[i] = this.counts[j];
+		this.counts[j] = count;
+		this.positions.put(this.words[i], i);
+		this.positions.put(this.words[j], j);
+	}
+}
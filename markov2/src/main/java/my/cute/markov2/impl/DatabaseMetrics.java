@@ -0,0 +1,329 @@
+package my.cute.markov2.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import my.cute.markov2.MarkovDatabaseMetricsMXBean;
+
+/*
+ * collects runtime metrics for a single database (see MarkovDatabaseMetricsMXBean)
+ * one instance per database id. the deep parts of the database (shards, fws) only
+ * know the id of the database they belong to, so instances are kept in a registry
+ * keyed by id and looked up with DatabaseMetrics.of(id) - same idea as MyStringPool
+ * being project-wide instead of threading a reference through everything
+ * the database makes its instance with create() and takes it out of the registry
+ * again with release() when it's closed, so a closed database isn't kept reachable
+ * through the registry (the cache suppliers hold its ShardCache)
+ */
+final class DatabaseMetrics implements MarkovDatabaseMetricsMXBean {
+
+	private static final Logger logger = LoggerFactory.getLogger(DatabaseMetrics.class);
+	private static final ConcurrentMap<String, DatabaseMetrics> REGISTRY = new ConcurrentHashMap<>();
+	private static final String OBJECT_NAME_PREFIX = "my.cute.markov2:type=MarkovDatabase,id=";
+
+	static DatabaseMetrics of(String databaseId) {
+		return REGISTRY.computeIfAbsent(databaseId, DatabaseMetrics::new);
+	}
+
+	/*
+	 * a fresh instance for a newly created database. replaces whatever the registry
+	 * had for the id (left by a database object that was never closed, or by shards
+	 * used without a database, eg BulkImporter), so counters never carry over from
+	 * another database object
+	 */
+	static DatabaseMetrics create(String databaseId) {
+		DatabaseMetrics metrics = new DatabaseMetrics(databaseId);
+		REGISTRY.put(databaseId, metrics);
+		return metrics;
+	}
+
+	private final String id;
+	/*
+	 * supplied by the ShardCache once it's built. before that (or for shards loaded
+	 * without a cache) cache stats just read as empty
+	 */
+	private volatile Supplier<CacheStats> cacheStats = CacheStats::empty;
+	private volatile Supplier<Long> residentShards = () -> 0L;
+	/*
+	 * the name this was registered under by registerMBean(), or null
+	 */
+	private volatile ObjectName registeredName = null;
+
+	private final LongAdder shardLoads = new LongAdder();
+	private final LongAdder shardLoadNanos = new LongAdder();
+	private final LongAdder shardSaves = new LongAdder();
+	private final LongAdder shardSaveNanos = new LongAdder();
+	private final LongAdder shardSavesSkipped = new LongAdder();
+	private final LongAdder shardRunWrites = new LongAdder();
+	private final LongAdder shardCompactions = new LongAdder();
+	private final LongAdder nextWordFallbacks = new LongAdder();
+	private final LongAdder generateLineRetries = new LongAdder();
+	private final LongAdder wordCountMismatches = new LongAdder();
+	private final LongAdder linePoolHits = new LongAdder();
+	private final LongAdder linePoolMisses = new LongAdder();
+	private final LongAdder linePoolStale = new LongAdder();
+	private final LongAdder asyncHandoffs = new LongAdder();
+	private final LongAdder logRecords = new LongAdder();
+	private final LongAdder logSyncs = new LongAdder();
+	private final LatencyHistogram processLineLatency = new LatencyHistogram();
+	private final LatencyHistogram generateLineLatency = new LatencyHistogram();
+
+	private DatabaseMetrics(String id) {
+		this.id = id;
+	}
+
+	void bindCache(Supplier<CacheStats> stats, Supplier<Long> size) {
+		this.cacheStats = stats;
+		this.residentShards = size;
+	}
+
+	/*
+	 * registers this with the platform mbean server. replaces anything already
+	 * registered under the same name (eg a previous database object with this id)
+	 * failures are logged and otherwise ignored; metrics aren't worth failing over
+	 */
+	void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(this.id));
+			try {
+				server.registerMBean(this, name);
+			} catch (InstanceAlreadyExistsException ex) {
+				server.unregisterMBean(name);
+				server.registerMBean(this, name);
+			}
+			this.registeredName = name;
+		} catch (JMException | SecurityException ex) {
+			logger.warn(this + ": couldn't register metrics mbean: " + ex.getLocalizedMessage(), ex);
+		}
+	}
+
+	/*
+	 * takes this out of the registry and unregisters its mbean, once its database is
+	 * closed. does neither if a newer database with the same id has replaced it
+	 * since (see create()), since the registry entry and mbean are that one's now
+	 */
+	void release() {
+		this.cacheStats = CacheStats::empty;
+		this.residentShards = () -> 0L;
+		if(!REGISTRY.remove(this.id, this)) return;
+		ObjectName name = this.registeredName;
+		if(name == null) return;
+		this.registeredName = null;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException | SecurityException ex) {
+			logger.warn(this + ": couldn't unregister metrics mbean: " + ex.getLocalizedMessage(), ex);
+		}
+	}
+
+	void recordShardLoad(long nanos) {
+		this.shardLoads.increment();
+		this.shardLoadNanos.add(nanos);
+	}
+
+	void recordShardSave(long nanos) {
+		this.shardSaves.increment();
+		this.shardSaveNanos.add(nanos);
+	}
+
+	void recordShardSaveSkipped() {
+		this.shardSavesSkipped.increment();
+	}
+
+	void recordShardRunWrite() {
+		this.shardRunWrites.increment();
+	}
+
+	void recordShardCompaction() {
+		this.shardCompactions.increment();
+	}
+
+	void recordProcessLine(long nanos) {
+		this.processLineLatency.record(nanos);
+	}
+
+	void recordGenerateLine(long nanos) {
+		this.generateLineLatency.record(nanos);
+	}
+
+	void recordNextWordFallback() {
+		this.nextWordFallbacks.increment();
+	}
+
+	void recordGenerateLineRetry() {
+		this.generateLineRetries.increment();
+	}
+
+	void recordWordCountMismatch() {
+		this.wordCountMismatches.increment();
+	}
+
+	void recordLinePoolHit() {
+		this.linePoolHits.increment();
+	}
+
+	void recordLinePoolMiss() {
+		this.linePoolMisses.increment();
+	}
+
+	void recordLinePoolStale() {
+		this.linePoolStale.increment();
+	}
+
+	void recordAsyncHandoff() {
+		this.asyncHandoffs.increment();
+	}
+
+	/*
+	 * one write-ahead log fsync, covering the given number of records
+	 */
+	void recordLogSync(int records) {
+		this.logRecords.add(records);
+		this.logSyncs.increment();
+	}
+
+	@Override
+	public long getCacheHitCount() {
+		return this.cacheStats.get().hitCount();
+	}
+
+	@Override
+	public long getCacheMissCount() {
+		return this.cacheStats.get().missCount();
+	}
+
+	@Override
+	public double getCacheHitRate() {
+		return this.cacheStats.get().hitRate();
+	}
+
+	@Override
+	public long getCacheLoadCount() {
+		return this.cacheStats.get().loadCount();
+	}
+
+	@Override
+	public long getCacheTotalLoadTimeNanos() {
+		return this.cacheStats.get().totalLoadTime();
+	}
+
+	@Override
+	public long getCacheEvictionCount() {
+		return this.cacheStats.get().evictionCount();
+	}
+
+	@Override
+	public long getResidentShardCount() {
+		return this.residentShards.get();
+	}
+
+	@Override
+	public long getShardLoadCount() {
+		return this.shardLoads.sum();
+	}
+
+	@Override
+	public long getShardLoadTimeNanos() {
+		return this.shardLoadNanos.sum();
+	}
+
+	@Override
+	public long getShardSaveCount() {
+		return this.shardSaves.sum();
+	}
+
+	@Override
+	public long getShardSaveTimeNanos() {
+		return this.shardSaveNanos.sum();
+	}
+
+	@Override
+	public long getShardSaveSkippedCount() {
+		return this.shardSavesSkipped.sum();
+	}
+
+	@Override
+	public long getShardRunWriteCount() {
+		return this.shardRunWrites.sum();
+	}
+
+	@Override
+	public long getShardCompactionCount() {
+		return this.shardCompactions.sum();
+	}
+
+	@Override
+	public Map<String, Double> getProcessLineLatencyMicros() {
+		return this.processLineLatency.summaryMicros();
+	}
+
+	@Override
+	public Map<String, Double> getGenerateLineLatencyMicros() {
+		return this.generateLineLatency.summaryMicros();
+	}
+
+	@Override
+	public long getNextWordFallbackCount() {
+		return this.nextWordFallbacks.sum();
+	}
+
+	@Override
+	public long getGenerateLineRetryCount() {
+		return this.generateLineRetries.sum();
+	}
+
+	@Override
+	public long getWordCountMismatchCount() {
+		return this.wordCountMismatches.sum();
+	}
+
+	@Override
+	public long getLinePoolHitCount() {
+		return this.linePoolHits.sum();
+	}
+
+	@Override
+	public long getLinePoolMissCount() {
+		return this.linePoolMisses.sum();
+	}
+
+	@Override
+	public long getLinePoolStaleCount() {
+		return this.linePoolStale.sum();
+	}
+
+	@Override
+	public long getAsyncHandoffCount() {
+		return this.asyncHandoffs.sum();
+	}
+
+	@Override
+	public long getLogRecordCount() {
+		return this.logRecords.sum();
+	}
+
+	@Override
+	public long getLogSyncCount() {
+		return this.logSyncs.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "DatabaseMetrics-" + this.id;
+	}
+}
@@ -7,6 +7,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -20,6 +21,8 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
 import org.nustaq.serialization.FSTConfiguration;
 import org.nustaq.serialization.FSTObjectInput;
@@ -31,6 +34,12 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
 
+import gnu.trove.TCollections;
+import gnu.trove.iterator.TObjectIntIterator;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import my.cute.markov2.RandomSource;
 import my.cute.markov2.exceptions.FollowingWordRemovalException;
 import my.cute.markov2.exceptions.ReadObjectException;
 
@@ -51,14 +60,6 @@ class DatabaseShard {
 	//end gson fields
 	
 	private static final SaveType DEFAULT_SAVE_TYPE = SaveType.SERIALIZE;
-	/*
-	 * these control which FollowingWordSet implementation is used at different database sizes
-	 * TinyFollowingWordSet is used until the set contains at least SMALL_WORD_SET_THRESHOLD
-	 * entries, at which point it's converted to a SmallFollowingWordSet, which is converted to
-	 * LargeFollowingWordSet at LARGE_WORD_SET_THRESHOLD entries
-	 */
-	private static final int LARGE_WORD_SET_THRESHOLD = 24;
-	private static final int SMALL_WORD_SET_THRESHOLD = 4;
 	
 	protected static final FSTConfiguration CONF = FSTConfiguration.getDefaultConfiguration();
 	
@@ -105,13 +106,48 @@ class DatabaseShard {
 	 * goal is to minimize memory use as much as possible, sacrificing speed if necessary (to a point...)
 	 */
 	protected DatabaseWrapper database;
+	/*
+	 * metrics for the parent database. shard saves/loads are timed here since every
+	 * save/load path goes through save(SaveType)/load(SaveType)
+	 */
+	protected final DatabaseMetrics metrics;
+	/*
+	 * controls which FollowingWordSet implementation is used for each bigram as
+	 * words are added and removed (tiny -> small -> large and back)
+	 */
+	protected final FollowingWordSetPolicy policy;
+	/*
+	 * which write-ahead log records this shard already has (see AppliedRecords)
+	 * only touched inside ShardCache's compute() for this shard's key, and on save/load
+	 */
+	protected final AppliedRecords appliedRecords = new AppliedRecords();
+	/*
+	 * WriteAheadLog.getWatermark() of the parent database, or null if it has no log
+	 */
+	protected LongSupplier logWatermark = null;
+	/*
+	 * bumped on every change. savedChanges is what it was when the shard was last
+	 * loaded or saved, so a shard whose count still matches has nothing new to write
+	 * (see isDirty()). a counter rather than a flag so a change that lands while a
+	 * save is running still counts as unsaved afterwards
+	 */
+	private final AtomicLong changes = new AtomicLong();
+	private volatile long savedChanges = 0;
+	/*
+	 * this shard's log-structured runs (see ShardRuns). only keeps a delta if the
+	 * database has log-structured storage on, but runs on disk are merged on load
+	 * either way
+	 */
+	protected ShardRuns runs = new ShardRuns(false);
 	
-	DatabaseShard(String parentId, String key, String parentPath) {
+	DatabaseShard(String parentId, String key, String parentPath, FollowingWordSetPolicy policy) {
 		this.parentDatabaseId = parentId;
 		this.key = key;
 		String pathString = this.determinePath(parentPath);
 		this.path = Paths.get(pathString);
 		this.database = new DatabaseWrapper(this.key, this.parentDatabaseId);
+		this.metrics = DatabaseMetrics.of(this.parentDatabaseId);
+		this.policy = policy;
 	}
 	
 	/*
@@ -125,20 +161,33 @@ class DatabaseShard {
 	 * ie, use in atomic compute() from in ShardCache
 	 */
 	boolean addFollowingWord(Bigram bigram, String followingWord) {
+		boolean created = this.addWord(bigram, followingWord);
+		this.runs.record(bigram, followingWord, 1);
+		this.modified();
+		return created;
+	}
+	
+	private boolean addWord(Bigram bigram, String followingWord) {
 		FollowingWordSet followingWordSet = this.database.get(bigram);
 		if(followingWordSet != null) {
 			if(followingWordSet instanceof TinyFollowingWordSet) {
-				if(followingWordSet.size() >= SMALL_WORD_SET_THRESHOLD) {
-					this.database.put(bigram, new SmallFollowingWordSet(followingWordSet, followingWord, bigram, this.parentDatabaseId));
+				if(this.policy.shouldPromoteTiny(followingWordSet.size())) {
+					WordSetConversionEvent conversion = new WordSetConversionEvent();
+					conversion.begin();
+					FollowingWordSet smallSet = new SmallFollowingWordSet(followingWordSet, followingWord, bigram, this.parentDatabaseId);
+					this.database.put(bigram, smallSet);
+					this.commitConversion(conversion, bigram, followingWordSet, smallSet);
 				} else {
 					this.database.put(bigram, TinyFollowingWordSet.of(followingWordSet, followingWord));
 				}
 			} else {
 				followingWordSet.addWord(followingWord);
-				//check for replacing small set with large
+				//check for replacing small set with large or vice versa
 				//better way to do this?
-				if(followingWordSet.size() >= LARGE_WORD_SET_THRESHOLD && followingWordSet instanceof SmallFollowingWordSet) {
-					this.database.put(bigram, new LargeFollowingWordSet((SmallFollowingWordSet)followingWordSet));
+				if(followingWordSet instanceof SmallFollowingWordSet) {
+					this.checkSmallPromotion(bigram, (SmallFollowingWordSet)followingWordSet);
+				} else {
+					this.checkLargeDemotion(bigram, (LargeFollowingWordSet)followingWordSet);
 				}
 			}
 			return false;
@@ -147,6 +196,89 @@ class DatabaseShard {
 		}
 	}
 	
+	/*
+	 * adds counts.get(word) occurrences of every word in counts for the given bigram
+	 * at once, building the set straight from the counts in whichever implementation
+	 * the policy would have ended up with (see BulkImporter). any set the bigram
+	 * already has is merged in. counts isn't modified
+	 * not thread-safe, only used on shards nothing else can see
+	 */
+	void addFollowingWords(Bigram bigram, TObjectIntMap<String> counts) {
+		this.addWords(bigram, counts);
+		for(TObjectIntIterator<String> iterator = counts.iterator(); iterator.hasNext();) {
+			iterator.advance();
+			this.runs.record(bigram, iterator.key(), iterator.value());
+		}
+		this.modified();
+	}
+	
+	private void addWords(Bigram bigram, TObjectIntMap<String> counts) {
+		FollowingWordSet existing = this.database.get(bigram);
+		if(existing != null) {
+			TObjectIntMap<String> merged = new TObjectIntHashMap<>(counts);
+			for(String word : existing.getWords()) {
+				merged.adjustOrPutValue(word, 1, 1);
+			}
+			counts = merged;
+		}
+		int total = 0;
+		for(TObjectIntIterator<String> iterator = counts.iterator(); iterator.hasNext();) {
+			iterator.advance();
+			total += iterator.value();
+		}
+		if(this.policy.shouldPromoteSmall(total, counts.size())) {
+			TObjectIntMap<String> words = new TObjectIntHashMap<>(counts.size() * 11 / 8, 0.8f);
+			words.putAll(counts);
+			this.database.put(bigram, new LargeFollowingWordSet(TCollections.synchronizedMap(words), total, bigram, 
+					this.parentDatabaseId));
+			return;
+		}
+		List<String> words = new ArrayList<>(total);
+		for(TObjectIntIterator<String> iterator = counts.iterator(); iterator.hasNext();) {
+			iterator.advance();
+			for(int i=0; i < iterator.value(); i++) {
+				words.add(iterator.key());
+			}
+		}
+		if(this.policy.shouldPromoteTiny(total - 1)) {
+			this.database.put(bigram, new SmallFollowingWordSet(Collections.synchronizedList(words), bigram, 
+					this.parentDatabaseId));
+		} else {
+			this.database.put(bigram, TinyFollowingWordSet.of(words));
+		}
+	}
+	
+	/*
+	 * replaces the given small set with a large one if the policy says it's repeated
+	 * enough to be worth it. only actually counts unique words every so often
+	 * (see FollowingWordSetPolicy.shouldCheckSmall())
+	 */
+	private void checkSmallPromotion(Bigram bigram, SmallFollowingWordSet smallSet) {
+		int size = smallSet.size();
+		if(!this.policy.shouldCheckSmall(size)) return;
+		if(this.policy.shouldPromoteSmall(size, smallSet.countUniqueWords())) {
+			WordSetConversionEvent conversion = new WordSetConversionEvent();
+			conversion.begin();
+			FollowingWordSet largeSet = new LargeFollowingWordSet(smallSet);
+			this.database.put(bigram, largeSet);
+			this.commitConversion(conversion, bigram, smallSet, largeSet);
+		}
+	}
+	
+	/*
+	 * replaces the given large set with a small one if it's gotten too small or
+	 * its words aren't repeated enough anymore. cheap, so done on every add/remove
+	 */
+	private void checkLargeDemotion(Bigram bigram, LargeFollowingWordSet largeSet) {
+		if(this.policy.shouldDemoteLarge(largeSet.size(), largeSet.numEntries())) {
+			WordSetConversionEvent conversion = new WordSetConversionEvent();
+			conversion.begin();
+			FollowingWordSet smallSet = new SmallFollowingWordSet(largeSet);
+			this.database.put(bigram, smallSet);
+			this.commitConversion(conversion, bigram, largeSet, smallSet);
+		}
+	}
+	
 	/*
 	 * start with tinyfollowingwordset
 	 * returns true if a new entry was created in the database as a result of this call
@@ -161,11 +293,22 @@ class DatabaseShard {
 	 * throws IllegalArgumentException if the given bigram isn't present in the shard
 	 * (shouldn't happen normally, but could if there are issues when adding words)
 	 */
-	String getFollowingWord(Bigram bigram) throws IllegalArgumentException {
+	String getFollowingWord(Bigram bigram, RandomSource random) throws IllegalArgumentException {
 		FollowingWordSet followingWordSet = this.database.get(bigram);
 		if(followingWordSet == null) throw new IllegalArgumentException(bigram.toString() + " not found in " + this.toString());
 		
-		return followingWordSet.getRandomWeightedWord();
+		return followingWordSet.getRandomWeightedWord(random);
+	}
+	
+	/*
+	 * gets the k most frequent words following the given bigram (see TopWords)
+	 * throws IllegalArgumentException if the given bigram isn't present in the shard
+	 */
+	TopWords getTopFollowingWords(Bigram bigram, int k) throws IllegalArgumentException {
+		FollowingWordSet followingWordSet = this.database.get(bigram);
+		if(followingWordSet == null) throw new IllegalArgumentException(bigram.toString() + " not found in " + this.toString());
+		
+		return followingWordSet.getTopWords(k);
 	}
 	
 	/*
@@ -195,9 +338,6 @@ class DatabaseShard {
 	}
 	
 	/*
-	 * TODO if remove below a set size threshold, replace
-	 * eg if remove when at 24 items, switch from largefws to smallfws
-	 * 
 	 * removes a single occurrence of the given followingWord for the given bigram
 	 * similar to addFollowingWord(Bigram, String), there are concurrency problems
 	 * here if this isnt done in an atomic context
@@ -225,48 +365,160 @@ class DatabaseShard {
 		} else if(followingWordSet.remove(followingWord)) {
 			//small or large followingwordset. remove word and change implementation if necessary
 
-			if(followingWordSet instanceof SmallFollowingWordSet && followingWordSet.size() < SMALL_WORD_SET_THRESHOLD) {
-				this.database.put(bigram, TinyFollowingWordSet.of(followingWordSet));
+			if(followingWordSet instanceof SmallFollowingWordSet && this.policy.shouldDemoteSmall(followingWordSet.size())) {
+				WordSetConversionEvent conversion = new WordSetConversionEvent();
+				conversion.begin();
+				FollowingWordSet tinySet = TinyFollowingWordSet.of(followingWordSet);
+				this.database.put(bigram, tinySet);
+				this.commitConversion(conversion, bigram, followingWordSet, tinySet);
 			}
-			else if(followingWordSet instanceof LargeFollowingWordSet && followingWordSet.size() < LARGE_WORD_SET_THRESHOLD) {
-				this.database.put(bigram, new SmallFollowingWordSet(followingWordSet));
+			else if(followingWordSet instanceof LargeFollowingWordSet) {
+				this.checkLargeDemotion(bigram, (LargeFollowingWordSet)followingWordSet);
 			}
-			//set was small or large, so set size was at least 4, so set can't be empty
-			//& therefore no need to possibly remove entry for bigram from database
+			//set was small or large, so set size was at least smallMinSize (>= 1), so set can't
+			//be empty & therefore no need to possibly remove entry for bigram from database
 		} else {
 			//remove was unsuccessful, so structure of shard is probably not what was expected
 			throw new FollowingWordRemovalException("illegal attempt to remove word '" + followingWord + "' from fws for bigram "
 					+ bigram + " in " + this + ": word not found");
 		}
-		
+		this.runs.record(bigram, followingWord, -1);
+		this.modified();
+	}
+	
+	/*
+	 * finishes a jfr event started just before a followingwordset was replaced with
+	 * a different implementation. fields are only filled in if the event is enabled
+	 */
+	private void commitConversion(WordSetConversionEvent event, Bigram bigram, FollowingWordSet from, FollowingWordSet to) {
+		event.end();
+		if(event.shouldCommit()) {
+			event.databaseId = this.parentDatabaseId;
+			event.key = this.key;
+			event.bigram = bigram.toString();
+			event.from = from.getClass().getSimpleName();
+			event.to = to.getClass().getSimpleName();
+			event.size = to.size();
+			event.commit();
+		}
 	}
 	
 	boolean remove(Bigram bigram) {
+		this.modified();
 		return this.database.remove(bigram);
 	}
 	
-	void save() {
-		this.save(DEFAULT_SAVE_TYPE);
+	/*
+	 * notes that this shard has changed since it was last saved
+	 * called after the change itself (and after it's in the runs delta), so a save
+	 * that started in between still leaves the shard dirty
+	 */
+	protected void modified() {
+		this.changes.incrementAndGet();
+	}
+	
+	/*
+	 * true if this shard has changes that aren't in its file yet. clean shards are
+	 * dropped on eviction and skipped by save() without writing anything
+	 */
+	boolean isDirty() {
+		return this.changes.get() != this.savedChanges;
+	}
+	
+	/*
+	 * true if the shard has piled up enough runs that it should be written out whole
+	 * the next time nothing else can touch it
+	 */
+	boolean needsCompaction() {
+		return this.runs.count() >= ShardRuns.MAX_RUNS;
+	}
+	
+	void setLogStructured(boolean logStructured) {
+		this.runs = new ShardRuns(logStructured);
+	}
+	
+	void setLogWatermark(LongSupplier logWatermark) {
+		this.logWatermark = logWatermark;
+	}
+	
+	/*
+	 * notes that the given number of changes from the given write-ahead log record
+	 * were just applied to this shard. does nothing for unlogged changes
+	 */
+	void logged(long seq, int changes) {
+		if(seq == WriteAheadLog.NO_RECORD) return;
+		this.appliedRecords.applied(seq, changes, this.logWatermark == null ? -1 : this.logWatermark.getAsLong());
+	}
+	
+	/*
+	 * true if the index-th change this shard got from the given record is already in it
+	 * (replay)
+	 */
+	boolean hasLogged(long seq, int index) {
+		return this.appliedRecords.has(seq, index);
+	}
+	
+	boolean save() {
+		return this.save(DEFAULT_SAVE_TYPE);
+	}
+	
+	boolean save(SaveType saveType) {
+		return this.save(saveType, true);
 	}
 	
 	/*
 	 * used to save shard to disk
 	 * serializing is done via fast-serialization library. json currently not supported
+	 * with log-structured storage, only the changes since the last save are written, as
+	 * a new run (see ShardRuns). the whole shard is only written out again (compaction)
+	 * if exclusive is true, meaning nothing can change the shard while it's being written
+	 * (eviction, or ShardCache.save() compacting a resident shard), and it has piled up
+	 * enough runs. a run is just the delta, so writing
+	 * one is fine while the shard is still being changed
+	 * returns false if the save failed (already logged)
 	 */
-	void save(SaveType saveType) {
+	boolean save(SaveType saveType, boolean exclusive) {
+		long start = System.nanoTime();
+		long saving = this.changes.get();
+		boolean saved = true;
 		if(saveType == SaveType.JSON) {
 			try {
 				this.saveAsText();
 			} catch (IOException e) {
 				logger.warn(this + ": couldn't save (json)! ex: " + e.getLocalizedMessage(), e);
+				saved = false;
+			}
+		} else if(this.runs.isEnabled() && !(exclusive && this.runs.shouldCompact(this.fileSize()))) {
+			Map<Bigram, TObjectIntMap<String>> delta = this.runs.take();
+			/*
+			 * nothing new since the last run. whatever left the shard dirty is already on
+			 * disk, or is waiting on a compaction, so it stays dirty
+			 */
+			if(delta == null) return true;
+			try {
+				if(!Files.exists(this.path)) this.saveEmpty();
+				this.runs.write(this.path, delta, this::writeAppliedRecords);
+				this.metrics.recordShardRunWrite();
+			} catch (IOException e) {
+				this.runs.restore(delta);
+				logger.warn(this + ": couldn't save run! ex: " + e.getLocalizedMessage(), e);
+				saved = false;
 			}
 		} else {
+			Map<Bigram, TObjectIntMap<String>> delta = this.runs.take();
+			boolean compacting = this.runs.count() > 0;
 			try {
 				this.saveAsObject();
+				if(compacting) this.metrics.recordShardCompaction();
 			} catch (IOException e) {
+				this.runs.restore(delta);
 				logger.warn(this + ": couldn't save (serialize)! ex: " + e.getLocalizedMessage(), e);
+				saved = false;
 			}
 		}
+		this.metrics.recordShardSave(System.nanoTime() - start);
+		if(saved) this.savedChanges = saving;
+		return saved;
 	}
 	
 	void load() throws IOException {
@@ -274,6 +526,18 @@ class DatabaseShard {
 	}
 	
 	void load(SaveType saveType) throws IOException {
+		this.load(saveType, true);
+	}
+	
+	/*
+	 * recover is whether to clean up after a compaction that didn't finish (see
+	 * ShardRuns.scan()). only the cache's load does, anything else reading the shard's
+	 * files while the database is open just reads them
+	 */
+	void load(SaveType saveType, boolean recover) throws IOException {
+		ShardLoadEvent event = new ShardLoadEvent();
+		event.begin();
+		long start = System.nanoTime();
 		if(saveType == SaveType.JSON) {
 			try {
 				this.loadFromText();
@@ -287,6 +551,63 @@ class DatabaseShard {
 			} catch (FileNotFoundException e) {
 //				logger.info("couldn't load (deserialize) " + this.toString() + ", file not found (first load?) ex: " + e.getLocalizedMessage());
 			} 
+			this.mergeRuns(recover);
+			//the newest run was written last, so its trailer is the current one
+			Path newest = this.runs.newest();
+			this.appliedRecords.read(newest == null ? this.path : newest);
+		}
+		this.savedChanges = this.changes.get();
+		//too many runs to keep merging on every load, so compact on the next eviction
+		if(this.needsCompaction()) this.modified();
+		this.metrics.recordShardLoad(System.nanoTime() - start);
+		event.end();
+		if(event.shouldCommit()) {
+			event.databaseId = this.parentDatabaseId;
+			event.key = this.key;
+			event.bytes = this.fileSize();
+			event.commit();
+		}
+	}
+	
+	/*
+	 * applies this shard's runs (if it has any) on top of what was just loaded from its
+	 * file, oldest first. the delta that builds up doing so is thrown away, since
+	 * it's already on disk
+	 */
+	private void mergeRuns(boolean recover) throws IOException {
+		for(Path run : recover ? this.runs.scan(this.path) : this.runs.list(this.path)) {
+			for(Map.Entry<Bigram, TObjectIntMap<String>> entry : ShardRuns.read(run).entrySet()) {
+				Bigram bigram = entry.getKey();
+				TObjectIntMap<String> added = new TObjectIntHashMap<>();
+				for(TObjectIntIterator<String> iterator = entry.getValue().iterator(); iterator.hasNext();) {
+					iterator.advance();
+					if(iterator.value() > 0) {
+						added.put(iterator.key(), iterator.value());
+						continue;
+					}
+					try {
+						for(int i=0; i < -iterator.value(); i++) {
+							this.removeFollowingWord(bigram, iterator.key());
+						}
+					} catch (FollowingWordRemovalException e) {
+						logger.warn(this + ": couldn't apply removal from " + run + ": " + e.getLocalizedMessage());
+					}
+				}
+				if(!added.isEmpty()) this.addFollowingWords(bigram, added);
+			}
+		}
+		this.runs.take();
+	}
+	
+	/*
+	 * size of this shard's file on disk, or 0 if it doesn't exist (yet)
+	 * used for jfr events and deciding when to compact
+	 */
+	long fileSize() {
+		try {
+			return Files.size(this.path);
+		} catch (IOException e) {
+			return 0;
 		}
 	}
 	
@@ -303,17 +624,47 @@ class DatabaseShard {
 	
 	void saveAsObject() throws IOException {
 		FileOutputStream fileOutputStream = null;
+		//next to the old file if this is replacing runs (see ShardRuns.compacted())
+		Path target = this.runs.target(this.path);
 		try {
-			fileOutputStream = new FileOutputStream(this.path.toString());
+			fileOutputStream = new FileOutputStream(target.toString());
 		} catch (FileNotFoundException ex) {
 			//probably first load and parent directory doesn't exist. create it and try again
 			this.path.toFile().getParentFile().mkdirs();
-			fileOutputStream = new FileOutputStream(this.path.toString());
+			fileOutputStream = new FileOutputStream(target.toString());
 		}
 		FSTObjectOutput out = CONF.getObjectOutput(fileOutputStream);
 		out.writeObject(this.database, DatabaseWrapper.class);
 		out.flush();
+		this.writeAppliedRecords(fileOutputStream);
 		fileOutputStream.close();
+		this.runs.compacted(this.path);
+	}
+	
+	/*
+	 * writes an empty shard as this shard's file. shards are found by their files (export,
+	 * isValid(), building the reverse index), so a shard's first run needs one next to it
+	 */
+	private void saveEmpty() throws IOException {
+		Files.createDirectories(this.path.getParent());
+		try (OutputStream output = Files.newOutputStream(this.path)) {
+			this.writeEmpty(output);
+		}
+	}
+	
+	protected void writeEmpty(OutputStream output) throws IOException {
+		FSTObjectOutput out = CONF.getObjectOutput(output);
+		out.writeObject(new DatabaseWrapper(this.key, this.parentDatabaseId), DatabaseWrapper.class);
+		out.flush();
+	}
+	
+	/*
+	 * appends the AppliedRecords trailer after the serialized shard, if this shard
+	 * has anything to do with a write-ahead log
+	 */
+	protected void writeAppliedRecords(OutputStream output) throws IOException {
+		if(this.logWatermark == null && this.appliedRecords.isEmpty()) return;
+		this.appliedRecords.write(output, this.logWatermark == null ? -1 : this.logWatermark.getAsLong());
 	}
 
 	void loadFromObject() throws IOException {
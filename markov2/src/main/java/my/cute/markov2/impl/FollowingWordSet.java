@@ -2,7 +2,6 @@ package my.cute.markov2.impl;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.Random;
 
 import org.nustaq.serialization.FSTBasicObjectSerializer;
 import org.nustaq.serialization.FSTClazzInfo;
@@ -10,6 +9,8 @@ import org.nustaq.serialization.FSTObjectInput;
 import org.nustaq.serialization.FSTObjectOutput;
 import org.nustaq.serialization.FSTClazzInfo.FSTFieldInfo;
 
+import my.cute.markov2.RandomSource;
+
 /*
  * represents the set of words that follow a given bigram in the database
  * has a 1-to-1 relationship with bigram
@@ -92,7 +93,6 @@ interface FollowingWordSet {
 		
 	}
 
-	static final Random RANDOM = new Random();
 	/*
 	 * adds an instance of the given word to the set
 	 */
@@ -101,7 +101,13 @@ interface FollowingWordSet {
 	/*
 	 * gets a randomly chosen word from the set, weighted by frequency
 	 */
-	public String getRandomWeightedWord();
+	public String getRandomWeightedWord(RandomSource random);
+	
+	/*
+	 * gets the k most frequent words in the set (ties broken alphabetically, see
+	 * TopWords) and their counts, for top-k sampling and beam search. k is positive
+	 */
+	public TopWords getTopWords(int k);
 	
 	/*
 	 * gets size of the set (equivalent to the number of times addWord() has been called)
@@ -0,0 +1,222 @@
+package my.cute.markov2.impl;
+
+/*
+ * decides which FollowingWordSet implementation a bigram's set should use
+ * (see MarkovDatabaseBuilder.followingWordSetPolicy())
+ *
+ * tiny <-> small is decided on size alone. tiny sets are pooled immutable lists
+ * so they're only worth it while they're very small, and at that size duplication
+ * doesn't mean much anyway
+ * small <-> large is decided on duplication ratio (total words / unique words).
+ * a large set stores each unique word once plus a count, which costs a lot more
+ * per entry than one reference in a small set's list, so it only saves memory once
+ * words are repeated enough (LargeFollowingWordSet: around 4 uses per unique word).
+ * a set with lots of distinct words stays small no matter how big it gets
+ *
+ * every boundary has separate promote/demote values so a set sitting right at a
+ * threshold (eg a word added and removed over and over) isn't copied back and forth
+ * between implementations on every operation:
+ * 	tiny -> small when a word is added to a tiny set of size >= tinyMaxSize
+ * 	small -> tiny when a small set drops below smallMinSize words
+ * 	small -> large when a small set has >= largeMinSize words and a duplication
+ * 		ratio >= largePromoteRatio
+ * 	large -> small when a large set drops below largeDemoteSize words or its
+ * 		duplication ratio drops below largeDemoteRatio
+ * counting unique words in a small set is O(n), so small sets are only checked for
+ * promotion at largeMinSize and then a few times each time their size doubles
+ * (amortized O(1) per add)
+ */
+public final class FollowingWordSetPolicy {
+
+	/*
+	 * defaults. tiny/small boundary is the same as it was with the old fixed
+	 * thresholds, small/large uses the ~4 uses per word breakpoint
+	 */
+	public static final FollowingWordSetPolicy DEFAULT = new Builder().build();
+	/*
+	 * the old behavior, before sets were picked by duplication: small sets become
+	 * large at 24 words and back at 23 no matter what they contain
+	 */
+	public static final FollowingWordSetPolicy SIZE_ONLY = new Builder()
+			.smallMinSize(4)
+			.largePromoteRatio(0)
+			.largeDemoteRatio(0)
+			.largeDemoteSize(24)
+			.build();
+
+	/*
+	 * smallest gap between small set promotion checks
+	 */
+	private static final int MIN_RECHECK_INTERVAL = 4;
+
+	private final int tinyMaxSize;
+	private final int smallMinSize;
+	private final int largeMinSize;
+	private final int largeDemoteSize;
+	private final double largePromoteRatio;
+	private final double largeDemoteRatio;
+
+	private FollowingWordSetPolicy(Builder builder) {
+		this.tinyMaxSize = builder.tinyMaxSize;
+		this.smallMinSize = builder.smallMinSize;
+		this.largeMinSize = builder.largeMinSize;
+		this.largeDemoteSize = builder.largeDemoteSize;
+		this.largePromoteRatio = builder.largePromoteRatio;
+		this.largeDemoteRatio = builder.largeDemoteRatio;
+	}
+
+	/*
+	 * true if adding a word to a tiny set of the given size should make it small
+	 */
+	boolean shouldPromoteTiny(int size) {
+		return size >= this.tinyMaxSize;
+	}
+
+	boolean shouldDemoteSmall(int size) {
+		return size < this.smallMinSize;
+	}
+
+	/*
+	 * true if a small set that just grew to the given size is due to have its
+	 * duplication ratio checked (see shouldPromoteSmall())
+	 */
+	boolean shouldCheckSmall(int size) {
+		if(size < this.largeMinSize) return false;
+		if(size == this.largeMinSize) return true;
+		int interval = Math.max(MIN_RECHECK_INTERVAL, Integer.highestOneBit(size) / 4);
+		return size % interval == 0;
+	}
+
+	boolean shouldPromoteSmall(int size, int uniqueWords) {
+		return size >= this.largeMinSize && size >= this.largePromoteRatio * uniqueWords;
+	}
+
+	boolean shouldDemoteLarge(int size, int uniqueWords) {
+		return size < this.largeDemoteSize || size < this.largeDemoteRatio * uniqueWords;
+	}
+
+	public int getTinyMaxSize() {
+		return this.tinyMaxSize;
+	}
+
+	public int getSmallMinSize() {
+		return this.smallMinSize;
+	}
+
+	public int getLargeMinSize() {
+		return this.largeMinSize;
+	}
+
+	public int getLargeDemoteSize() {
+		return this.largeDemoteSize;
+	}
+
+	public double getLargePromoteRatio() {
+		return this.largePromoteRatio;
+	}
+
+	public double getLargeDemoteRatio() {
+		return this.largeDemoteRatio;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("FollowingWordSetPolicy [tinyMaxSize=");
+		builder.append(tinyMaxSize);
+		builder.append(", smallMinSize=");
+		builder.append(smallMinSize);
+		builder.append(", largeMinSize=");
+		builder.append(largeMinSize);
+		builder.append(", largeDemoteSize=");
+		builder.append(largeDemoteSize);
+		builder.append(", largePromoteRatio=");
+		builder.append(largePromoteRatio);
+		builder.append(", largeDemoteRatio=");
+		builder.append(largeDemoteRatio);
+		builder.append("]");
+		return builder.toString();
+	}
+
+	public static final class Builder {
+
+		/*
+		 * a tiny set holding this many words becomes small on its next add
+		 */
+		private int tinyMaxSize = 4;
+		/*
+		 * a small set with fewer than this many words becomes tiny
+		 * should be <= tinyMaxSize. lower values mean a wider gap between
+		 * promotion and demotion
+		 */
+		private int smallMinSize = 3;
+		/*
+		 * small sets smaller than this are never made large
+		 */
+		private int largeMinSize = 24;
+		/*
+		 * large sets smaller than this are always made small
+		 */
+		private int largeDemoteSize = 16;
+		/*
+		 * a small set (of at least largeMinSize words) becomes large when it has
+		 * at least this many total words per unique word
+		 * 0 makes small -> large purely size based
+		 */
+		private double largePromoteRatio = 4.0;
+		/*
+		 * a large set becomes small when it has fewer than this many total words
+		 * per unique word. should be <= largePromoteRatio
+		 */
+		private double largeDemoteRatio = 2.5;
+
+		public Builder() {}
+
+		public Builder tinyMaxSize(int size) {
+			this.tinyMaxSize = size;
+			return this;
+		}
+
+		public Builder smallMinSize(int size) {
+			this.smallMinSize = size;
+			return this;
+		}
+
+		public Builder largeMinSize(int size) {
+			this.largeMinSize = size;
+			return this;
+		}
+
+		public Builder largeDemoteSize(int size) {
+			this.largeDemoteSize = size;
+			return this;
+		}
+
+		public Builder largePromoteRatio(double ratio) {
+			this.largePromoteRatio = ratio;
+			return this;
+		}
+
+		public Builder largeDemoteRatio(double ratio) {
+			this.largeDemoteRatio = ratio;
+			return this;
+		}
+
+		/*
+		 * throws IllegalArgumentException if the thresholds would let a set be
+		 * promoted and immediately demoted (or never stop converting)
+		 */
+		public FollowingWordSetPolicy build() {
+			if(this.tinyMaxSize < 1) throw new IllegalArgumentException("tinyMaxSize must be positive");
+			if(this.smallMinSize < 1 || this.smallMinSize > this.tinyMaxSize)
+				throw new IllegalArgumentException("smallMinSize must be between 1 and tinyMaxSize");
+			if(this.largeMinSize <= this.tinyMaxSize)
+				throw new IllegalArgumentException("largeMinSize must be greater than tinyMaxSize");
+			if(this.largeDemoteSize < this.smallMinSize || this.largeDemoteSize > this.largeMinSize)
+				throw new IllegalArgumentException("largeDemoteSize must be between smallMinSize and largeMinSize");
+			if(this.largePromoteRatio < 0 || this.largeDemoteRatio < 0 || this.largeDemoteRatio > this.largePromoteRatio)
+				throw new IllegalArgumentException("ratios must be nonnegative with largeDemoteRatio <= largePromoteRatio");
+			return new FollowingWordSetPolicy(this);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package my.cute.markov2.impl;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import my.cute.markov2.MemoryFootprint;
+
+/*
+ * estimates the retained heap of shards (see MemoryFootprint)
+ * sizes are computed from object layouts on a 64-bit jvm with compressed oops and
+ * compact strings: 12 byte object headers, 16 byte array headers, 4 byte references,
+ * everything padded to 8 bytes. collection capacities that can't be read are
+ * estimated from their size and load factor
+ * add as many shards as needed, then build(). pooled objects (strings, tiny sets)
+ * are tracked by identity so each one is counted once per estimator
+ */
+final class FootprintEstimator {
+
+	private static final int OBJECT_HEADER = 12;
+	private static final int ARRAY_HEADER = 16;
+	private static final int REFERENCE = 4;
+
+	/*
+	 * String: header + value ref + hash + coder + hashIsZero
+	 */
+	private static final long STRING_SHALLOW = align(OBJECT_HEADER + REFERENCE + 4 + 1 + 1);
+	/*
+	 * Bigram: header + 2 word refs + cached hash
+	 */
+	private static final long BIGRAM_SHALLOW = align(OBJECT_HEADER + 2 * REFERENCE + 4);
+	/*
+	 * DatabaseShard: header + id/key/path/database/metrics/policy refs, plus its Path object
+	 * StartDatabaseShard adds an int
+	 */
+	private static final long SHARD_SHALLOW = align(OBJECT_HEADER + 6 * REFERENCE) + 64;
+	/*
+	 * DatabaseWrapper: header + 3 refs
+	 */
+	private static final long WRAPPER_SHALLOW = align(OBJECT_HEADER + 3 * REFERENCE);
+	private static final long CONCURRENT_HASH_MAP_SHALLOW = 64;
+	/*
+	 * ConcurrentHashMap.Node: header + hash + key/value/next refs
+	 */
+	private static final long CHM_NODE = align(OBJECT_HEADER + 4 + 3 * REFERENCE);
+	/*
+	 * TinyFollowingWordSet: header + list ref + cached hash
+	 * plus the ImmutableList object itself (header + array ref, or the single element
+	 * for singleton lists)
+	 */
+	private static final long TINY_SHALLOW = align(OBJECT_HEADER + REFERENCE + 4);
+	private static final long IMMUTABLE_LIST_SHALLOW = align(OBJECT_HEADER + REFERENCE);
+	/*
+	 * SmallFollowingWordSet: header + list/bigram/id refs
+	 * plus Collections.SynchronizedRandomAccessList (header + 3 refs) and ArrayList
+	 * (header + size + modCount + array ref)
+	 */
+	private static final long SMALL_SHALLOW = align(OBJECT_HEADER + 3 * REFERENCE)
+			+ align(OBJECT_HEADER + 3 * REFERENCE) + align(OBJECT_HEADER + 4 + 4 + REFERENCE);
+	/*
+	 * LargeFollowingWordSet: header + map/bigram/id/sampler/order refs + total count, plus
+	 * trove's synchronized wrapper (header + 2 refs) and TObjectIntHashMap's own fields
+	 */
+	private static final long LARGE_SHALLOW = align(OBJECT_HEADER + 5 * REFERENCE + 4)
+			+ align(OBJECT_HEADER + 2 * REFERENCE) + 64;
+	/*
+	 * CountOrder: header + 5 refs + size, plus 3 trove maps' own fields
+	 */
+	private static final long COUNT_ORDER_SHALLOW = align(OBJECT_HEADER + 5 * REFERENCE + 4) + 3 * 64;
+	/*
+	 * default load factors used for the maps in this package
+	 */
+	private static final double CHM_LOAD_FACTOR = 0.75;
+	private static final double TROVE_LOAD_FACTOR = 0.8;
+
+	private final Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	private long databaseMapBytes = 0;
+	private long bigramBytes = 0;
+	private long tinySetBytes = 0;
+	private long smallSetBytes = 0;
+	private long largeSetBytes = 0;
+	private long stringBytes = 0;
+	private long bigramCount = 0;
+	private long tinySetCount = 0;
+	private long smallSetCount = 0;
+	private long largeSetCount = 0;
+
+	FootprintEstimator add(DatabaseShard shard) {
+		DatabaseWrapper database = shard.database;
+		int size = database.size();
+		long tableLength = tableSizeFor((long) Math.ceil(size / CHM_LOAD_FACTOR));
+		this.databaseMapBytes += SHARD_SHALLOW + WRAPPER_SHALLOW + CONCURRENT_HASH_MAP_SHALLOW
+				+ arrayOfReferences(tableLength) + size * CHM_NODE;
+		if(shard instanceof StartDatabaseShard) {
+			StartWordIndex index = ((StartDatabaseShard) shard).getStartWordIndex();
+			this.databaseMapBytes += startWordIndexBytes(index) + countOrderBytes(index.getCountOrder());
+		}
+
+		for(Map.Entry<Bigram, FollowingWordSet> entry : database.entrySet()) {
+			Bigram bigram = entry.getKey();
+			this.bigramCount++;
+			this.bigramBytes += BIGRAM_SHALLOW;
+			this.addString(bigram.getWord1());
+			this.addString(bigram.getWord2());
+			this.addSet(entry.getValue());
+		}
+		return this;
+	}
+
+	/*
+	 * StartWordIndex: header + 2 refs, plus its WeightedIndex
+	 */
+	private static long startWordIndexBytes(StartWordIndex index) {
+		return align(OBJECT_HEADER + 2 * REFERENCE) + weightedIndexBytes(index.capacity(), index.size());
+	}
+	
+	/*
+	 * WeightedIndex: header + 4 refs + 2 ints + long, its slot/tree/free arrays, and a
+	 * trove map at load factor 0.5
+	 */
+	private static long weightedIndexBytes(long capacity, long size) {
+		long mapCapacity = (long) Math.ceil(size / 0.5) + 1;
+		return align(OBJECT_HEADER + 4 * REFERENCE + 2 * 4 + 8) + arrayOfReferences(capacity)
+				+ 2 * align(ARRAY_HEADER + 4 * (capacity + 1)) + 64 + arrayOfReferences(mapCapacity)
+				+ align(ARRAY_HEADER + 4 * mapCapacity);
+	}
+	
+	/*
+	 * CountOrder: word and count arrays, a word -> position map and two
+	 * count -> position maps, all trove maps at load factor 0.5
+	 */
+	private static long countOrderBytes(CountOrder order) {
+		if(order == null) return 0;
+		long capacity = order.capacity();
+		long positionCapacity = (long) Math.ceil(order.size() / 0.5) + 1;
+		long bucketCapacity = (long) Math.ceil(order.buckets() / 0.5) + 1;
+		return COUNT_ORDER_SHALLOW + arrayOfReferences(capacity) + align(ARRAY_HEADER + 4 * capacity)
+				+ arrayOfReferences(positionCapacity) + align(ARRAY_HEADER + 4 * positionCapacity)
+				+ 2 * (2 * align(ARRAY_HEADER + 4 * bucketCapacity) + align(ARRAY_HEADER + bucketCapacity));
+	}
+	
+	private void addSet(FollowingWordSet set) {
+		if(set instanceof TinyFollowingWordSet) {
+			//pooled, so the same instance can be used by many bigrams
+			if(!this.seen.add(set)) return;
+			this.tinySetCount++;
+			List<String> words = set.getWords();
+			this.tinySetBytes += TINY_SHALLOW + IMMUTABLE_LIST_SHALLOW + (words.size() > 1 ? arrayOfReferences(words.size()) : 0);
+			for(String word : words) {
+				this.addString(word);
+			}
+		} else if(set instanceof SmallFollowingWordSet) {
+			this.smallSetCount++;
+			List<String> words = set.getWords();
+			synchronized(words) {
+				//arraylist capacity isn't visible; assume it's full
+				this.smallSetBytes += SMALL_SHALLOW + arrayOfReferences(words.size());
+				for(String word : words) {
+					this.addString(word);
+				}
+			}
+		} else if(set instanceof LargeFollowingWordSet) {
+			this.largeSetCount++;
+			LargeFollowingWordSet largeSet = (LargeFollowingWordSet) set;
+			long capacity = (long) Math.ceil(largeSet.numEntries() / TROVE_LOAD_FACTOR) + 1;
+			//_set (Object[]) + _values (int[])
+			this.largeSetBytes += LARGE_SHALLOW + arrayOfReferences(capacity) + align(ARRAY_HEADER + 4 * capacity);
+			WeightedIndex sampler = largeSet.getSampler();
+			if(sampler != null) {
+				this.largeSetBytes += weightedIndexBytes(sampler.capacity(), sampler.size());
+			}
+			this.largeSetBytes += countOrderBytes(largeSet.getCountOrder());
+			largeSet.forEachEntry((word, count) ->
+			{
+				this.addString(word);
+				return true;
+			});
+		}
+	}
+
+	private void addString(String string) {
+		if(!this.seen.add(string)) return;
+		this.stringBytes += STRING_SHALLOW + align(ARRAY_HEADER + stringDataLength(string));
+	}
+
+	/*
+	 * compact strings store latin-1 text as 1 byte per char, anything else as 2
+	 */
+	private static long stringDataLength(String string) {
+		for(int i=0; i < string.length(); i++) {
+			if(string.charAt(i) > 0xFF) return 2L * string.length();
+		}
+		return string.length();
+	}
+
+	private static long arrayOfReferences(long length) {
+		return align(ARRAY_HEADER + REFERENCE * length);
+	}
+
+	private static long tableSizeFor(long capacity) {
+		long n = 1;
+		while(n < capacity) n <<= 1;
+		return n;
+	}
+
+	private static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	MemoryFootprint build() {
+		return new MemoryFootprint(this.databaseMapBytes, this.bigramBytes, this.tinySetBytes, this.smallSetBytes,
+				this.largeSetBytes, this.stringBytes, this.bigramCount, this.tinySetCount, this.smallSetCount,
+				this.largeSetCount);
+	}
+}
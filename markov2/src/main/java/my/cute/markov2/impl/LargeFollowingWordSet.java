@@ -16,6 +16,9 @@ import gnu.trove.TCollections;
 import gnu.trove.iterator.TObjectIntIterator;
 import gnu.trove.map.TObjectIntMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.procedure.TObjectIntProcedure;
+
+import my.cute.markov2.RandomSource;
 
 /*
  * FollowingWordSet implementation for large sets (commonly used bigrams)
@@ -27,13 +30,22 @@ import gnu.trove.map.hash.TObjectIntHashMap;
  * multiple instances of the same string in a list (iirc from testing/examination 
  * breakpoint was around 4 average uses of any unique word in the list). larger sets
  * typically repeat elements more frequently, so this implementation is used for 
- * sufficiently large sets (not always more efficient - eg a set with 1000 unique
- * words each used once would be stored as a map where each entry's key is a word
- * and value is 1, adding memory/time overhead for no gain - but in application
- * this is very uncommon and this approach saves space a large enough majority of
- * the time to be valuable)
- * note that this implementation has O(1) time for contains() and remove(), but
- * O(n) time for getRandomWeightedWord()
+ * sufficiently large sets whose words are actually repeated often enough (a set with
+ * 1000 unique words each used once would be stored as a map where each entry's key
+ * is a word and value is 1, adding memory/time overhead for no gain, so that set
+ * stays small). see FollowingWordSetPolicy for exactly when sets switch
+ * note that this implementation has O(1) time for contains() and remove()
+ * getRandomWeightedWord() is O(log n) using a WeightedIndex built from the map the
+ * first time the set is sampled (O(n)) and then updated in place on every add/remove
+ * (O(log n)), so sets that are written to and sampled in turn never rebuild it.
+ * which word a given random number picks depends on the set's contents and on the
+ * order the index saw them in, so the same database and sequence of calls always
+ * pick the same words and seeded generation stays reproducible (see RandomSource)
+ * the index isn't saved with the shard, it's built again after loading the first
+ * time it's needed
+ * getTopWords() uses a CountOrder, built the first time it's called and then kept
+ * up to date on every add/remove (O(1)), so top-k generation never sorts the set
+ * sets that are never asked for their top words never build one
  */
 @Flat
 class LargeFollowingWordSet implements FollowingWordSet, Serializable {
@@ -53,6 +65,18 @@ class LargeFollowingWordSet implements FollowingWordSet, Serializable {
 	
 	private final Bigram bigram;
 	private final String parentDatabaseId;
+	/*
+	 * sampling index for getRandomWeightedWord(), or null if the set hasn't been
+	 * sampled yet. guarded by the lock on words, and always updated in the same
+	 * locked block as the map, so it never misses a change
+	 */
+	private transient WeightedIndex sampler;
+	/*
+	 * words by count for getTopWords(), or null if it hasn't been asked for yet
+	 * guarded by the lock on words, and always updated in the same locked block as
+	 * the map, so it never disagrees with it
+	 */
+	private transient CountOrder order;
 	
 	/*
 	 * constructor used when building from a small followingwordset. used
@@ -83,7 +107,11 @@ class LargeFollowingWordSet implements FollowingWordSet, Serializable {
 
 	@Override
 	public void addWord(String word) {
-		this.words.adjustOrPutValue(word, 1, 1);
+		synchronized(this.words) {
+			this.words.adjustOrPutValue(word, 1, 1);
+			if(this.order != null) this.order.increment(word);
+			if(this.sampler != null) this.sampler.adjust(word, 1);
+		}
 		this.incrementTotal();
 	}
 	
@@ -91,11 +119,17 @@ class LargeFollowingWordSet implements FollowingWordSet, Serializable {
 	 * returns a random word from the set, weighted according to their use count
 	 */
 	@Override
-	public String getRandomWeightedWord() {
+	public String getRandomWeightedWord(RandomSource random) {
 		String chosenWord = null;
-		int count = RANDOM.nextInt(this.totalWordCount);
 		//need to synchronize when iterating over THashMap
 		synchronized(this.words) {
+			if(this.sampler != null || this.buildSampler()) {
+				chosenWord = this.sampler.sample(random);
+				if(chosenWord != null) return chosenWord;
+			}
+			
+			//no index means the set is empty (or too big for int weights)
+			int count = random.nextInt(this.totalWordCount);
 			for(TObjectIntIterator<String> iterator = this.words.iterator(); iterator.hasNext();) {
 				iterator.advance();
 				if(count < iterator.value()) {
@@ -108,6 +142,7 @@ class LargeFollowingWordSet implements FollowingWordSet, Serializable {
 		}
 		//should never be null, since sum of word count over all entries should equal totalWordCount
 		if(chosenWord == null) {
+			DatabaseMetrics.of(this.parentDatabaseId).recordWordCountMismatch();
 			logger.warn(this + ": getRandomWeightedWord() returned null; totalWordCount probably wrong! "
 					+ "totalWordCount: " + this.totalWordCount + ", words=" + this.words.toString());
 			chosenWord = "hello";
@@ -115,6 +150,68 @@ class LargeFollowingWordSet implements FollowingWordSet, Serializable {
 		return chosenWord;
 	}
 	
+	@Override
+	public TopWords getTopWords(int k) {
+		synchronized(this.words) {
+			if(this.order == null) {
+				int entries = this.words.size();
+				String[] keys = new String[entries];
+				int[] counts = new int[entries];
+				int index = 0;
+				for(TObjectIntIterator<String> iterator = this.words.iterator(); iterator.hasNext();) {
+					iterator.advance();
+					if(iterator.value() <= 0) continue;
+					keys[index] = iterator.key();
+					counts[index] = iterator.value();
+					index++;
+				}
+				this.order = new CountOrder(keys, counts, index);
+			}
+			return this.order.top(k, this.totalWordCount);
+		}
+	}
+	
+	/*
+	 * the count index, or null if there isn't one. used for memory footprint estimates
+	 */
+	CountOrder getCountOrder() {
+		synchronized(this.words) {
+			return this.order;
+		}
+	}
+	
+	/*
+	 * builds the sampling index from the current contents of the map. the index's
+	 * total comes from the entries themselves, so it's consistent even if
+	 * totalWordCount isn't
+	 * returns false, and builds nothing, if the set is too big for int weights
+	 * must be called holding the lock on words
+	 */
+	private boolean buildSampler() {
+		long total = 0;
+		for(TObjectIntIterator<String> iterator = this.words.iterator(); iterator.hasNext();) {
+			iterator.advance();
+			total += Math.max(0, iterator.value());
+		}
+		if(total > Integer.MAX_VALUE) return false;
+		WeightedIndex index = new WeightedIndex(this.words.size());
+		for(TObjectIntIterator<String> iterator = this.words.iterator(); iterator.hasNext();) {
+			iterator.advance();
+			index.adjust(iterator.key(), iterator.value());
+		}
+		this.sampler = index;
+		return true;
+	}
+	
+	/*
+	 * the sampling index, or null if there isn't one. used for memory footprint estimates
+	 */
+	WeightedIndex getSampler() {
+		synchronized(this.words) {
+			return this.sampler;
+		}
+	}
+	
 	@Override
 	public int size() {
 		return this.totalWordCount;
@@ -135,19 +232,19 @@ class LargeFollowingWordSet implements FollowingWordSet, Serializable {
 
 	@Override
 	public boolean remove(String followingWord) {
-		boolean result = this.words.adjustValue(followingWord, -1);
-		int newValue = this.words.get(followingWord);
-		if(result) {
-			//followingWord was found and adjusted down 1. check if it's now 0
-			if(newValue == 0) {
-				//new value is 0, so removed followingWord from set
-				int removedValue = this.words.remove(followingWord);
-				//check for race condition in case this value was modified at the same time
-				if(removedValue != 0) {
-					//something added a value at the same time. put amount back in
-					this.words.adjustOrPutValue(followingWord, removedValue, removedValue);
+		boolean result;
+		synchronized(this.words) {
+			result = this.words.adjustValue(followingWord, -1);
+			if(result) {
+				//followingWord was found and adjusted down 1. check if it's now 0
+				if(this.words.get(followingWord) == 0) {
+					this.words.remove(followingWord);
 				}
+				if(this.order != null) this.order.decrement(followingWord);
+				if(this.sampler != null) this.sampler.adjust(followingWord, -1);
 			}
+		}
+		if(result) {
 			this.decrementTotal();
 		}
 		return result;
@@ -172,6 +269,16 @@ class LargeFollowingWordSet implements FollowingWordSet, Serializable {
 		return this.words.size();
 	}
 	
+	/*
+	 * calls the given procedure with each unique word and its count, stopping early
+	 * if it returns false. returns false if iteration stopped early
+	 */
+	boolean forEachEntry(TObjectIntProcedure<String> procedure) {
+		synchronized(this.words) {
+			return this.words.forEachEntry(procedure);
+		}
+	}
+	
 	private void incrementTotal() {
 		this.totalWordCount++;
 	}
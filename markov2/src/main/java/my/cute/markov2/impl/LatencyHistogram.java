@@ -0,0 +1,103 @@
+package my.cute.markov2.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/*
+ * small lock-free latency histogram used for DatabaseMetrics
+ * values (nanoseconds) are bucketed log-linearly: each power of 2 is split into
+ * SUB_BUCKETS linear buckets, so any recorded value is off by at most 1/SUB_BUCKETS
+ * (12.5%) when read back. fixed size (~4kb), recording is a couple of shifts and
+ * an atomic increment so it's fine to do on every operation
+ * percentiles report the upper bound of the bucket they land in
+ */
+final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/*
+	 * values below SUB_BUCKETS get their own exact bucket, then every power of 2
+	 * above that up to 2^63 gets SUB_BUCKETS buckets
+	 */
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+	void record(long nanos) {
+		if(nanos < 0) nanos = 0;
+		this.buckets.incrementAndGet(bucketFor(nanos));
+		this.max.accumulate(nanos);
+	}
+
+	private static int bucketFor(long value) {
+		if(value < SUB_BUCKETS) return (int) value;
+		int highestBit = 63 - Long.numberOfLeadingZeros(value);
+		int shift = highestBit - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/*
+	 * largest value that falls in the given bucket
+	 */
+	private static long upperBound(int bucket) {
+		if(bucket < SUB_BUCKETS) return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+
+	long count() {
+		long count = 0;
+		for(int i=0; i < BUCKET_COUNT; i++) {
+			count += this.buckets.get(i);
+		}
+		return count;
+	}
+
+	/*
+	 * returns the value (nanos) at the given percentile (0-100), or 0 if nothing
+	 * has been recorded
+	 * concurrent recording while this runs may make the result very slightly off,
+	 * which is fine for monitoring
+	 */
+	long percentile(double percentile) {
+		long[] snapshot = new long[BUCKET_COUNT];
+		long count = 0;
+		for(int i=0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = this.buckets.get(i);
+			count += snapshot[i];
+		}
+		if(count == 0) return 0;
+		long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for(int i=0; i < BUCKET_COUNT; i++) {
+			seen += snapshot[i];
+			if(seen >= target) {
+				return Math.min(upperBound(i), this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+
+	long max() {
+		return this.max.get();
+	}
+
+	/*
+	 * summary in microseconds, for jmx
+	 */
+	Map<String, Double> summaryMicros() {
+		Map<String, Double> summary = new LinkedHashMap<>(8);
+		summary.put("count", (double) this.count());
+		summary.put("p50", this.percentile(50) / 1000.0);
+		summary.put("p90", this.percentile(90) / 1000.0);
+		summary.put("p99", this.percentile(99) / 1000.0);
+		summary.put("p999", this.percentile(99.9) / 1000.0);
+		summary.put("max", this.max() / 1000.0);
+		return summary;
+	}
+}
@@ -0,0 +1,167 @@
+package my.cute.markov2.impl;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * ring buffer of lines generated ahead of time, so generateLine() can hand one out
+ * immediately instead of walking the chain (and possibly waiting on shard loads)
+ * while a caller waits. see MarkovDatabaseBuilder.linePoolSize()
+ * refilled by a single background task on the database's executor, started
+ * whenever a take() leaves the pool less than half full (and on load())
+ * every line remembers the model version it was generated at. processLine() and
+ * removeLine() bump the version, and lines more than maxAge versions old are
+ * thrown away instead of handed out, so the pool never lags far behind what the
+ * database has learned. invalidate() drops everything (backup load, clear())
+ */
+final class LinePool {
+
+	private static final Logger logger = LoggerFactory.getLogger(LinePool.class);
+
+	/*
+	 * generates one line for the pool. throws IllegalArgumentException if the
+	 * database is empty
+	 */
+	@FunctionalInterface
+	static interface LineSource {
+		String generate() throws IOException;
+	}
+
+	private final String id;
+	private final LineSource source;
+	private final Executor executor;
+	private final DatabaseMetrics metrics;
+	private final long maxAge;
+	/*
+	 * the ring buffer. lines[head] is the oldest line, count lines from there
+	 * (wrapping around). guarded by this
+	 */
+	private final String[] lines;
+	private final long[] versions;
+	private int head = 0;
+	private int count = 0;
+	/*
+	 * bumped by invalidate(), so a refill that started before it doesn't add lines
+	 * from the old database afterwards. guarded by this
+	 */
+	private int epoch = 0;
+	private final AtomicLong version = new AtomicLong();
+	private final AtomicBoolean refilling = new AtomicBoolean(false);
+
+	LinePool(String id, int capacity, long maxAge, LineSource source, Executor executor, DatabaseMetrics metrics) {
+		this.id = id;
+		this.lines = new String[capacity];
+		this.versions = new long[capacity];
+		this.maxAge = maxAge;
+		this.source = source;
+		this.executor = executor;
+		this.metrics = metrics;
+	}
+
+	/*
+	 * takes the oldest line that's still fresh enough, or returns null if there
+	 * isn't one (caller generates a line itself)
+	 */
+	String take() {
+		String line = null;
+		boolean low;
+		synchronized(this) {
+			long oldest = this.version.get() - this.maxAge;
+			while(this.count > 0 && line == null) {
+				if(this.versions[this.head] >= oldest) {
+					line = this.lines[this.head];
+				} else {
+					this.metrics.recordLinePoolStale();
+				}
+				this.lines[this.head] = null;
+				this.head = (this.head + 1) % this.lines.length;
+				this.count--;
+			}
+			low = this.count < this.lines.length / 2;
+		}
+		if(line == null) {
+			this.metrics.recordLinePoolMiss();
+		} else {
+			this.metrics.recordLinePoolHit();
+		}
+		if(low) this.refill();
+		return line;
+	}
+
+	/*
+	 * called whenever the model changes (processLine(), removeLine())
+	 */
+	void modelChanged() {
+		this.version.incrementAndGet();
+	}
+
+	/*
+	 * same, for a batch of changes at once (processLines())
+	 */
+	void modelChanged(int changes) {
+		this.version.addAndGet(changes);
+	}
+
+	/*
+	 * drops every pooled line, including any a running refill is about to add
+	 */
+	synchronized void invalidate() {
+		for(int i=0; i < this.lines.length; i++) {
+			this.lines[i] = null;
+		}
+		this.head = 0;
+		this.count = 0;
+		this.epoch++;
+	}
+
+	/*
+	 * starts filling the pool in the background, unless that's already happening
+	 */
+	void refill() {
+		if(!this.refilling.compareAndSet(false, true)) return;
+		try {
+			this.executor.execute(this::fill);
+		} catch (RejectedExecutionException e) {
+			//executor's shut down. just keep generating lines live
+			this.refilling.set(false);
+		}
+	}
+
+	private void fill() {
+		try {
+			while(true) {
+				int fillEpoch;
+				synchronized(this) {
+					if(this.count == this.lines.length) return;
+					fillEpoch = this.epoch;
+				}
+				long lineVersion = this.version.get();
+				String line = this.source.generate();
+				synchronized(this) {
+					if(fillEpoch != this.epoch || this.count == this.lines.length) continue;
+					int tail = (this.head + this.count) % this.lines.length;
+					this.lines[tail] = line;
+					this.versions[tail] = lineVersion;
+					this.count++;
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			//empty database. nothing to pool until lines get processed
+		} catch (IOException | RuntimeException e) {
+			logger.warn(this + ": couldn't refill line pool: " + e.getLocalizedMessage(), e);
+		} finally {
+			this.refilling.set(false);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "LinePool-" + this.id;
+	}
+}
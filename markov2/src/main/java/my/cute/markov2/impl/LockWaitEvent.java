@@ -0,0 +1,79 @@
+package my.cute.markov2.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/*
+ * jfr event for time spent waiting to enter one of the database-wide locks
+ * (ShardLoader.loadLock, ShardCache.saveLock, ShardCache.stateLock, 
+ * WriteAheadLog.checkpointLock). usage:
+ * 
+ * LockWaitEvent wait = LockWaitEvent.begin(id, LockWaitEvent.LOAD_LOCK, "site");
+ * synchronized(lock) {
+ *     wait.acquired();
+ *     ...
+ * }
+ * 
+ * (or for the state and load locks, call acquired() as soon as lock() returns)
+ * so the duration is only the wait, not the time spent holding the lock
+ * uncontended entries take next to no time, so by default only waits over 1ms
+ * are recorded (same idea as jdk.JavaMonitorEnter's threshold). set the threshold
+ * to 0 in the recording settings to see every acquisition
+ * the load and state locks are taken for every word processed or generated, so
+ * while no recording has the event enabled begin() hands out one shared event
+ * that acquired() ignores, instead of allocating one per acquisition
+ */
+@Name("my.cute.markov2.LockWait")
+@Label("Database Lock Wait")
+@Category({"markov2", "Locks"})
+@Description("Time spent waiting to acquire a database lock")
+@Threshold("1 ms")
+class LockWaitEvent extends Event {
+
+	static final String LOAD_LOCK = "loadLock";
+	static final String SAVE_LOCK = "saveLock";
+	static final String STATE_LOCK = "stateLock";
+	static final String CHECKPOINT_LOCK = "checkpointLock";
+
+	private static final EventType TYPE = EventType.getEventType(LockWaitEvent.class);
+	/*
+	 * returned by begin() while the event is disabled. never begun or committed
+	 */
+	private static final LockWaitEvent DISABLED = new LockWaitEvent();
+
+	@Label("Database")
+	String databaseId;
+
+	@Label("Lock")
+	String lock;
+
+	@Label("Site")
+	@Description("Where the lock was requested")
+	String site;
+
+	static LockWaitEvent begin(String databaseId, String lock, String site) {
+		if(!TYPE.isEnabled()) return DISABLED;
+		LockWaitEvent event = new LockWaitEvent();
+		event.databaseId = databaseId;
+		event.lock = lock;
+		event.site = site;
+		event.begin();
+		return event;
+	}
+
+	/*
+	 * call as soon as the lock is held
+	 */
+	void acquired() {
+		if(this == DISABLED) return;
+		this.end();
+		if(this.shouldCommit()) {
+			this.commit();
+		}
+	}
+}
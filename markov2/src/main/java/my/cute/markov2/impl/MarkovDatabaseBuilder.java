@@ -1,9 +1,14 @@
 package my.cute.markov2.impl;
 
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import my.cute.markov2.MarkovDatabase;
+import my.cute.markov2.RandomSource;
 
 /*
  * entry point from outside this api
@@ -11,6 +16,8 @@ import my.cute.markov2.MarkovDatabase;
  */
 public final class MarkovDatabaseBuilder {
 
+	private static final Logger logger = LoggerFactory.getLogger(MarkovDatabaseBuilder.class);
+
 	/*
 	 * unique identifier for this database
 	 * changing id eg in between runs will effectively create a new database, 
@@ -40,6 +47,7 @@ public final class MarkovDatabaseBuilder {
 	 * effectively disabling all cache-related multithreading
 	 */
 	private ExecutorService executorService = ForkJoinPool.commonPool();
+	private boolean executorServiceSet = false;
 	/*
 	 * database will call cleanUp() to evict & save stale entries every fixedCleanupThreshold operations
 	 * setting this to a low value (eg ~1000 or especially lower) will make the database more strictly
@@ -48,6 +56,87 @@ public final class MarkovDatabaseBuilder {
 	 * nonnegative. set to 0 to disable fixed cleanup and let the cache decide when to do it (default)
 	 */
 	private int fixedCleanupThreshold = 0;
+	/*
+	 * decides when each bigram's followingwordset switches between its tiny, small
+	 * and large implementations. see FollowingWordSetPolicy
+	 * only affects how sets are held in memory, so it can be changed between runs
+	 * on an existing database (sets are converted as they're next modified)
+	 */
+	private FollowingWordSetPolicy followingWordSetPolicy = FollowingWordSetPolicy.DEFAULT;
+	/*
+	 * randomness used for line generation when a generateLine()/generateLines() call
+	 * isn't given its own RandomSource. shared by all threads, so it must be thread-safe
+	 * default RandomSource.threadLocal() has no contention between threads. use
+	 * RandomSource.seeded() for reproducible output (see RandomSource)
+	 */
+	private RandomSource randomSource = RandomSource.threadLocal();
+	/*
+	 * keeps an index of the words that come before each bigram, which
+	 * MarkovDatabase.generateLineContaining() needs. takes about as much disk space as
+	 * the database and roughly doubles the cost of processLine()/removeLine()
+	 * built from the database on the first load() with it on, and deleted on load()
+	 * with it off (default), since it would be out of date by the time it's turned back on
+	 */
+	private boolean reverseIndex = false;
+	/*
+	 * number of lines generateLine() keeps generated ahead of time, so it can answer
+	 * right away instead of walking the chain (and loading shards) while the caller
+	 * waits. refilled in the background on executorService, so it needs one
+	 * 0 (default) turns the pool off. only generateLine() with no arguments uses it
+	 * the refills draw from randomSource on their own thread, so which lines come out
+	 * of the pool depends on timing. the pool is left off (with a warning) unless
+	 * randomSource is RandomSource.threadLocal(), so a seeded source stays reproducible
+	 */
+	private int linePoolSize = 0;
+	/*
+	 * pooled lines generated more than this many processLine()/removeLine() calls ago
+	 * are thrown away instead of being handed out. lower keeps pooled lines closer to
+	 * what the database currently looks like, at the cost of more regenerating
+	 * 0 means any change at all makes every pooled line stale
+	 */
+	private long linePoolMaxAge = 1000;
+	/*
+	 * runs the async methods (processLineAsync(), generateLineAsync() when it needs to
+	 * load shards, saveAsync()). these block on disk, so this shouldn't be an event
+	 * loop or ForkJoinPool.commonPool()
+	 * null (default) uses a cached pool of daemon threads shared by every database
+	 */
+	private Executor ioExecutor = null;
+	private boolean ioExecutorSet = false;
+	/*
+	 * runs executorService and ioExecutor work (cache maintenance, batch generation,
+	 * line pool refills, async calls) on virtual threads, one per task. so lots of
+	 * concurrent requests waiting on shard loads each just park a virtual thread
+	 * instead of tying up a pool thread
+	 * only replaces the default executors: one set explicitly with executorService()
+	 * or ioExecutor() wins and is used as is. with both set there'd be nothing left
+	 * for it to do, so build() throws IllegalStateException
+	 * needs jdk 21+ and a jar built with the java21 profile. anywhere else it's
+	 * ignored with a warning and the usual executors are used
+	 * note a shard load itself runs inside the cache's compute(), which holds a
+	 * ConcurrentHashMap monitor and so still pins the carrier thread on jdk 21 while
+	 * it reads the file
+	 */
+	private boolean virtualThreads = false;
+	/*
+	 * logs every processLine()/processLines()/removeLine() to disk (fsynced) before
+	 * applying it, and replays the log on load(), so changes made since the last
+	 * save() survive a crash instead of only the ones that happened to be evicted
+	 * costs an fsync per change, shared between concurrent callers (group commit),
+	 * and save() holds off changes while it runs. see WriteAheadLog
+	 * a log left over from a run with it on is still replayed once with it off
+	 */
+	private boolean writeAheadLog = false;
+	/*
+	 * saves only what changed in a shard since it was last written, as a small run
+	 * file next to the shard's file, instead of rewriting the whole shard. loading a
+	 * shard merges its runs back in, and a shard with enough runs is written out whole
+	 * (compacted) when it's evicted. cheaper saves for big shards that only get a few
+	 * new words between saves, at the cost of slower loads until they're compacted.
+	 * see ShardRuns
+	 * runs left by a run with it on are still merged with it off
+	 */
+	private boolean logStructuredStorage = false;
 	
 	public MarkovDatabaseBuilder(String id, String parentPath) {
 		this.id = id;
@@ -62,6 +151,7 @@ public final class MarkovDatabaseBuilder {
 	
 	public MarkovDatabaseBuilder executorService(ExecutorService executor) {
 		this.executorService = executor;
+		this.executorServiceSet = true;
 		return this;
 	}
 	
@@ -71,7 +161,79 @@ public final class MarkovDatabaseBuilder {
 		return this;
 	}
 	
+	public MarkovDatabaseBuilder followingWordSetPolicy(FollowingWordSetPolicy policy) {
+		if(policy == null) throw new IllegalArgumentException("followingWordSetPolicy must be non-null");
+		this.followingWordSetPolicy = policy;
+		return this;
+	}
+	
+	public MarkovDatabaseBuilder randomSource(RandomSource random) {
+		if(random == null) throw new IllegalArgumentException("randomSource must be non-null");
+		this.randomSource = random;
+		return this;
+	}
+	
+	public MarkovDatabaseBuilder reverseIndex(boolean reverseIndex) {
+		this.reverseIndex = reverseIndex;
+		return this;
+	}
+	
+	public MarkovDatabaseBuilder ioExecutor(Executor executor) {
+		this.ioExecutor = executor;
+		this.ioExecutorSet = true;
+		return this;
+	}
+	
+	public MarkovDatabaseBuilder virtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+		return this;
+	}
+	
+	public MarkovDatabaseBuilder writeAheadLog(boolean writeAheadLog) {
+		this.writeAheadLog = writeAheadLog;
+		return this;
+	}
+	
+	public MarkovDatabaseBuilder logStructuredStorage(boolean logStructuredStorage) {
+		this.logStructuredStorage = logStructuredStorage;
+		return this;
+	}
+	
+	public MarkovDatabaseBuilder linePoolSize(int size) {
+		if(size < 0) throw new IllegalArgumentException("linePoolSize must be nonnegative");
+		this.linePoolSize = size;
+		return this;
+	}
+	
+	public MarkovDatabaseBuilder linePoolMaxAge(long maxAge) {
+		if(maxAge < 0) throw new IllegalArgumentException("linePoolMaxAge must be nonnegative");
+		this.linePoolMaxAge = maxAge;
+		return this;
+	}
+	
 	public MarkovDatabase build() {
+		if(this.virtualThreads) {
+			if(this.executorServiceSet && this.ioExecutorSet) {
+				throw new IllegalStateException("virtualThreads only replaces default executors, but executorService "
+						+ "and ioExecutor were both set");
+			}
+			if(VirtualThreads.isSupported()) {
+				ExecutorService executor = VirtualThreads.newExecutor();
+				if(!this.executorServiceSet) this.executorService = executor;
+				if(!this.ioExecutorSet) this.ioExecutor = executor;
+			} else {
+				logger.warn(this.id + ": virtual threads aren't available (need jdk 21+ and a jar built with the "
+						+ "java21 profile), using the configured executors");
+			}
+		}
+		if(this.linePoolSize > 0 && this.executorService == null) {
+			throw new IllegalArgumentException("line pool needs an executorService to refill it");
+		}
+		if(this.linePoolSize > 0 && this.randomSource != RandomSource.threadLocal()) {
+			logger.warn(this.id + ": line pool would make generateLine() depend on timing with randomSource "
+					+ this.randomSource + ", leaving it off");
+			this.linePoolSize = 0;
+		}
 		return new MarkovDatabaseImpl(this);
 	}
 
@@ -94,4 +256,40 @@ public final class MarkovDatabaseBuilder {
 	public int getFixedCleanupThreshold() {
 		return fixedCleanupThreshold;
 	}
+	
+	public FollowingWordSetPolicy getFollowingWordSetPolicy() {
+		return followingWordSetPolicy;
+	}
+	
+	public RandomSource getRandomSource() {
+		return randomSource;
+	}
+	
+	public boolean hasReverseIndex() {
+		return reverseIndex;
+	}
+	
+	public Executor getIoExecutor() {
+		return ioExecutor;
+	}
+	
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+	
+	public boolean hasWriteAheadLog() {
+		return writeAheadLog;
+	}
+	
+	public boolean hasLogStructuredStorage() {
+		return logStructuredStorage;
+	}
+	
+	public int getLinePoolSize() {
+		return linePoolSize;
+	}
+	
+	public long getLinePoolMaxAge() {
+		return linePoolMaxAge;
+	}
 }
@@ -17,11 +17,27 @@ import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
@@ -39,6 +55,9 @@ import org.slf4j.LoggerFactory;
 import gnu.trove.map.TObjectIntMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
 import my.cute.markov2.MarkovDatabase;
+import my.cute.markov2.MarkovDatabaseMetricsMXBean;
+import my.cute.markov2.MemoryFootprint;
+import my.cute.markov2.RandomSource;
 import my.cute.markov2.exceptions.FollowingWordRemovalException;
 import my.cute.markov2.exceptions.ReadObjectException;
 
@@ -71,11 +90,23 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 	private static final Map<String, String> tokenReplacements;
 	static final String START_KEY = "~start";
 	static final int MAX_WORDS_PER_LINE = 256;
+	/*
+	 * number of times generateLine() tries a lock-free walk before giving up and 
+	 * waiting for the state lock (see buildLine())
+	 */
+	private static final int MAX_OPTIMISTIC_ATTEMPTS = 3;
 	static final int DIRECTORIES_PER_KEY_WORD = 1;
 	static final int MAX_CHARS_PER_KEY_WORD = 1;
 	private static final int NUM_VALIDITY_TEST_LINES = 1000;
-	private static final String DATABASE_DIRECTORY_NAME = "~database";
+	/*
+	 * number of lines processLines() groups together at a time. bigger batches share
+	 * more shard updates between lines, but the whole batch is held in memory
+	 */
+	private static final int PROCESS_BATCH_SIZE = 10000;
+	static final String DATABASE_DIRECTORY_NAME = "~database";
 	private static final String BACKUP_DIRECTORY_NAME = "~backups";
+	static final String REVERSE_INDEX_DIRECTORY_NAME = "~reverse";
+	private static final String LOG_FILE_NAME = "~wal";
 	
 	static {
 		tokenReplacements = new HashMap<String, String>(3, 1f);
@@ -86,15 +117,57 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 	private final String id;
 	private final String path;
 	private final ShardCache shardCache;
+	private final DatabaseMetrics metrics;
+	/*
+	 * used for batch generation (generateLines()). null means do everything in
+	 * the calling thread (see MarkovDatabaseBuilder.executorService)
+	 */
+	private final ExecutorService executor;
+	/*
+	 * used by every generation call that isn't given its own source
+	 * (see MarkovDatabaseBuilder.randomSource)
+	 */
+	private final RandomSource random;
+	/*
+	 * words that come before each bigram, for generateLineContaining(). null if
+	 * it's turned off (see MarkovDatabaseBuilder.reverseIndex)
+	 */
+	private final ReverseIndex reverseIndex;
+	/*
+	 * lines generated ahead of time for generateLine(). null if it's turned off
+	 * (see MarkovDatabaseBuilder.linePoolSize)
+	 */
+	private final LinePool linePool;
+	/*
+	 * runs the async methods' blocking work (see MarkovDatabaseBuilder.ioExecutor)
+	 */
+	private final Executor ioExecutor;
+	/*
+	 * every change since the last save(), for crash recovery. null if it's turned off
+	 * (see MarkovDatabaseBuilder.writeAheadLog)
+	 */
+	private final WriteAheadLog log;
 	
 	MarkovDatabaseImpl(MarkovDatabaseBuilder builder) {
 		this.id = builder.getId();
 		this.path = builder.getParentPath() + File.separator + this.id;
+		//first, so the log and cache below find this one through DatabaseMetrics.of()
+		this.metrics = DatabaseMetrics.create(this.id);
+		this.log = builder.hasWriteAheadLog() ? this.createLog() : null;
 		this.shardCache = new ShardCache(this.id, builder.getShardCacheSize(), this.path 
 				+ File.separator + DATABASE_DIRECTORY_NAME, SaveType.SERIALIZE,
-				builder.getExecutorService(), builder.getFixedCleanupThreshold());
+				builder.getExecutorService(), builder.getFixedCleanupThreshold(), builder.getFollowingWordSetPolicy(),
+				this.log == null ? null : this.log::getWatermark, builder.hasLogStructuredStorage());
 		//ensure necessary directories exist during db creation
 		new File(this.path + File.separator + BACKUP_DIRECTORY_NAME).mkdirs();
+		this.metrics.registerMBean();
+		this.executor = builder.getExecutorService();
+		this.random = builder.getRandomSource();
+		this.reverseIndex = builder.hasReverseIndex() ? new ReverseIndex(this.id, this.path + File.separator 
+				+ REVERSE_INDEX_DIRECTORY_NAME, builder, MarkovDatabaseImpl::getKey) : null;
+		this.ioExecutor = builder.getIoExecutor() == null ? DefaultIoExecutor.INSTANCE : builder.getIoExecutor();
+		this.linePool = builder.getLinePoolSize() > 0 ? new LinePool(this.id, builder.getLinePoolSize(), 
+				builder.getLinePoolMaxAge(), () -> this.buildLine(null, this.random), this.executor, this.metrics) : null;
 	}
 	
 	@Override
@@ -103,27 +176,159 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 			return false;
 		}
 		
-		//at least one element is present by above
-		Bigram currentBigram = new Bigram(START_TOKEN, stripTokens(MyStringPool.INSTANCE.intern(words.get(0))));
-		String nextWord = "";
-		int wordIndex = 1;
-		while(wordIndex < words.size()) {
-			nextWord = stripTokens(MyStringPool.INSTANCE.intern(words.get(wordIndex)));
-			this.addFollowingWordForBigram(currentBigram, nextWord);
-			currentBigram = new Bigram(currentBigram.getWord2(), nextWord);
-			wordIndex++;
+		long start = System.nanoTime();
+		String[] line = toLine(words);
+		long seq = this.beginRecord(WriteAheadLog.PROCESS, Collections.singletonList(line));
+		try {
+			/*
+			 * bigrams are added last to first. line generation doesn't lock, so it can see
+			 * a line that's only partly added; this way any word it can pick from this line
+			 * already has its own following words, and it never walks into a bigram that
+			 * isn't there yet (which would make it add a bogus END_TOKEN, see 
+			 * getRandomWeightedNextWord()). removeLine() goes first to last for the same reason
+			 * replay() depends on this order too
+			 */
+			for(int i=words.size() - 1; i >= 0; i--) {
+				Bigram bigram = new Bigram(i == 0 ? START_TOKEN : line[i - 1], line[i]);
+				this.shardCache.addFollowingWord(getKey(bigram), bigram, line[i + 1], seq);
+			}
+		} finally {
+			this.endRecord(seq);
 		}
-		this.addFollowingWordForBigram(currentBigram, END_TOKEN);
+		if(this.reverseIndex != null) this.reverseIndex.addLine(line);
+		if(this.linePool != null) this.linePool.modelChanged();
+		this.metrics.recordProcessLine(System.nanoTime() - start);
 		return true;
 	}
 	
+	/*
+	 * the words of a line as they're stored, followed by END_TOKEN
+	 */
+	static String[] toLine(List<String> words) {
+		String[] line = new String[words.size() + 1];
+		for(int i=0; i < words.size(); i++) {
+			line[i] = stripTokens(MyStringPool.INSTANCE.intern(words.get(i)));
+		}
+		line[words.size()] = END_TOKEN;
+		return line;
+	}
+	
+	@Override
+	public int processLines(Iterable<List<String>> lines) throws IOException {
+		int processed = 0;
+		List<String[]> batch = new ArrayList<>();
+		for(List<String> words : lines) {
+			if(words.size() == 0) continue;
+			batch.add(toLine(words));
+			if(batch.size() == PROCESS_BATCH_SIZE) {
+				this.processBatch(batch);
+				processed += batch.size();
+				batch.clear();
+			}
+		}
+		if(!batch.isEmpty()) {
+			this.processBatch(batch);
+			processed += batch.size();
+		}
+		return processed;
+	}
+	
+	/*
+	 * adds a batch of lines (from toLine()), grouping their bigrams by shard key so
+	 * each shard gets one ShardCache.addFollowingWords() instead of one
+	 * addFollowingWord() per word
+	 * grouping everything at once would lose the last-to-first order processLine()
+	 * adds in (which keeps generation from walking into a bigram that isn't there
+	 * yet), so it's done in rounds instead: round d adds the bigram d from the end of
+	 * every line, grouped by shard. by the time a bigram is added, the bigram it leads
+	 * to was added in an earlier round. that's at most MAX_WORDS_PER_LINE rounds,
+	 * each with at most one update per shard
+	 * the whole batch is one write-ahead log record (replay() goes in the same order)
+	 */
+	private void processBatch(List<String[]> batch) throws IOException {
+		int maxWords = 0;
+		for(String[] line : batch) {
+			maxWords = Math.max(maxWords, line.length - 1);
+		}
+		long seq = this.beginRecord(WriteAheadLog.PROCESS, batch);
+		try {
+			for(int distance=0; distance < maxWords; distance++) {
+				Map<String, BigramGroup> groups = new HashMap<>();
+				for(String[] line : batch) {
+					int i = line.length - 2 - distance;
+					if(i < 0) continue;
+					Bigram bigram = new Bigram(i == 0 ? START_TOKEN : line[i - 1], line[i]);
+					groups.computeIfAbsent(getKey(bigram), key -> new BigramGroup()).add(bigram, line[i + 1]);
+				}
+				for(Map.Entry<String, BigramGroup> group : groups.entrySet()) {
+					this.shardCache.addFollowingWords(group.getKey(), group.getValue().bigrams, 
+							group.getValue().followingWords, seq);
+				}
+			}
+		} finally {
+			this.endRecord(seq);
+		}
+		if(this.reverseIndex != null) {
+			for(String[] line : batch) {
+				this.reverseIndex.addLine(line);
+			}
+		}
+		if(this.linePool != null) this.linePool.modelChanged(batch.size());
+	}
+	
+	/*
+	 * bigram -> following word pairs that go in the same shard (see processBatch())
+	 */
+	private static final class BigramGroup {
+		private final List<Bigram> bigrams = new ArrayList<>();
+		private final List<String> followingWords = new ArrayList<>();
+		
+		void add(Bigram bigram, String followingWord) {
+			this.bigrams.add(bigram);
+			this.followingWords.add(followingWord);
+		}
+	}
+	
+	@Override
+	public CompletableFuture<Boolean> processLineAsync(List<String> words) {
+		List<String> copy = new ArrayList<>(words);
+		return CompletableFuture.supplyAsync(() -> 
+		{
+			try {
+				return this.processLine(copy);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, this.ioExecutor);
+	}
+	
 	private void addFollowingWordForBigram(Bigram bigram, String followingWord) throws IOException {
-		this.shardCache.addFollowingWord(this.getKey(bigram), bigram, followingWord);
+		this.shardCache.addFollowingWord(getKey(bigram), bigram, followingWord);
 	}
 	
 	private DatabaseShard getShard(Bigram bigram) {
-		String key = this.getKey(bigram);
-		return this.shardCache.get(key);
+		return this.getShard(getKey(bigram));
+	}
+	
+	/*
+	 * gets the shard with the given key for reading. if it isn't in memory it's loaded
+	 * under loadLock's read lock, which is always taken before the cache's own locks
+	 * and never after (see ShardLoader.loadLock)
+	 * line generation also holds the state lock's read lock around this, so it's not
+	 * loading shards in the middle of a backup load
+	 */
+	private DatabaseShard getShard(String key) {
+		DatabaseShard shard = this.shardCache.getIfPresent(key);
+		if(shard != null) return shard;
+		LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.LOAD_LOCK, "MarkovDatabase.getShard");
+		Lock lock = this.getLoadLock().readLock();
+		lock.lock();
+		try {
+			wait.acquired();
+			return this.shardCache.get(key);
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	
@@ -140,7 +345,7 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 	 * bigram (999, .things), MAX_CHARS_PER_KEY_WORD=2 has key "00~!T"
 	 * bigram (abcdefghij, hellohowareyoutoday), MAX_CHARS_PER_KEY_WORD=10 has key "ABCDEFGHIJ~HELLOHOWAR"
 	 */
-	private String getKey(Bigram bigram) {
+	static String getKey(Bigram bigram) {
 		//special case for start token
 		if(bigram.getWord1().equals(START_TOKEN)) return START_KEY;
 		
@@ -194,47 +399,878 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 		return this.shardCache.getStartShard();
 	}
 	
+	/*
+	 * uses the line pool if there is one, and it has a line ready
+	 */
 	@Override
 	public String generateLine() throws IOException {
+		if(this.linePool != null) {
+			long start = System.nanoTime();
+			String line = this.linePool.take();
+			if(line != null) {
+				this.metrics.recordGenerateLine(System.nanoTime() - start);
+				return line;
+			}
+		}
+		return this.generateLine(this.random);
+	}
+	
+	@Override
+	public String generateLine(RandomSource random) throws IOException {
+		long start = System.nanoTime();
 		try {
-			return this.generateLine(this.getStartShard().getRandomWeightedStartWord());
+			return this.buildLine(null, random);
 		} catch (IllegalArgumentException e) {
 			logger.warn(this + ": illegal argument exception thrown in line generation (empty database?): " + e, e);
 			return "??";
+		} finally {
+			this.metrics.recordGenerateLine(System.nanoTime() - start);
 		}
 	}
 	
 	@Override
 	public String generateLine(String startingWord) throws IOException {
+		return this.generateLine(startingWord, this.random);
+	}
+	
+	@Override
+	public String generateLine(String startingWord, RandomSource random) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return this.buildLine(startingWord, random);
+		} finally {
+			this.metrics.recordGenerateLine(System.nanoTime() - start);
+		}
+	}
+	
+	@Override
+	public CompletableFuture<String> generateLineAsync() {
+		if(this.linePool != null) {
+			long start = System.nanoTime();
+			String line = this.linePool.take();
+			if(line != null) {
+				this.metrics.recordGenerateLine(System.nanoTime() - start);
+				return CompletableFuture.completedFuture(line);
+			}
+		}
+		return this.generateLineAsync(null);
+	}
+	
+	@Override
+	public CompletableFuture<String> generateLineAsync(String startingWord) {
+		String word = startingWord == null ? null : MyStringPool.INSTANCE.intern(startingWord);
+		/*
+		 * try it here first with only what's in memory. gives up (without blocking or
+		 * writing anything) the moment it needs a shard load, the state lock, or to
+		 * repair the database, and then the io executor does the whole line over
+		 * the io executor's walk starts by reusing the numbers this one drew, so a
+		 * seeded source gives the same line whichever of them finishes it
+		 */
+		long start = System.nanoTime();
+		ReplayableSource random = this.random == RandomSource.threadLocal() ? null : new ReplayableSource(this.random);
+		StampedLock lock = this.getStateLock();
+		long stamp = lock.tryOptimisticRead();
+		if(stamp != 0L) {
+			try {
+				String line = this.walk(word, new ResidentRead(), random == null ? this.random : random, Sampling.FULL);
+				if(lock.validate(stamp)) {
+					this.metrics.recordGenerateLine(System.nanoTime() - start);
+					return CompletableFuture.completedFuture(line);
+				}
+			} catch (NotResidentException | IllegalArgumentException | IOException e) {
+				//empty database (IllegalArgumentException) gets handled the usual way below
+			} catch (RuntimeException e) {
+				if(lock.validate(stamp)) {
+					CompletableFuture<String> failed = new CompletableFuture<>();
+					failed.completeExceptionally(e);
+					return failed;
+				}
+			}
+		}
+		this.metrics.recordAsyncHandoff();
+		RandomSource handoffRandom = random == null ? this.random : random.replay();
+		return CompletableFuture.supplyAsync(() ->
+		{
+			try {
+				return word == null ? this.generateLine(handoffRandom) : this.generateLine(word, handoffRandom);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, this.ioExecutor);
+	}
+	
+	/*
+	 * records the numbers generateLineAsync()'s attempt on the calling thread draws,
+	 * so the io executor's walk can draw the same ones again instead of moving the
+	 * source on. after replay() it hands back the recorded numbers in order for as
+	 * long as the walk asks for the same bounds as before (it's the same walk over
+	 * the same database until then), and draws from the source from there on
+	 * only ever used by one thread at a time
+	 */
+	private static final class ReplayableSource implements RandomSource {
+		private final RandomSource source;
+		private int[] bounds = new int[16];
+		private int[] values = new int[16];
+		private int size = 0;
+		/*
+		 * next recorded number to hand back, or -1 while still recording
+		 */
+		private int position = -1;
+		
+		ReplayableSource(RandomSource source) {
+			this.source = source;
+		}
+		
+		ReplayableSource replay() {
+			this.position = 0;
+			return this;
+		}
+		
+		@Override
+		public int nextInt(int bound) {
+			if(this.position < 0) {
+				int value = this.source.nextInt(bound);
+				if(this.size == this.bounds.length) {
+					this.bounds = Arrays.copyOf(this.bounds, this.size * 2);
+					this.values = Arrays.copyOf(this.values, this.size * 2);
+				}
+				this.bounds[this.size] = bound;
+				this.values[this.size] = value;
+				this.size++;
+				return value;
+			}
+			if(this.position < this.size && this.bounds[this.position] == bound) {
+				return this.values[this.position++];
+			}
+			//walk went somewhere else (the database changed), so the rest is new
+			this.position = this.size;
+			return this.source.nextInt(bound);
+		}
+		
+		@Override
+		public RandomSource split() {
+			return this.source.split();
+		}
+	}
+	
+	/*
+	 * thrown by ResidentRead when a walk needs a shard that isn't in memory
+	 * never escapes generateLineAsync(), so no stack trace
+	 */
+	private static final class NotResidentException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		private static final NotResidentException INSTANCE = new NotResidentException();
+		
+		private NotResidentException() {
+			super(null, null, false, false);
+		}
+	}
+	
+	/*
+	 * shard lookup for generateLineAsync()'s attempt on the calling thread. only uses
+	 * shards that are already in memory, and won't let the walk repair a missing
+	 * bigram (that's a write, which can load shards too)
+	 */
+	private final class ResidentRead implements ShardLookup {
+		@Override
+		public DatabaseShard get(Bigram bigram) {
+			DatabaseShard shard = shardCache.getIfPresent(getKey(bigram));
+			if(shard == null) throw NotResidentException.INSTANCE;
+			return shard;
+		}
+		
+		@Override
+		public void checkValid() {
+			throw NotResidentException.INSTANCE;
+		}
+	}
+	
+	/*
+	 * shard lookup used while walking the chain, so single and batch generation
+	 * can share the walk but get their shards differently
+	 */
+	@FunctionalInterface
+	private static interface ShardLookup {
+		DatabaseShard get(Bigram bigram);
+		
+		/*
+		 * called before the walk writes anything to the database. throws 
+		 * StaleReadException if the walk can't trust what it's read so far
+		 */
+		default void checkValid() {}
+	}
+	
+	/*
+	 * thrown to abandon a walk whose optimistic read was invalidated (see OptimisticRead)
+	 * never escapes buildLine(), so no stack trace
+	 */
+	private static final class StaleReadException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		private static final StaleReadException INSTANCE = new StaleReadException();
+		
+		private StaleReadException() {
+			super(null, null, false, false);
+		}
+	}
+	
+	/*
+	 * shard lookup for a walk under an optimistic read of the state lock
+	 * shards already in memory are used with no locking at all. a shard that isn't
+	 * in memory has to be loaded, and that mustn't happen while a backup load or
+	 * clear() is replacing the database files underneath us, so the first miss turns
+	 * the optimistic read into a real read lock (held until close())
+	 * validate() after the walk to see whether anything it read may have been
+	 * replaced in the meantime
+	 */
+	private final class OptimisticRead implements ShardLookup, AutoCloseable {
+		private final StampedLock lock;
+		private long stamp;
+		private boolean locked = false;
+		
+		OptimisticRead(StampedLock lock, long stamp) {
+			this.lock = lock;
+			this.stamp = stamp;
+		}
+		
+		@Override
+		public DatabaseShard get(Bigram bigram) {
+			String key = getKey(bigram);
+			DatabaseShard shard = shardCache.getIfPresent(key);
+			if(shard != null) return shard;
+			if(!this.locked) {
+				long readStamp = this.lock.tryConvertToReadLock(this.stamp);
+				//0 means a writer got in since the walk started, so it's getting redone anyway
+				if(readStamp == 0L) throw StaleReadException.INSTANCE;
+				this.stamp = readStamp;
+				this.locked = true;
+			}
+			return getShard(key);
+		}
+		
+		@Override
+		public void checkValid() {
+			if(!this.validate()) throw StaleReadException.INSTANCE;
+		}
+		
+		/*
+		 * true if no backup load or clear() has started since the walk began
+		 */
+		boolean validate() {
+			return this.locked || this.lock.validate(this.stamp);
+		}
+		
+		@Override
+		public void close() {
+			if(this.locked) {
+				this.lock.unlockRead(this.stamp);
+				this.locked = false;
+			}
+		}
+	}
+	
+	/*
+	 * something that reads shards for line generation, see read()
+	 */
+	@FunctionalInterface
+	private static interface ShardRead<T> {
+		T read(ShardLookup shards) throws IOException;
+	}
+	
+	/*
+	 * generates a line starting from the given word (or a weighted random start word
+	 * if it's null). shared by both generateLine() methods so latency is only recorded
+	 * once per line
+	 */
+	private String buildLine(String startingWord, RandomSource random) throws IOException {
+		return this.read(shards -> this.walk(startingWord, shards, random, Sampling.FULL), "MarkovDatabase.generateLine");
+	}
+	
+	/*
+	 * runs the given read for line generation and returns its result
+	 * takes no lock as long as the shards it needs are in memory: it just reads them
+	 * (they're all safe to read concurrently with processLine(), and a shard that gets
+	 * evicted halfway through is still fine to read), and afterwards checks the state
+	 * lock to make sure no backup load or clear() ran in the meantime. if one did, the
+	 * result might mix old and new data, so it's thrown away and the read is done
+	 * again. after a few failed tries (or if one is running right now) it just waits
+	 * for the read lock
+	 */
+	private <T> T read(ShardRead<T> action, String site) throws IOException {
+		StampedLock lock = this.getStateLock();
+		for(int attempt=0; attempt < MAX_OPTIMISTIC_ATTEMPTS; attempt++) {
+			long stamp = lock.tryOptimisticRead();
+			//0 if a backup load/clear() is running right now
+			if(stamp == 0L) break;
+			try (OptimisticRead read = new OptimisticRead(lock, stamp)) {
+				T result = action.read(read);
+				if(read.validate()) return result;
+			} catch (StaleReadException e) {
+				//redo
+			} catch (RuntimeException e) {
+				//could just be a side effect of reading while the database was being replaced
+				if(lock.validate(stamp)) throw e;
+			}
+			this.metrics.recordGenerateLineRetry();
+		}
+		
+		LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.STATE_LOCK, site);
+		long stamp = lock.readLock();
+		wait.acquired();
+		try {
+			return action.read(this::getShard);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+	
+	/*
+	 * walks the chain from the given starting word (or a weighted random start word if
+	 * it's null) until END_TOKEN or MAX_WORDS_PER_LINE
+	 */
+	private String walk(String startingWord, ShardLookup shards, RandomSource random, Sampling sampling) throws IOException {
+		if(startingWord == null) startingWord = sampling.startWord(this.getStartShard(), random);
 		StringBuilder sb = new StringBuilder();
 		sb.append(startingWord);
-		int wordCount = 1;
-		Bigram currentBigram = new Bigram(START_TOKEN, startingWord);
-		synchronized(this.getLoadLock()) {
-			String nextWord = this.getRandomWeightedNextWord(currentBigram);
-			while(!nextWord.equals(END_TOKEN) && wordCount < MAX_WORDS_PER_LINE) {
-				sb.append(" ");
-				sb.append(nextWord);
-				wordCount++;
+		return this.continueWalk(sb, 1, null, new Bigram(START_TOKEN, startingWord), shards, random, sampling);
+	}
+	
+	/*
+	 * rest of walk(), from currentBigram on. sb holds the wordCount words generated
+	 * so far, ending in currentBigram's second word
+	 */
+	private String continueWalk(StringBuilder sb, int wordCount, Bigram previousBigram, Bigram currentBigram, 
+			ShardLookup shards, RandomSource random, Sampling sampling) throws IOException {
+		String nextWord = this.getRandomWeightedNextWord(currentBigram, previousBigram, shards, random, sampling);
+		while(!nextWord.equals(END_TOKEN) && wordCount < MAX_WORDS_PER_LINE) {
+			sb.append(" ");
+			sb.append(nextWord);
+			wordCount++;
+			
+			previousBigram = currentBigram;
+			currentBigram = new Bigram(currentBigram.getWord2(), nextWord);
+			nextWord = this.getRandomWeightedNextWord(currentBigram, previousBigram, shards, random, sampling);
+		}
+		
+		return sb.toString();
+	}
+	
+	/*
+	 * how a walk picks each word: from the whole weighted distribution (FULL), or only
+	 * from the most frequent few (topK())
+	 */
+	private static interface Sampling {
+		String startWord(StartDatabaseShard startShard, RandomSource random);
+		
+		String nextWord(DatabaseShard shard, Bigram bigram, RandomSource random);
+		
+		static final Sampling FULL = new Sampling() {
+			@Override
+			public String startWord(StartDatabaseShard startShard, RandomSource random) {
+				return startShard.getRandomWeightedStartWord(random);
+			}
+			
+			@Override
+			public String nextWord(DatabaseShard shard, Bigram bigram, RandomSource random) {
+				return shard.getFollowingWord(bigram, random);
+			}
+		};
+		
+		static Sampling topK(int k) {
+			return new Sampling() {
+				@Override
+				public String startWord(StartDatabaseShard startShard, RandomSource random) {
+					return startShard.getTopStartWords(k).sample(random);
+				}
 				
-				currentBigram = new Bigram(currentBigram.getWord2(), nextWord);
-				nextWord = this.getRandomWeightedNextWord(currentBigram);
+				@Override
+				public String nextWord(DatabaseShard shard, Bigram bigram, RandomSource random) {
+					return shard.getTopFollowingWords(bigram, k).sample(random);
+				}
+			};
+		}
+	}
+	
+	@Override
+	public String generateLineTopK(int k) throws IOException {
+		return this.generateLineTopK(k, this.random);
+	}
+	
+	@Override
+	public String generateLineTopK(int k, RandomSource random) throws IOException {
+		if(k < 1) throw new IllegalArgumentException("k must be positive");
+		Sampling sampling = Sampling.topK(k);
+		long start = System.nanoTime();
+		try {
+			return this.read(shards -> this.walk(null, shards, random, sampling), "MarkovDatabase.generateLineTopK");
+		} catch (IllegalArgumentException e) {
+			logger.warn(this + ": illegal argument exception thrown in line generation (empty database?): " + e, e);
+			return "??";
+		} finally {
+			this.metrics.recordGenerateLine(System.nanoTime() - start);
+		}
+	}
+	
+	@Override
+	public String generateMostLikelyLine(int beamWidth) throws IOException {
+		return this.generateMostLikelyLine(null, beamWidth);
+	}
+	
+	@Override
+	public String generateMostLikelyLine(String startingWord, int beamWidth) throws IOException {
+		if(beamWidth < 1) throw new IllegalArgumentException("beamWidth must be positive");
+		String word = startingWord == null ? null : stripTokens(MyStringPool.INSTANCE.intern(startingWord));
+		long start = System.nanoTime();
+		try {
+			return this.read(shards -> this.beamSearch(word, beamWidth, shards), "MarkovDatabase.generateMostLikelyLine");
+		} catch (IllegalArgumentException e) {
+			logger.warn(this + ": illegal argument exception thrown in line generation (empty database?): " + e, e);
+			return "??";
+		} finally {
+			this.metrics.recordGenerateLine(System.nanoTime() - start);
+		}
+	}
+	
+	/*
+	 * partial line in a beam search. words are linked back to front through parent
+	 */
+	private static final class Beam {
+		private final Beam parent;
+		private final Bigram bigram;
+		/*
+		 * log probability of the line so far
+		 */
+		private final double score;
+		private final int length;
+		
+		Beam(Beam parent, Bigram bigram, double score) {
+			this.parent = parent;
+			this.bigram = bigram;
+			this.score = score;
+			this.length = parent == null ? 1 : parent.length + 1;
+		}
+		
+		String toLine() {
+			String[] words = new String[this.length];
+			Beam beam = this;
+			for(int i=this.length - 1; i >= 0; i--) {
+				words[i] = beam.bigram.getWord2();
+				beam = beam.parent;
 			}
+			return String.join(" ", words);
+		}
+	}
+	
+	/*
+	 * beam search for the most probable line (product of the probability of every
+	 * word choice, END_TOKEN included) from the given word, or from any start word if
+	 * it's null. keeps the beamWidth best partial lines at each step, and only looks at
+	 * the beamWidth most frequent words after each of them, so it's approximate (a
+	 * line that starts out unlikely can't win). since every choice multiplies in a
+	 * probability <= 1, short common lines are favored, and the search stops as soon
+	 * as no partial line can beat the best finished one
+	 * a bigram missing from the database just ends the line there, like walk() does,
+	 * but nothing gets written to fix it
+	 * deterministic: same database, same line
+	 */
+	private String beamSearch(String startingWord, int width, ShardLookup shards) throws IOException {
+		List<Beam> beams = new ArrayList<>(width);
+		if(startingWord == null) {
+			TopWords startWords = this.getStartShard().getTopStartWords(width);
+			for(int i=0; i < startWords.size() && i < width; i++) {
+				beams.add(new Beam(null, new Bigram(START_TOKEN, startWords.getWord(i)), 
+						Math.log((double) startWords.getCount(i) / startWords.getOutOf())));
+			}
+		} else {
+			beams.add(new Beam(null, new Bigram(START_TOKEN, startingWord), 0));
 		}
 		
-		return sb.toString();
+		Beam best = null;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		while(!beams.isEmpty()) {
+			List<Beam> candidates = new ArrayList<>(width * width);
+			for(Beam beam : beams) {
+				TopWords next = null;
+				if(beam.length < MAX_WORDS_PER_LINE) {
+					try {
+						next = shards.get(beam.bigram).getTopFollowingWords(beam.bigram, width);
+					} catch (IllegalArgumentException e) {
+						shards.checkValid();
+					}
+				}
+				if(next == null) {
+					//line can't go any further, so it ends here
+					if(beam.score > bestScore) {
+						best = beam;
+						bestScore = beam.score;
+					}
+					continue;
+				}
+				for(int i=0; i < next.size(); i++) {
+					double score = beam.score + Math.log((double) next.getCount(i) / next.getOutOf());
+					if(next.getWord(i).equals(END_TOKEN)) {
+						if(score > bestScore) {
+							best = beam;
+							bestScore = score;
+						}
+					} else {
+						candidates.add(new Beam(beam, new Bigram(beam.bigram.getWord2(), next.getWord(i)), score));
+					}
+				}
+			}
+			//stable, so ties stay in the order they were found in
+			candidates.sort((first, second) -> Double.compare(second.score, first.score));
+			beams.clear();
+			for(Beam candidate : candidates) {
+				//scores only go down from here
+				if(beams.size() == width || candidate.score <= bestScore) break;
+				beams.add(candidate);
+			}
+		}
+		return best.toLine();
+	}
+	
+	@Override
+	public String generateLineContaining(String word) throws IOException {
+		return this.generateLineContaining(word, this.random);
 	}
 	
-	private String getRandomWeightedNextWord(Bigram bigram) throws IOException {
+	@Override
+	public String generateLineContaining(String word, RandomSource random) throws IOException {
+		if(this.reverseIndex == null) {
+			throw new IllegalStateException(this + ": generateLineContaining() needs the reverse index "
+					+ "(see MarkovDatabaseBuilder.reverseIndex())");
+		}
+		String keyword = stripTokens(MyStringPool.INSTANCE.intern(word));
+		long start = System.nanoTime();
+		/*
+		 * takes the read lock for the whole line rather than reading optimistically like
+		 * generateLine(); the reverse index isn't covered by OptimisticRead, and it's
+		 * only cleared under the write lock too
+		 */
+		StampedLock lock = this.getStateLock();
+		LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.STATE_LOCK, "MarkovDatabase.generateLineContaining");
+		long stamp = lock.readLock();
+		wait.acquired();
 		try {
-			return this.getShard(bigram).getFollowingWord(bigram);
+			return this.walkThrough(keyword, random);
+		} finally {
+			lock.unlockRead(stamp);
+			this.metrics.recordGenerateLine(System.nanoTime() - start);
+		}
+	}
+	
+	/*
+	 * walks backwards from the given word to START_TOKEN using the reverse index,
+	 * then forwards from it to END_TOKEN like walk(). both halves are weighted the
+	 * same way the database is, so lines come out roughly as likely as they would from
+	 * generateLine() given that they contain the word
+	 * returns null if the word isn't in the database
+	 * caller holds the state lock's read lock
+	 */
+	private String walkThrough(String word, RandomSource random) throws IOException {
+		String before = this.reverseIndex.getWordBefore(word, random);
+		if(before == null) return null;
+		//line up to and including word, back to front
+		List<String> words = new ArrayList<>();
+		words.add(word);
+		while(!before.equals(START_TOKEN) && words.size() < MAX_WORDS_PER_LINE) {
+			Bigram bigram = new Bigram(before, words.get(words.size() - 1));
+			words.add(before);
+			before = this.reverseIndex.getWordBefore(bigram, random);
+			/*
+			 * shouldn't happen, but if the index is missing something just start the
+			 * line here. the forward walk only needs the bigrams after it
+			 */
+			if(before == null) before = START_TOKEN;
+		}
+		
+		Collections.reverse(words);
+		int last = words.size() - 1;
+		Bigram currentBigram = new Bigram(last > 0 ? words.get(last - 1) : START_TOKEN, word);
+		Bigram previousBigram = last > 0 ? new Bigram(last > 1 ? words.get(last - 2) : START_TOKEN, words.get(last - 1)) : null;
+		StringBuilder sb = new StringBuilder(String.join(" ", words));
+		return this.continueWalk(sb, words.size(), previousBigram, currentBigram, this::getShard, random, Sampling.FULL);
+	}
+	
+	@Override
+	public Iterator<String> generateWords() {
+		return this.generateWords(null, this.random);
+	}
+	
+	@Override
+	public Iterator<String> generateWords(String startingWord) {
+		return this.generateWords(startingWord, this.random);
+	}
+	
+	@Override
+	public Iterator<String> generateWords(RandomSource random) {
+		return this.generateWords(null, random);
+	}
+	
+	@Override
+	public Iterator<String> generateWords(String startingWord, RandomSource random) {
+		return new WordIterator(startingWord == null ? null : MyStringPool.INSTANCE.intern(startingWord), random);
+	}
+	
+	/*
+	 * generates a line lazily, one word per next(). same walk as walk(), except every
+	 * step is its own read() (see read()), so nothing is held between calls and a
+	 * caller that stops early just drops the iterator
+	 * if a backup load or clear() happens partway through, the rest of the line comes
+	 * from the new database. words already returned can't be taken back, so the walk
+	 * just carries on from where it is (ending the line if it can't)
+	 */
+	private final class WordIterator implements Iterator<String> {
+		private final RandomSource random;
+		/*
+		 * the given starting word (null for a random one), until the first word
+		 * has been generated
+		 */
+		private String startingWord;
+		/*
+		 * current position in the walk. currentBigram is null until the first word
+		 * has been generated
+		 */
+		private Bigram previousBigram = null;
+		private Bigram currentBigram = null;
+		/*
+		 * the next word to return, or null if it hasn't been generated yet
+		 */
+		private String next = null;
+		private int wordCount = 0;
+		private boolean done = false;
+		
+		WordIterator(String startingWord, RandomSource random) {
+			this.startingWord = startingWord;
+			this.random = random;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if(this.next == null && !this.done) {
+				try {
+					this.advance();
+				} catch (IOException e) {
+					this.done = true;
+					throw new UncheckedIOException(e);
+				}
+			}
+			return this.next != null;
+		}
+		
+		@Override
+		public String next() {
+			if(!this.hasNext()) throw new NoSuchElementException();
+			String word = this.next;
+			this.next = null;
+			return word;
+		}
+		
+		private void advance() throws IOException {
+			if(this.currentBigram == null) {
+				String word = this.startingWord;
+				if(word == null) {
+					try {
+						word = read(shards -> getStartShard().getRandomWeightedStartWord(this.random), 
+								"MarkovDatabase.generateWords");
+					} catch (IllegalArgumentException e) {
+						//same as generateLine()
+						logger.warn(MarkovDatabaseImpl.this + ": illegal argument exception thrown in line generation (empty database?): " 
+								+ e, e);
+						this.emit("??");
+						this.done = true;
+						return;
+					}
+				}
+				this.startingWord = null;
+				this.currentBigram = new Bigram(START_TOKEN, word);
+				this.emit(word);
+				return;
+			}
+			if(this.wordCount >= MAX_WORDS_PER_LINE) {
+				this.done = true;
+				return;
+			}
+			String word = read(shards -> getRandomWeightedNextWord(this.currentBigram, this.previousBigram, shards, this.random,
+					Sampling.FULL),
+					"MarkovDatabase.generateWords");
+			if(word.equals(END_TOKEN)) {
+				this.done = true;
+				return;
+			}
+			this.previousBigram = this.currentBigram;
+			this.currentBigram = new Bigram(this.currentBigram.getWord2(), word);
+			this.emit(word);
+		}
+		
+		private void emit(String word) {
+			this.next = word;
+			this.wordCount++;
+		}
+	}
+	
+	@Override
+	public List<String> generateLines(int count) throws IOException {
+		return this.generateLines(count, this.random);
+	}
+	
+	@Override
+	public List<String> generateLines(int count, RandomSource random) throws IOException {
+		if(count < 0) throw new IllegalArgumentException("count must be nonnegative");
+		return this.generateBatch(count, null, random);
+	}
+	
+	@Override
+	public List<String> generateLines(List<String> startingWords) throws IOException {
+		return this.generateLines(startingWords, this.random);
+	}
+	
+	@Override
+	public List<String> generateLines(List<String> startingWords, RandomSource random) throws IOException {
+		return this.generateBatch(startingWords.size(), startingWords, random);
+	}
+	
+	/*
+	 * generates count lines, in parallel on the executor if there is one
+	 * if startingWords is null each line gets a weighted random starting word,
+	 * otherwise line i starts with startingWords.get(i)
+	 * 
+	 * the whole batch holds the state lock's read lock instead of reading
+	 * optimistically like generateLine(), since redoing a whole batch is expensive
+	 * the walks in a batch also share a map of the shards they've used so far, so
+	 * each shard is only looked up in the cache once per batch. the batch holds on
+	 * to those shards until it's done, so they stay usable even if the cache evicts
+	 * them in the meantime (sampling only reads the shard; at worst a walk sees an
+	 * evicted copy that's missing a few very recent updates, same as if it had run a
+	 * moment earlier)
+	 * each line gets its own split() of the random source, handed out in order before
+	 * any walk starts, so which thread ends up generating a line doesn't change it
+	 * lines are claimed one at a time from a shared counter, by the calling thread and
+	 * by helper tasks on the executor. the calling thread never waits for a helper
+	 * that hasn't started: once every line is claimed those are cancelled, and only
+	 * helpers that are already running are waited for. so a batch finishes even if
+	 * the executor is busy, or is the very pool the caller is running on (waiting
+	 * for queued helpers there, with the state lock held, could block forever)
+	 */
+	private List<String> generateBatch(int count, List<String> startingWords, RandomSource random) throws IOException {
+		String[] lines = new String[count];
+		if(count == 0) return Arrays.asList(lines);
+		RandomSource[] sources = new RandomSource[count];
+		for(int i=0; i < count; i++) {
+			sources[i] = random.split();
+		}
+		
+		ConcurrentMap<String, DatabaseShard> batchShards = new ConcurrentHashMap<>();
+		ShardLookup shards = bigram -> batchShards.computeIfAbsent(getKey(bigram), this::getShard);
+		
+		StampedLock lock = this.getStateLock();
+		LockWaitEvent stateWait = LockWaitEvent.begin(this.id, LockWaitEvent.STATE_LOCK, "MarkovDatabase.generateLines");
+		long stamp = lock.readLock();
+		stateWait.acquired();
+		try {
+			this.generateBatch(lines, startingWords, shards, sources);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+		return Arrays.asList(lines);
+	}
+	
+	private void generateBatch(String[] lines, List<String> startingWords, ShardLookup shards, RandomSource[] sources) 
+			throws IOException {
+		int count = lines.length;
+		int tasks = this.executor == null ? 1 : Math.min(count, Runtime.getRuntime().availableProcessors());
+		AtomicInteger nextLine = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<>(tasks - 1);
+		try {
+			for(int t=1; t < tasks; t++) {
+				futures.add(this.executor.submit(() -> 
+				{
+					this.generateBatchLines(lines, nextLine, startingWords, shards, sources);
+					return null;
+				}));
+			}
+			this.generateBatchLines(lines, nextLine, startingWords, shards, sources);
+			//every line is claimed. a helper that can't be cancelled has started, so it
+			//either claimed a line and is finishing it or found none left
+			for(Future<?> future : futures) {
+				if(!future.cancel(false)) future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(this + ": interrupted while generating lines", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if(cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		} finally {
+			//don't leave tasks running if something failed partway through
+			nextLine.set(count);
+			for(Future<?> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+	
+	/*
+	 * generates lines claimed from nextLine until there are none left
+	 */
+	private void generateBatchLines(String[] lines, AtomicInteger nextLine, List<String> startingWords, ShardLookup shards,
+			RandomSource[] sources) throws IOException {
+		for(int i = nextLine.getAndIncrement(); i < lines.length; i = nextLine.getAndIncrement()) {
+			long start = System.nanoTime();
+			try {
+				String startingWord = startingWords == null ? null : MyStringPool.INSTANCE.intern(startingWords.get(i));
+				lines[i] = this.walk(startingWord, shards, sources[i], Sampling.FULL);
+			} catch (IllegalArgumentException e) {
+				//same as generateLine()
+				logger.warn(this + ": illegal argument exception thrown in line generation (empty database?): " + e, e);
+				lines[i] = "??";
+			} finally {
+				this.metrics.recordGenerateLine(System.nanoTime() - start);
+			}
+		}
+	}
+	
+	/*
+	 * previousBigram is the bigram the walk took to get to this one, or null for the
+	 * first step
+	 */
+	private String getRandomWeightedNextWord(Bigram bigram, Bigram previousBigram, ShardLookup shards, RandomSource random, 
+			Sampling sampling) throws IOException {
+		DatabaseShard shard = shards.get(bigram);
+		try {
+			return sampling.nextWord(shard, bigram, random);
 		} catch (IllegalArgumentException ex) {
+			shards.checkValid();
+			/*
+			 * walks don't hold loadLock, so the shard we just read may be a copy that got
+			 * evicted before the bigram was added to its replacement. check the current one
+			 * (if it's in memory) before deciding the bigram is really missing
+			 */
+			DatabaseShard current = this.shardCache.getIfPresent(getKey(bigram));
+			if(current != null && current != shard) {
+				try {
+					return sampling.nextWord(current, bigram, random);
+				} catch (IllegalArgumentException stillMissing) {
+					//really missing
+				}
+			}
+			/*
+			 * if the bigram we came from doesn't lead here anymore, the line we were
+			 * following was removed while we walked it. nothing wrong with the database
+			 */
+			if(previousBigram != null && !shards.get(previousBigram).contains(previousBigram, bigram.getWord2())) {
+				return END_TOKEN;
+			}
 			/*
 			 * thrown when no followingwordset is found for the given bigram
 			 * any given bigram that can be constructed from db should have a following word
 			 * so this indicates something has gone wrong (eg some words not processed from a line)
 			 * add a general following word set by having the given bigram end a message
 			 */
+			this.metrics.recordNextWordFallback();
 			logger.warn(this + ": couldn't find following word for " + bigram + " (ex: " + ex.getLocalizedMessage()
 				+ "), constructing default FollowingWordSet w/ END_TOKEN");
 			this.addFollowingWordForBigram(bigram, END_TOKEN);
@@ -276,7 +1312,7 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 	
 //	alternate contains that defers to cache so we can do it atomically. seems unnecessary as above. unused
 //	private boolean contains(Bigram bigram, String followingWord, int count) {
-//		return this.shardCache.contains(this.getKey(bigram), bigram, followingWord, count);
+//		return this.shardCache.contains(getKey(bigram), bigram, followingWord, count);
 //	}
 	
 	@Override
@@ -293,28 +1329,204 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 		}
 		
 		//now perform the actual removals
-		Bigram currentBigram = new Bigram(START_TOKEN, stripTokens(MyStringPool.INSTANCE.intern(words.get(0))));
-		for(int i=1; i < words.size(); i++) {
-			String followingWord = stripTokens(MyStringPool.INSTANCE.intern(words.get(i)));
-			this.removeFollowingWordForBigram(currentBigram, followingWord);
-			currentBigram = new Bigram(currentBigram.getWord2(), followingWord);
+		String[] line = toLine(words);
+		//reverse of processLine(), so reverse index goes first
+		if(this.reverseIndex != null) this.reverseIndex.removeLine(line);
+		long seq = this.beginRecord(WriteAheadLog.REMOVE, Collections.singletonList(line));
+		try {
+			//first to last, see processLine(). replay() depends on this order too
+			for(int i=0; i < words.size(); i++) {
+				Bigram bigram = new Bigram(i == 0 ? START_TOKEN : line[i - 1], line[i]);
+				this.shardCache.removeFollowingWord(getKey(bigram), bigram, line[i + 1], seq);
+			}
+		} finally {
+			this.endRecord(seq);
 		}
-		this.removeFollowingWordForBigram(currentBigram, END_TOKEN);
+		if(this.linePool != null) this.linePool.modelChanged();
 		return true;
 	}
 	
-	private void removeFollowingWordForBigram(Bigram bigram, String followingWord) throws FollowingWordRemovalException, IOException {
-		this.shardCache.removeFollowingWord(this.getKey(bigram), bigram, followingWord);
+	private WriteAheadLog createLog() {
+		return new WriteAheadLog(this.id, Paths.get(this.path, LOG_FILE_NAME), this.metrics);
+	}
+	
+	/*
+	 * writes a change to the write-ahead log (if there is one) before it's applied
+	 * returns the sequence number to pass to the shard cache, and to endRecord() once
+	 * it's applied
+	 */
+	private long beginRecord(byte type, List<String[]> lines) throws IOException {
+		return this.log == null ? WriteAheadLog.NO_RECORD : this.log.begin(type, lines);
+	}
+	
+	private void endRecord(long seq) {
+		if(this.log != null) this.log.end(seq);
+	}
+	
+	/*
+	 * applies one record from the write-ahead log during load(), in the same order
+	 * processLine()/processBatch()/removeLine() applied it. each shard counts its
+	 * changes from the record, so it can skip the ones it was saved with
+	 */
+	private void replay(long seq, byte type, List<String[]> lines) throws IOException {
+		Map<String, AtomicInteger> indexes = new HashMap<>();
+		try {
+			if(type == WriteAheadLog.PROCESS) {
+				int maxWords = 0;
+				for(String[] line : lines) {
+					maxWords = Math.max(maxWords, line.length - 1);
+				}
+				for(int distance=0; distance < maxWords; distance++) {
+					for(String[] line : lines) {
+						int i = line.length - 2 - distance;
+						if(i < 0) continue;
+						this.replayFollowingWord(line, i, seq, indexes, false);
+					}
+				}
+			} else {
+				for(String[] line : lines) {
+					for(int i=0; i < line.length - 1; i++) {
+						this.replayFollowingWord(line, i, seq, indexes, true);
+					}
+				}
+			}
+		} catch (FollowingWordRemovalException e) {
+			//removeLine() stopped at the same place when this happened the first time
+			logger.warn(this + ": couldn't replay removal " + seq + ": " + e.getLocalizedMessage());
+		}
+	}
+	
+	/*
+	 * replays the change made with bigram ending at line[i]
+	 */
+	private void replayFollowingWord(String[] line, int i, long seq, Map<String, AtomicInteger> indexes, 
+			boolean remove) throws FollowingWordRemovalException, IOException {
+		Bigram bigram = new Bigram(i == 0 ? START_TOKEN : line[i - 1], line[i]);
+		String key = getKey(bigram);
+		int index = indexes.computeIfAbsent(key, k -> new AtomicInteger()).getAndIncrement();
+		this.shardCache.replayFollowingWord(key, bigram, line[i + 1], seq, index, remove);
 	}
 
+	/*
+	 * with a write-ahead log, this is a checkpoint: changes wait until it's done, and
+	 * if everything saved the log is emptied
+	 */
 	@Override
 	public void save() throws IOException {
-		this.shardCache.save();
+		WriteAheadLog.Checkpoint save = () ->
+		{
+			boolean saved = this.shardCache.save();
+			if(this.reverseIndex != null) this.reverseIndex.save();
+			return saved;
+		};
+		if(this.log == null) {
+			save.save();
+		} else {
+			this.log.checkpoint(save);
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			this.save();
+		} finally {
+			if(this.log != null) this.log.close();
+			if(this.reverseIndex != null) this.reverseIndex.close();
+			this.metrics.release();
+		}
+	}
+	
+	@Override
+	public CompletableFuture<Void> saveAsync() {
+		return CompletableFuture.runAsync(() ->
+		{
+			try {
+				this.save();
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, this.ioExecutor);
 	}
 	
 	@Override
 	public void load() throws IOException {
+		this.loadDatabase();
+		//start filling the pool now so the first generateLine() calls are already fast
+		if(this.linePool != null) this.linePool.refill();
+	}
+	
+	/*
+	 * load() without starting a line pool refill. clear() and loadBackup() call this
+	 * holding the state lock's write lock, and a refill on a direct executor would
+	 * generate lines right there, waiting on the state lock's read lock forever. they
+	 * start the refill once they've let go of it
+	 */
+	private void loadDatabase() throws IOException {
 		this.shardCache.load();
+		this.recover();
+		if(this.reverseIndex == null) {
+			//would go out of date while it's off, so it'll be rebuilt if it's ever turned back on
+			FileUtils.deleteDirectory(new File(this.path + File.separator + REVERSE_INDEX_DIRECTORY_NAME));
+		} else if(this.reverseIndex.isBuilt()) {
+			this.reverseIndex.load();
+		} else {
+			this.buildReverseIndex();
+		}
+	}
+	
+	/*
+	 * replays whatever's in the write-ahead log, then saves so it can be emptied
+	 * the reverse index isn't logged, so it's rebuilt if anything was replayed
+	 * a log left behind by a run that had it on gets replayed even if it's off now,
+	 * then deleted
+	 */
+	private void recover() throws IOException {
+		WriteAheadLog recovering = this.log;
+		if(recovering == null) {
+			if(!Files.exists(Paths.get(this.path, LOG_FILE_NAME))) return;
+			recovering = this.createLog();
+		}
+		int replayed = recovering.open(this::replay);
+		if(replayed > 0) {
+			logger.info(this + ": replayed " + replayed + " write-ahead log records");
+			if(this.reverseIndex != null) this.reverseIndex.delete();
+			recovering.checkpoint(this.shardCache::save);
+		}
+		if(this.log == null) recovering.delete();
+	}
+	
+	/*
+	 * builds the reverse index from scratch out of the database files. anything left
+	 * over from a build that didn't finish is thrown out first
+	 * reads every shard file once, so it can take a while on a big database. only
+	 * happens the first time the index is turned on, or after a backup load or clear()
+	 */
+	private void buildReverseIndex() throws IOException {
+		logger.info(this + ": building reverse index");
+		long start = System.nanoTime();
+		this.reverseIndex.delete();
+		this.reverseIndex.load();
+		//files have to be up to date with whatever's in memory
+		this.shardCache.save();
+		Path databaseDirectory = Paths.get(this.path + File.separator + DATABASE_DIRECTORY_NAME);
+		if(Files.isDirectory(databaseDirectory)) {
+			try (Stream<Path> stream = Files.walk(databaseDirectory)) {
+				stream.forEach(databaseShardFile -> {
+					if(databaseShardFile.toFile().isFile() && databaseShardFile.getFileName().toString().endsWith(".database")) {
+						try {
+							this.reverseIndex.addShard(this.shardCache.loadShardFromFile(databaseShardFile));
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+		this.reverseIndex.markBuilt();
+		logger.info(this + ": finished building reverse index in " + (System.nanoTime() - start) / 1000000 + "ms");
 	}
 	
 	@Override
@@ -332,7 +1544,9 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 			createdFile = Files.createTempFile(Paths.get(this.path + File.separator + BACKUP_DIRECTORY_NAME), null, null);
 			Files.copy(targetFile, Paths.get(targetFile.toString() + ".bak"), StandardCopyOption.REPLACE_EXISTING);
 		}
+		LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.SAVE_LOCK, "MarkovDatabase.saveBackup");
 		synchronized(this.getSaveLock()) {
+			wait.acquired();
 			try {
 				this.pack(databaseDirectory, createdFile);
 				//zip created, need to move files around now if backup already existed
@@ -399,6 +1613,23 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 		if(!Files.isRegularFile(targetBackup)) {
 			throw new FileNotFoundException("backup '" + backupName + "' not found for " + this);
 		}
+		//replaces the whole database, so keep line generation out until it's done
+		LockWaitEvent stateWait = LockWaitEvent.begin(this.id, LockWaitEvent.STATE_LOCK, "MarkovDatabase.loadBackup");
+		long stamp = this.getStateLock().writeLock();
+		stateWait.acquired();
+		try {
+			if(this.linePool != null) this.linePool.invalidate();
+			this.loadBackup(backupName, targetBackup);
+		} finally {
+			this.getStateLock().unlockWrite(stamp);
+		}
+		if(this.linePool != null) this.linePool.refill();
+	}
+	
+	/*
+	 * does the actual backup load. caller must hold the state lock's write lock
+	 */
+	private void loadBackup(String backupName, Path targetBackup) throws IOException {
 		logger.info(this + ": beginning loading backup '" + backupName + "'");
 		//first save a backup of current database state so we can try to restore it if load fails
 		this.shardCache.saveAndClear();
@@ -407,8 +1638,14 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 		Path tempBackup = this.saveBackup(tempBackupName);
 		logger.info(this + "-load-" + backupName + ": finished saving temp backup. deleting current database files");
 		
-		synchronized(this.getLoadLock()) {
+		LockWaitEvent loadWait = LockWaitEvent.begin(this.id, LockWaitEvent.LOAD_LOCK, "MarkovDatabase.loadBackup");
+		Lock lock = this.getLoadLock().writeLock();
+		lock.lock();
+		try {
+			loadWait.acquired();
+			LockWaitEvent saveWait = LockWaitEvent.begin(this.id, LockWaitEvent.SAVE_LOCK, "MarkovDatabase.loadBackup");
 			synchronized(this.getSaveLock()) {
+				saveWait.acquired();
 				//delete all current database files
 				final String databaseDirectory = this.path + File.separator + DATABASE_DIRECTORY_NAME;
 				FileUtils.deleteDirectory(new File(databaseDirectory));
@@ -428,7 +1665,13 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 				}
 				logger.info(this + "-load-" + backupName + ": finished unpacking backup. deleting temp backup");
 			}
-			this.load();
+			//backups don't include the reverse index, so load() rebuilds it for the new database
+			if(this.reverseIndex != null) this.reverseIndex.delete();
+			//or anything from the log, which was for the old database
+			if(this.log != null) this.log.reset();
+			this.loadDatabase();
+		} finally {
+			lock.unlock();
 		}
 		Files.delete(tempBackup);
 		logger.info(this + "-load-" + backupName + ": temp backup deleted. backup successfully loaded");
@@ -482,10 +1725,21 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 	@Override
 	public void clear() throws IOException {
 		logger.info(this + ": clearing database");
-		this.shardCache.saveAndClear();
-		this.shardCache.getStartShard().clear();
-		FileUtils.deleteDirectory(new File(this.path + File.separator + DATABASE_DIRECTORY_NAME));
-		this.load();
+		LockWaitEvent stateWait = LockWaitEvent.begin(this.id, LockWaitEvent.STATE_LOCK, "MarkovDatabase.clear");
+		long stamp = this.getStateLock().writeLock();
+		stateWait.acquired();
+		try {
+			if(this.linePool != null) this.linePool.invalidate();
+			this.shardCache.saveAndClear();
+			this.shardCache.getStartShard().clear();
+			FileUtils.deleteDirectory(new File(this.path + File.separator + DATABASE_DIRECTORY_NAME));
+			if(this.reverseIndex != null) this.reverseIndex.delete();
+			if(this.log != null) this.log.reset();
+			this.loadDatabase();
+		} finally {
+			this.getStateLock().unlockWrite(stamp);
+		}
+		if(this.linePool != null) this.linePool.refill();
 		logger.info(this + ": finished clearing database");
 	}
 	
@@ -506,8 +1760,9 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 				}
 			});
 			
+			//not generateLine(), which would just hand out pooled lines
 			for(int i=0; i < NUM_VALIDITY_TEST_LINES; i++) {
-				this.generateLine();
+				this.generateLine(this.random);
 			}
 			
 			return true;
@@ -530,9 +1785,13 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 		return this.shardCache.getSaveLock();
 	}
 	
-	private Object getLoadLock() {
+	private ReentrantReadWriteLock getLoadLock() {
 		return this.shardCache.getLoadLock();
 	}
+	
+	private StampedLock getStateLock() {
+		return this.shardCache.getStateLock();
+	}
 
 	/*
 	 * builds human readable version of database
@@ -552,7 +1811,7 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 			 * directories
 			 * also sort them (as strings by File.toString(), ie by filename)
 			 */
-			List<File> files = new ArrayList<>(FileUtils.listFiles(new File(this.path), 
+			List<File> files = new ArrayList<>(FileUtils.listFiles(new File(this.path + File.separator + DATABASE_DIRECTORY_NAME), 
 					FileFilterUtils.suffixFileFilter(".database"), TrueFileFilter.TRUE));
 			Collections.sort(files, (first, second) ->
 			{
@@ -570,6 +1829,26 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 		return this.id;
 	}
 	
+	@Override
+	public MarkovDatabaseMetricsMXBean getMetrics() {
+		return this.metrics;
+	}
+	
+	@Override
+	public Map<String, MemoryFootprint> getShardMemoryFootprints() {
+		return this.shardCache.estimateShardFootprints();
+	}
+	
+	@Override
+	public MemoryFootprint getStartShardMemoryFootprint() {
+		return this.shardCache.estimateStartShardFootprint();
+	}
+	
+	@Override
+	public MemoryFootprint getMemoryFootprint() {
+		return this.shardCache.estimateFootprint();
+	}
+	
 	/*
 	 * checks an input string to make sure it's not a reserved token
 	 * returns the string if it isn't a token, or a replacement word if it is
@@ -583,6 +1862,20 @@ public class MarkovDatabaseImpl implements MarkovDatabase {
 		}
 	}
 	
+	/*
+	 * io executor for databases that aren't given one. threads are only started when
+	 * something's submitted, they're daemons, and they go away after a minute idle
+	 */
+	private static final class DefaultIoExecutor {
+		private static final AtomicInteger THREADS = new AtomicInteger();
+		private static final ExecutorService INSTANCE = Executors.newCachedThreadPool(runnable ->
+		{
+			Thread thread = new Thread(runnable, "markov2-io-" + THREADS.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder("MarkovDatabaseImpl-");
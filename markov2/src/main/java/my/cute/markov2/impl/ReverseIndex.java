@@ -0,0 +1,227 @@
+package my.cute.markov2.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import my.cute.markov2.RandomSource;
+import my.cute.markov2.exceptions.FollowingWordRemovalException;
+
+/*
+ * optional index of which words come before each bigram, so lines can be generated
+ * backwards from a word as well as forwards (see MarkovDatabase.generateLineContaining()
+ * and MarkovDatabaseBuilder.reverseIndex())
+ * stored as a second set of shards next to the database's own, using the same shard
+ * and cache code as the database itself. it holds two kinds of entries:
+ * 	(a, b) -> every word that has come right before "a b" (START_TOKEN if a started
+ * 		the line)
+ * 	(END_TOKEN, b) -> every word that has come right before b (START_TOKEN if b
+ * 		started the line)
+ * weighted like the database, so walking backwards picks each word with the same
+ * probability it had of leading to where the walk is. END_TOKEN never starts a real
+ * bigram, so the second kind can't collide with the first
+ * everything in here can be derived from the database, so it isn't included in
+ * backups. it's rebuilt from the database when it's missing (see isBuilt())
+ */
+final class ReverseIndex {
+
+	private static final Logger logger = LoggerFactory.getLogger(ReverseIndex.class);
+	/*
+	 * written once the index has been fully built. a directory without it is a build
+	 * that didn't finish
+	 */
+	private static final String BUILT_MARKER = "built";
+
+	private final String id;
+	private final Path directory;
+	private final ShardCache cache;
+	/*
+	 * the index's own metrics (under its own id), so close() can release them
+	 */
+	private final DatabaseMetrics metrics;
+	/*
+	 * MarkovDatabaseImpl.getKey(), so the index is sharded the same way as the database
+	 */
+	private final Function<Bigram, String> keys;
+
+	ReverseIndex(String databaseId, String directory, MarkovDatabaseBuilder builder, Function<Bigram, String> keys) {
+		this.id = databaseId + "~reverse";
+		this.directory = Paths.get(directory);
+		this.metrics = DatabaseMetrics.create(this.id);
+		this.cache = new ShardCache(this.id, builder.getShardCacheSize(), this.directory.toString(), SaveType.SERIALIZE,
+				builder.getExecutorService(), builder.getFixedCleanupThreshold(), builder.getFollowingWordSetPolicy());
+		this.keys = keys;
+	}
+
+	/*
+	 * adds everything for a line processed into the database. line is the line's
+	 * words followed by END_TOKEN, like in MarkovDatabaseImpl.processLine()
+	 * entries are added first to last, so a backwards walk (which doesn't lock) that
+	 * finds part of this line can always keep following it back to the start
+	 */
+	void addLine(String[] line) throws IOException {
+		for(int i=0; i < line.length - 1; i++) {
+			this.add(i == 0 ? MarkovDatabaseImpl.START_TOKEN : line[i - 1], line[i], line[i + 1]);
+		}
+	}
+
+	/*
+	 * adds the entries for every word in the given database shard (used to build the
+	 * index from an existing database)
+	 */
+	void addShard(DatabaseShard shard) throws IOException {
+		for(Map.Entry<Bigram, FollowingWordSet> entry : shard.database.entrySet()) {
+			Bigram bigram = entry.getKey();
+			List<String> words = entry.getValue().getWords();
+			List<String> copy;
+			synchronized(words) {
+				copy = new ArrayList<>(words);
+			}
+			for(String word : copy) {
+				this.add(bigram.getWord1(), bigram.getWord2(), word);
+			}
+		}
+	}
+
+	/*
+	 * adds the entries for a single (word1, word2) -> followingWord in the database
+	 */
+	private void add(String word1, String word2, String followingWord) throws IOException {
+		if(word1.equals(MarkovDatabaseImpl.START_TOKEN)) {
+			this.add(new Bigram(MarkovDatabaseImpl.END_TOKEN, word2), MarkovDatabaseImpl.START_TOKEN);
+		}
+		if(!followingWord.equals(MarkovDatabaseImpl.END_TOKEN)) {
+			this.add(new Bigram(word2, followingWord), word1);
+			this.add(new Bigram(MarkovDatabaseImpl.END_TOKEN, followingWord), word2);
+		}
+	}
+
+	private void add(Bigram bigram, String word) throws IOException {
+		this.cache.addFollowingWord(this.keys.apply(bigram), bigram, word);
+	}
+
+	/*
+	 * removes everything addLine() added for the given line, in the opposite order
+	 * the index is only used for generation, so anything that isn't there is just
+	 * logged (the index can always be rebuilt)
+	 */
+	void removeLine(String[] line) throws IOException {
+		for(int i=line.length - 2; i >= 0; i--) {
+			String word1 = i == 0 ? MarkovDatabaseImpl.START_TOKEN : line[i - 1];
+			if(!line[i + 1].equals(MarkovDatabaseImpl.END_TOKEN)) {
+				this.remove(new Bigram(MarkovDatabaseImpl.END_TOKEN, line[i + 1]), line[i]);
+				this.remove(new Bigram(line[i], line[i + 1]), word1);
+			}
+			if(i == 0) {
+				this.remove(new Bigram(MarkovDatabaseImpl.END_TOKEN, line[i]), word1);
+			}
+		}
+	}
+
+	private void remove(Bigram bigram, String word) throws IOException {
+		try {
+			this.cache.removeFollowingWord(this.keys.apply(bigram), bigram, word);
+		} catch (FollowingWordRemovalException e) {
+			logger.warn(this + ": reverse index out of sync with database, couldn't remove " + word + " before "
+					+ bigram + " (ex: " + e.getLocalizedMessage() + ")");
+		}
+	}
+
+	/*
+	 * weighted random word that has come right before the given word (START_TOKEN if
+	 * it's started lines), or null if the word isn't in the database
+	 */
+	String getWordBefore(String word, RandomSource random) {
+		return this.sample(new Bigram(MarkovDatabaseImpl.END_TOKEN, word), random);
+	}
+
+	/*
+	 * weighted random word that has come right before the given bigram (START_TOKEN if
+	 * its first word has started lines), or null if the bigram isn't in the index
+	 */
+	String getWordBefore(Bigram bigram, RandomSource random) {
+		return this.sample(bigram, random);
+	}
+
+	/*
+	 * same locking as MarkovDatabaseImpl.getShard(). caller holds the database's state
+	 * lock, which covers the index too
+	 */
+	private String sample(Bigram bigram, RandomSource random) {
+		String key = this.keys.apply(bigram);
+		DatabaseShard shard = this.cache.getIfPresent(key);
+		if(shard == null) {
+			LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.LOAD_LOCK, "ReverseIndex.sample");
+			Lock lock = this.cache.getLoadLock().readLock();
+			lock.lock();
+			try {
+				wait.acquired();
+				shard = this.cache.get(key);
+			} finally {
+				lock.unlock();
+			}
+		}
+		try {
+			return shard.getFollowingWord(bigram, random);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * true if the index has been completely built. if not, whatever's on disk should
+	 * be deleted and the index rebuilt from the database
+	 */
+	boolean isBuilt() {
+		return Files.exists(this.directory.resolve(BUILT_MARKER));
+	}
+
+	/*
+	 * saves everything and marks the index as fully built
+	 */
+	void markBuilt() throws IOException {
+		this.save();
+		Files.createDirectories(this.directory);
+		Files.write(this.directory.resolve(BUILT_MARKER), new byte[0]);
+	}
+
+	void load() throws IOException {
+		this.cache.load();
+	}
+
+	void save() {
+		this.cache.save();
+	}
+
+	/*
+	 * empties the index and deletes its files
+	 */
+	void delete() throws IOException {
+		this.cache.saveAndClear();
+		this.cache.getStartShard().clear();
+		FileUtils.deleteDirectory(new File(this.directory.toString()));
+	}
+
+	/*
+	 * lets go of the index's metrics once its database is closed (see DatabaseMetrics.release())
+	 */
+	void close() {
+		this.metrics.release();
+	}
+
+	@Override
+	public String toString() {
+		return this.id;
+	}
+}
@@ -5,8 +5,16 @@ import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongSupplier;
 
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -18,6 +26,7 @@ import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.github.benmanes.caffeine.cache.RemovalCause;
 
+import my.cute.markov2.MemoryFootprint;
 import my.cute.markov2.exceptions.FollowingWordRemovalException;
 import my.cute.markov2.exceptions.UncheckedFollowingWordRemovalException;
 
@@ -70,20 +79,38 @@ class ShardCache {
 	 * should probably be a ReentrantLock or something
 	 */
 	private final Object saveLock = new Object();
+	/*
+	 * guards the database as a whole against operations that replace everything in
+	 * it (backup load, clear()). those hold the write lock for their whole duration.
+	 * line generation only reads it optimistically (see MarkovDatabaseImpl.buildLine()),
+	 * so it takes no lock at all unless one of them actually runs
+	 * not reentrant. always acquire before loadLock/saveLock
+	 */
+	private final StampedLock stateLock = new StampedLock();
 	
 	/*
 	 * used for fixed cleanup. counts operations until next cleanup
 	 */
 	private int cleanCount = 0;
 	
-	ShardCache(String i, int c, String path, SaveType save, Executor executorService, int cleanupThreshold) {
+	ShardCache(String i, int c, String path, SaveType save, Executor executorService, int cleanupThreshold,
+			FollowingWordSetPolicy policy) {
+		this(i, c, path, save, executorService, cleanupThreshold, policy, null, false);
+	}
+	
+	/*
+	 * logWatermark is WriteAheadLog.getWatermark() if the database has a log, otherwise null
+	 * logStructured is MarkovDatabaseBuilder.logStructuredStorage
+	 */
+	ShardCache(String i, int c, String path, SaveType save, Executor executorService, int cleanupThreshold,
+			FollowingWordSetPolicy policy, LongSupplier logWatermark, boolean logStructured) {
 		this.id = i;
 		this.capacity = c;
 		this.saveType = save;
-		this.shardLoader = new ShardLoader(this.id, path, this.saveType);
+		this.shardLoader = new ShardLoader(this.id, path, this.saveType, policy, logWatermark, logStructured);
 		this.cleanupThreshold = cleanupThreshold;
 		this.fixedCleanup = this.cleanupThreshold > 0;
-		Caffeine<Object, Object> builder = Caffeine.newBuilder();
+		Caffeine<Object, Object> builder = Caffeine.newBuilder().recordStats();
 		if(this.capacity >= 0) {
 			builder = builder.maximumSize(this.capacity);
 		}
@@ -98,25 +125,25 @@ class ShardCache {
 					@Override
 					public void delete(@NonNull String key, @Nullable DatabaseShard value,
 							@NonNull RemovalCause cause) {
+						LockWaitEvent wait = LockWaitEvent.begin(id, LockWaitEvent.SAVE_LOCK, "ShardCache.delete");
 						synchronized(saveLock) {
-							value.save(saveType);
+							wait.acquired();
+							//the entry's removal blocks compute() on it, so nothing else can change it
+							saveShard(value, cause.name(), true);
 						}
 					}
 				})
 				//CacheLoader rule
 				//i seriously think method reference notation is way less readable?
-				.build(key -> 
-				{
-					synchronized(this.getLoadLock()) {
-						return this.createDatabaseShard(key);
-					}
-				});
+				//callers of get() hold loadLock's read lock (see ShardLoader.loadLock)
+				.build(key -> this.createDatabaseShard(key));
 		/* 
 		 * note start shard is NOT loaded. call load() before use
 		 * done this way so that loading can be done at user's discretion since
 		 * it may be costly, but maybe its just a pain to remember...
 		 */
 		this.startShard = this.shardLoader.createStartShard();
+		DatabaseMetrics.of(this.id).bindCache(this.cache::stats, this.cache::estimatedSize);
 	}
 	
 	
@@ -126,6 +153,15 @@ class ShardCache {
 		return this.cache.get(key);
 	}
 	
+	/*
+	 * the shard for the given key if it's currently in memory, otherwise null
+	 * never loads anything, so it's safe to call without holding any lock
+	 */
+	DatabaseShard getIfPresent(String key) {
+		if(key.equals(MarkovDatabaseImpl.START_KEY)) return this.startShard;
+		return this.cache.getIfPresent(key);
+	}
+	
 	/*
 	 * not totally happy with this method being here instead of just directly calling the shard
 	 * but directly referring to the cache with cache.asMap().compute() lets us update
@@ -135,14 +171,31 @@ class ShardCache {
 	 * also see DatabaseShard.addFollowingWord()
 	 */
 	void addFollowingWord(String key, Bigram bigram, String followingWord) throws IOException {
+		this.addFollowingWord(key, bigram, followingWord, WriteAheadLog.NO_RECORD);
+	}
+	
+	/*
+	 * seq is the write-ahead log record the change belongs to, or WriteAheadLog.NO_RECORD
+	 * (same for the other changes below). the shard notes it inside the compute, so
+	 * the shard never gets saved with the change but without the note or vice versa
+	 */
+	void addFollowingWord(String key, Bigram bigram, String followingWord, long seq) throws IOException {
 		//note the use of == here so this will break if strings aren't intern'd
 		if(key == MarkovDatabaseImpl.START_KEY) {
 			//start shard always being loaded means concurrency problems w/
 			//reloading shards are avoided so we can just call method directly
-			this.startShard.addFollowingWord(bigram, followingWord);
+			//its write lock does what compute does for the other shards
+			synchronized(this.startShard.getWriteLock()) {
+				this.startShard.addFollowingWord(bigram, followingWord);
+				this.startShard.logged(seq, 1);
+			}
 		} else {
 			//compute is always atomic
-			synchronized(this.getLoadLock()) {
+			LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.LOAD_LOCK, "ShardCache.addFollowingWord");
+			Lock lock = this.getLoadLock().readLock();
+			lock.lock();
+			try {
+				wait.acquired();
 				try {
 					this.cache.asMap().compute(key, (shardKey, shard) ->
 					{
@@ -150,6 +203,7 @@ class ShardCache {
 							//i dont like that i'm duplicating the cacheloader rule here
 							if(shard == null) shard = createDatabaseShard(shardKey);
 							shard.addFollowingWord(bigram, followingWord);
+							shard.logged(seq, 1);
 							return shard;
 						} catch (IOException e) {
 							throw new UncheckedIOException(e);
@@ -159,6 +213,52 @@ class ShardCache {
 				} catch (UncheckedIOException e) {
 					throw e.getCause();
 				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		this.checkFixedCleanup();
+	}
+	
+	/*
+	 * addFollowingWord() for a whole group of bigrams in the shard with the given key,
+	 * bigrams.get(i) -> followingWords.get(i). takes loadLock and does the compute once
+	 * for the group instead of once per word (see MarkovDatabaseImpl.processLines())
+	 */
+	void addFollowingWords(String key, List<Bigram> bigrams, List<String> followingWords, long seq) throws IOException {
+		if(key == MarkovDatabaseImpl.START_KEY) {
+			synchronized(this.startShard.getWriteLock()) {
+				for(int i=0; i < bigrams.size(); i++) {
+					this.startShard.addFollowingWord(bigrams.get(i), followingWords.get(i));
+				}
+				this.startShard.logged(seq, bigrams.size());
+			}
+		} else {
+			LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.LOAD_LOCK, "ShardCache.addFollowingWords");
+			Lock lock = this.getLoadLock().readLock();
+			lock.lock();
+			try {
+				wait.acquired();
+				try {
+					this.cache.asMap().compute(key, (shardKey, shard) ->
+					{
+						try {
+							if(shard == null) shard = createDatabaseShard(shardKey);
+							for(int i=0; i < bigrams.size(); i++) {
+								shard.addFollowingWord(bigrams.get(i), followingWords.get(i));
+							}
+							shard.logged(seq, bigrams.size());
+							return shard;
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					});
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+			} finally {
+				lock.unlock();
 			}
 		}
 		
@@ -171,10 +271,22 @@ class ShardCache {
 	 * (exception propagated from DatabaseShard.removeFollowingWord(Bigram, String))
 	 */
 	void removeFollowingWord(String key, Bigram bigram, String followingWord) throws FollowingWordRemovalException, IOException {
+		this.removeFollowingWord(key, bigram, followingWord, WriteAheadLog.NO_RECORD);
+	}
+	
+	void removeFollowingWord(String key, Bigram bigram, String followingWord, long seq) throws FollowingWordRemovalException, 
+			IOException {
 		if(key == MarkovDatabaseImpl.START_KEY) {
-			this.startShard.removeFollowingWord(bigram, followingWord);
+			synchronized(this.startShard.getWriteLock()) {
+				this.startShard.removeFollowingWord(bigram, followingWord);
+				this.startShard.logged(seq, 1);
+			}
 		} else {
+			LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.LOAD_LOCK, "ShardCache.removeFollowingWord");
+			Lock lock = this.getLoadLock().readLock();
+			lock.lock();
 			try {
+				wait.acquired();
 				/*
 				 * need to use atomic compute to avoid concurrency issues which then 
 				 * necessitates this awkward try-catch bs to get the thrown exception 
@@ -185,6 +297,7 @@ class ShardCache {
 					try {
 						if(shard == null) shard = createDatabaseShard(shardKey);
 						shard.removeFollowingWord(bigram, followingWord);
+						shard.logged(seq, 1);
 					} catch (FollowingWordRemovalException e) {
 						//exception encountered. throw runtimeexception to catch it outside of lambda
 						throw new UncheckedFollowingWordRemovalException(e);
@@ -198,7 +311,64 @@ class ShardCache {
 				throw ex.getCause();
 			} catch (UncheckedIOException e) {
 				throw e.getCause();
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		this.checkFixedCleanup();
+	}
+	
+	/*
+	 * replays one change from a write-ahead log record (see MarkovDatabaseImpl.replay()):
+	 * the index-th change the record made to this key's shard, counting from 0. does
+	 * nothing if the shard was saved with it already
+	 */
+	void replayFollowingWord(String key, Bigram bigram, String followingWord, long seq, int index, boolean remove) 
+			throws FollowingWordRemovalException, IOException {
+		if(key == MarkovDatabaseImpl.START_KEY) {
+			synchronized(this.startShard.getWriteLock()) {
+				if(this.startShard.hasLogged(seq, index)) return;
+				if(remove) {
+					this.startShard.removeFollowingWord(bigram, followingWord);
+				} else {
+					this.startShard.addFollowingWord(bigram, followingWord);
+				}
+				this.startShard.logged(seq, 1);
+			}
+			return;
+		}
+		LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.LOAD_LOCK, "ShardCache.replayFollowingWord");
+		Lock lock = this.getLoadLock().readLock();
+		lock.lock();
+		try {
+			wait.acquired();
+			try {
+				this.cache.asMap().compute(key, (shardKey, shard) ->
+				{
+					try {
+						if(shard == null) shard = createDatabaseShard(shardKey);
+						if(shard.hasLogged(seq, index)) return shard;
+						if(remove) {
+							shard.removeFollowingWord(bigram, followingWord);
+						} else {
+							shard.addFollowingWord(bigram, followingWord);
+						}
+						shard.logged(seq, 1);
+						return shard;
+					} catch (FollowingWordRemovalException e) {
+						throw new UncheckedFollowingWordRemovalException(e);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch (UncheckedFollowingWordRemovalException e) {
+				throw e.getCause();
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
 			}
+		} finally {
+			lock.unlock();
 		}
 		
 		this.checkFixedCleanup();
@@ -233,21 +403,133 @@ class ShardCache {
 		return this.startShard;
 	}
 	
+	/*
+	 * memory footprint of each shard currently resident in the cache, by key
+	 * (start shard not included)
+	 */
+	Map<String, MemoryFootprint> estimateShardFootprints() {
+		Map<String, MemoryFootprint> footprints = new HashMap<>();
+		for(Entry<String, DatabaseShard> entry : this.cache.asMap().entrySet()) {
+			footprints.put(entry.getKey(), new FootprintEstimator().add(entry.getValue()).build());
+		}
+		return footprints;
+	}
+	
+	MemoryFootprint estimateStartShardFootprint() {
+		return new FootprintEstimator().add(this.startShard).build();
+	}
+	
+	/*
+	 * footprint of the start shard and every resident shard together, with shared
+	 * strings/tiny sets counted once
+	 */
+	MemoryFootprint estimateFootprint() {
+		FootprintEstimator estimator = new FootprintEstimator().add(this.startShard);
+		for(DatabaseShard shard : this.cache.asMap().values()) {
+			estimator.add(shard);
+		}
+		return estimator.build();
+	}
+	
 	private DatabaseShard createDatabaseShard(String key) throws IOException {
 		return this.shardLoader.createAndLoadShard(key);
 	}
 	
 	/*
 	 * for use at eg shutdown, backup creation
+	 * returns false if any shard failed to save
+	 * resident shards that have piled up too many runs are compacted here instead of
+	 * getting another one (see DatabaseShard.needsCompaction()). otherwise the start
+	 * shard, and every shard when the cache has no maximum size, would never compact,
+	 * since eviction is the only other place that does it
 	 */
-	void save() {
+	boolean save() {
 		this.cache.cleanUp();
+		boolean saved = true;
+		List<String> compact = new ArrayList<>();
+		LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.SAVE_LOCK, "ShardCache.save");
 		synchronized(this.saveLock) {
+			wait.acquired();
 			for(Entry<String, DatabaseShard> entry : this.cache.asMap().entrySet()) {
-				entry.getValue().save(this.saveType);
+				if(entry.getValue().needsCompaction()) {
+					compact.add(entry.getKey());
+				} else {
+					saved &= this.saveShard(entry.getValue(), ShardSaveEvent.CAUSE_SAVE, false);
+				}
+			}
+			if(!this.startShard.needsCompaction()) {
+				saved &= this.saveShard(this.startShard, ShardSaveEvent.CAUSE_SAVE, false);
+			}
+		}
+		/*
+		 * outside saveLock: compacting holds the shard's compute, and eviction takes
+		 * that before saveLock too (see the CacheWriter), so taking them the other way
+		 * round could deadlock
+		 */
+		for(String key : compact) {
+			saved &= this.compact(key);
+		}
+		if(this.startShard.needsCompaction()) saved &= this.compactStartShard();
+		return saved;
+	}
+	
+	/*
+	 * writes the resident shard with the given key out whole, inside its compute so
+	 * nothing can change it meanwhile. true if it isn't resident anymore (eviction
+	 * saved it)
+	 * should be called without holding saveLock
+	 */
+	private boolean compact(String key) {
+		boolean[] saved = {true};
+		this.cache.asMap().computeIfPresent(key, (shardKey, shard) ->
+		{
+			LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.SAVE_LOCK, "ShardCache.compact");
+			synchronized(this.saveLock) {
+				wait.acquired();
+				saved[0] = this.saveShard(shard, ShardSaveEvent.CAUSE_COMPACT, true);
 			}
-			this.startShard.save(this.saveType);
+			return shard;
+		});
+		return saved[0];
+	}
+	
+	/*
+	 * compact() for the start shard, which holds still under its write lock instead
+	 * the write lock is always taken before saveLock
+	 */
+	private boolean compactStartShard() {
+		synchronized(this.startShard.getWriteLock()) {
+			LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.SAVE_LOCK, "ShardCache.compactStartShard");
+			synchronized(this.saveLock) {
+				wait.acquired();
+				return this.saveShard(this.startShard, ShardSaveEvent.CAUSE_COMPACT, true);
+			}
+		}
+	}
+	
+	/*
+	 * saves the given shard, recording a jfr event for it. shards with no changes
+	 * since they were loaded/saved are skipped (see DatabaseShard.isDirty())
+	 * exclusive as in DatabaseShard.save(SaveType, boolean)
+	 * should be called while holding saveLock
+	 */
+	private boolean saveShard(DatabaseShard shard, String cause, boolean exclusive) {
+		if(!shard.isDirty()) {
+			DatabaseMetrics.of(this.id).recordShardSaveSkipped();
+			return true;
 		}
+		ShardSaveEvent event = new ShardSaveEvent();
+		event.begin();
+		boolean saved = shard.save(this.saveType, exclusive);
+		event.end();
+		if(event.shouldCommit()) {
+			event.databaseId = this.id;
+			event.key = shard.key;
+			event.cause = cause;
+			event.bytes = shard.fileSize();
+			event.commit();
+		}
+		return saved;
 	}
 	
 	/*
@@ -276,9 +558,15 @@ class ShardCache {
 	}
 	
 	void cleanUp() {
-		synchronized(this.getLoadLock()) {
+		LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.LOAD_LOCK, "ShardCache.cleanUp");
+		Lock lock = this.getLoadLock().writeLock();
+		lock.lock();
+		try {
+			wait.acquired();
 			this.cache.invalidateAll();
 			this.cache.cleanUp();
+		} finally {
+			lock.unlock();
 		}
 	}
 	
@@ -287,7 +575,11 @@ class ShardCache {
 	 * used for eg prepping for backup or database deletion
 	 */
 	void saveAndClear() {
-		synchronized(this.getLoadLock()) {
+		LockWaitEvent loadWait = LockWaitEvent.begin(this.id, LockWaitEvent.LOAD_LOCK, "ShardCache.saveAndClear");
+		Lock lock = this.getLoadLock().writeLock();
+		lock.lock();
+		try {
+			loadWait.acquired();
 			/* deadlock here if saveLock is owned */
 			this.cache.invalidateAll();
 			/* invalidateAll() requires cache's evictionLock, which could be owned by
@@ -296,9 +588,19 @@ class ShardCache {
 			 * it enters the CacheWriter's delete() method */
 			this.cache.cleanUp();
 			this.cache.asMap().clear();
-			synchronized(this.getSaveLock()) {
-				this.startShard.save();
+			/*
+			 * loadLock's write lock keeps out writers to the other shards, but not to the
+			 * start shard, so its write lock is needed too (taken before saveLock)
+			 */
+			synchronized(this.startShard.getWriteLock()) {
+				LockWaitEvent saveWait = LockWaitEvent.begin(this.id, LockWaitEvent.SAVE_LOCK, "ShardCache.saveAndClear");
+				synchronized(this.getSaveLock()) {
+					saveWait.acquired();
+					this.saveShard(this.startShard, ShardSaveEvent.CAUSE_SAVE, true);
+				}
 			}
+		} finally {
+			lock.unlock();
 		}
 	}
 	
@@ -306,16 +608,30 @@ class ShardCache {
 	 * prepare cache for use
 	 */
 	void load() throws IOException {
-		synchronized(this.getLoadLock()) {
+		LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.LOAD_LOCK, "ShardCache.load");
+		Lock lock = this.getLoadLock().writeLock();
+		lock.lock();
+		try {
+			wait.acquired();
 			this.shardLoader.loadStartShard(this.startShard);
+			/*
+			 * the start shard is never evicted, so this is its chance to compact if it's
+			 * piled up too many runs (see DatabaseShard.needsCompaction())
+			 */
+			if(this.startShard.needsCompaction()) this.compactStartShard();
+		} finally {
+			lock.unlock();
 		}
 	}
 	
 	Object getSaveLock() {
 		return this.saveLock;
 	}
-	Object getLoadLock() {
+	ReentrantReadWriteLock getLoadLock() {
 		return this.shardLoader.getLoadLock();
 	}
+	StampedLock getStateLock() {
+		return this.stateLock;
+	}
 	
 }
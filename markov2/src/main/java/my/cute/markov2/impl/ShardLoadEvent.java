@@ -0,0 +1,30 @@
+package my.cute.markov2.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ * jfr event for a shard being loaded from disk (see DatabaseShard.load(SaveType))
+ * duration covers reading + deserializing the file. bytes is the size of the file
+ * read, or 0 if there was no file yet (new shard)
+ */
+@Name("my.cute.markov2.ShardLoad")
+@Label("Shard Load")
+@Category({"markov2", "Shards"})
+@Description("A database shard loaded from disk")
+class ShardLoadEvent extends Event {
+
+	@Label("Database")
+	String databaseId;
+
+	@Label("Shard Key")
+	String key;
+
+	@Label("File Size")
+	@DataAmount
+	long bytes;
+}
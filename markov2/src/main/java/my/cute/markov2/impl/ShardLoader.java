@@ -3,6 +3,9 @@ package my.cute.markov2.impl;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
 
 /*
  * responsible for loading databaseshards from disk, so it can pass them
@@ -22,37 +25,73 @@ public final class ShardLoader {
 	 * method of deserialization that should be used
 	 */
 	private final SaveType saveType;
+	/*
+	 * passed to every shard this creates
+	 */
+	private final FollowingWordSetPolicy policy;
+	/*
+	 * WriteAheadLog.getWatermark() of the parent database, passed to every shard
+	 * this creates. null if it has no log
+	 */
+	private final LongSupplier logWatermark;
+	/*
+	 * MarkovDatabaseBuilder.logStructuredStorage, passed to every shard this creates
+	 */
+	private final boolean logStructured;
 	/*
 	 * used to lock loading operations to prevent concurrency issues with
 	 * potential competitors (especially backup operations, since db state
 	 * could be inconsistent if loads/saves happen during backup load/save)
-	 * should probably be a ReentrantLock or something but i dunno what i'm
-	 * really doing with the concurrency stuff yet
+	 * anything that might load a shard (cache gets, the compute()s in ShardCache)
+	 * holds the read lock, so loads and writes for different shards all run in
+	 * parallel; the cache's own per-entry locking is what keeps two threads off the
+	 * same shard. things that swap the files out from under the cache (backup load,
+	 * clear(), emptying the cache) hold the write lock
+	 * always taken before touching the cache, never from inside it (cache loader,
+	 * compute()): those run holding a cache entry's lock, and a writer waiting for
+	 * this lock would otherwise stop them finishing while it waits on them
+	 * a j.u.c lock rather than a monitor so waiting virtual threads don't pin their
+	 * carrier (see MarkovDatabaseBuilder.virtualThreads)
 	 */
-	private final Object loadLock = new Object();
+	private final ReentrantReadWriteLock loadLock = new ReentrantReadWriteLock();
+	
+	ShardLoader(String i, String p, SaveType save, FollowingWordSetPolicy policy) {
+		this(i, p, save, policy, null);
+	}
 	
-	ShardLoader(String i, String p, SaveType save) {
+	ShardLoader(String i, String p, SaveType save, FollowingWordSetPolicy policy, LongSupplier logWatermark) {
+		this(i, p, save, policy, logWatermark, false);
+	}
+	
+	ShardLoader(String i, String p, SaveType save, FollowingWordSetPolicy policy, LongSupplier logWatermark,
+			boolean logStructured) {
 		this.id = i;
 		this.path = p;
 		this.saveType = save;
+		this.policy = policy;
+		this.logWatermark = logWatermark;
+		this.logStructured = logStructured;
 	}
 	
 	/*
 	 * creates a shard object for the given key. shard will contain no data
 	 */
 	DatabaseShard createShard(String key) {
-		DatabaseShard shard = new DatabaseShard(this.id, key, this.path);
+		DatabaseShard shard = new DatabaseShard(this.id, key, this.path, this.policy);
+		shard.setLogWatermark(this.logWatermark);
+		shard.setLogStructured(this.logStructured);
 		return shard;
 	}
 	
 	/*
 	 * creates a shard object for the given key and loads all data from the
 	 * relevant file. shard will contain all data recorded for it in the db
-	 * 
-	 * TODO should lock on loadLock before calling load?
+	 * the cache calls this holding loadLock's read lock (see loadLock)
 	 */
 	DatabaseShard createAndLoadShard(String key) throws IOException {
-		DatabaseShard shard = new DatabaseShard(this.id, key, this.path);
+		DatabaseShard shard = new DatabaseShard(this.id, key, this.path, this.policy);
+		shard.setLogWatermark(this.logWatermark);
+		shard.setLogStructured(this.logStructured);
 		shard.load(this.saveType);
 		return shard;
 	}
@@ -66,13 +105,21 @@ public final class ShardLoader {
 	 * shard state (eg adds, removes, contains) are performed
 	 */
 	StartDatabaseShard createStartShard() {
-		StartDatabaseShard shard = new StartDatabaseShard(this.id, MarkovDatabaseImpl.START_KEY, this.path);
+		StartDatabaseShard shard = new StartDatabaseShard(this.id, MarkovDatabaseImpl.START_KEY, this.path, this.policy);
+		shard.setLogWatermark(this.logWatermark);
+		shard.setLogStructured(this.logStructured);
 		return shard;
 	}
 	
 	StartDatabaseShard loadStartShard(StartDatabaseShard shard) throws IOException {
-		synchronized(this.loadLock) {
+		LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.LOAD_LOCK, "ShardLoader.loadStartShard");
+		Lock lock = this.loadLock.readLock();
+		lock.lock();
+		try {
+			wait.acquired();
 			shard.load(this.saveType);
+		} finally {
+			lock.unlock();
 		}
 		return shard;
 	}
@@ -81,28 +128,39 @@ public final class ShardLoader {
 	 * creates and loads a shard whose database is represented by the given file
 	 * it's assumed that files passed in are correct database files w/ correct name structure
 	 * (ie, <key>.database)
+	 * the shard isn't the cache's and may be in use (and being saved) while this reads
+	 * its files, so it only reads them (see DatabaseShard.load(SaveType, boolean))
 	 */
 	DatabaseShard getShardFromFile(File file) throws IOException {
 		//db files are saved as <key>.database, so this retrieves the key from the file
-		String key = file.getName().split("\\.")[0];
-		if(key.equals(MarkovDatabaseImpl.START_KEY)) {
-			return this.loadStartShard(this.createStartShard());
-		} else {
-			return this.createAndLoadShard(key);
-		}
+		return this.readShard(file.getName().split("\\.")[0]);
 	}
 	
 	DatabaseShard getShardFromFile(Path path) throws IOException {
 		//db files are saved as <key>.database, so this retrieves the key from the file
-		String key = path.getFileName().toString().split("\\.")[0];
-		if(key.equals(MarkovDatabaseImpl.START_KEY)) {
-			return this.loadStartShard(this.createStartShard());
-		} else {
-			return this.createAndLoadShard(key);
+		return this.readShard(path.getFileName().toString().split("\\.")[0]);
+	}
+	
+	private DatabaseShard readShard(String key) throws IOException {
+		if(!key.equals(MarkovDatabaseImpl.START_KEY)) {
+			DatabaseShard shard = this.createShard(key);
+			shard.load(this.saveType, false);
+			return shard;
+		}
+		StartDatabaseShard shard = this.createStartShard();
+		LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.LOAD_LOCK, "ShardLoader.readShard");
+		Lock lock = this.loadLock.readLock();
+		lock.lock();
+		try {
+			wait.acquired();
+			shard.load(this.saveType, false);
+		} finally {
+			lock.unlock();
 		}
+		return shard;
 	}
 	
-	Object getLoadLock() {
+	ReentrantReadWriteLock getLoadLock() {
 		return this.loadLock;
 	}
 	
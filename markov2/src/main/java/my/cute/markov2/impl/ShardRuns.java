@@ -0,0 +1,341 @@
+package my.cute.markov2.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import gnu.trove.iterator.TObjectIntIterator;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+/*
+ * log-structured storage for one shard (see MarkovDatabaseBuilder.logStructuredStorage())
+ * instead of rewriting the whole shard file every time a shard with a few new words is
+ * saved, only the changes since it was last written (the delta: bigram -> word -> count
+ * added, negative for removals) go to disk, as a new run file next to the shard's
+ * file. runs are immutable and sorted by bigram. loading the shard reads its file and
+ * then applies every run on top, oldest first. once a shard has enough runs (or
+ * they've grown big next to its file), its next eviction writes the whole shard out
+ * again and deletes them (compaction). the start shard is never evicted, so it's
+ * compacted on load instead
+ * the first run of a shard with no file yet gets an empty one, since shards are
+ * found by their files
+ * runs are named <key>.<n>.run, n counting up from 0 since the last compaction
+ * a compaction writes the shard to <key>.database.compacting, creates <key>.compacted,
+ * moves the new file over the old one, deletes the runs and then the marker. so after
+ * a crash, a marker with no new file next to it means the shard's file already has
+ * the runs that are still lying around (see recover())
+ *
+ * every shard has one of these, since runs left by a database that had log-structured
+ * storage on have to be merged on load either way. the delta is only kept if it's on
+ */
+final class ShardRuns {
+
+	private static final long MAGIC = 0x6d6b763252554e31L;
+	private static final String SUFFIX = ".run";
+	private static final String COMPACTING_SUFFIX = ".compacting";
+	private static final String MARKER_SUFFIX = "compacted";
+	/*
+	 * a shard with this many runs is compacted the next time it's evicted
+	 */
+	static final int MAX_RUNS = 8;
+
+	private final boolean enabled;
+	/*
+	 * changes since the last time the shard was written. guarded by this
+	 */
+	private Map<Bigram, TObjectIntMap<String>> delta = null;
+	/*
+	 * runs on disk, oldest first, and their total size
+	 */
+	private final List<Path> files = new ArrayList<>(0);
+	private long bytes = 0;
+	private int nextIndex = 0;
+
+	ShardRuns(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	boolean isEnabled() {
+		return this.enabled;
+	}
+
+	/*
+	 * notes that count occurrences of word were added to the bigram (or removed,
+	 * if count is negative)
+	 */
+	synchronized void record(Bigram bigram, String word, int count) {
+		if(!this.enabled) return;
+		if(this.delta == null) this.delta = new HashMap<>();
+		TObjectIntMap<String> words = this.delta.get(bigram);
+		if(words == null) {
+			words = new TObjectIntHashMap<>(4);
+			this.delta.put(bigram, words);
+		}
+		if(words.adjustOrPutValue(word, count, count) == 0) {
+			words.remove(word);
+			if(words.isEmpty()) this.delta.remove(bigram);
+		}
+	}
+
+	/*
+	 * takes the delta so far, leaving an empty one. changes made from here on go in
+	 * the next run. null if nothing changed
+	 */
+	synchronized Map<Bigram, TObjectIntMap<String>> take() {
+		Map<Bigram, TObjectIntMap<String>> taken = this.delta;
+		this.delta = null;
+		return taken == null || taken.isEmpty() ? null : taken;
+	}
+
+	/*
+	 * puts a delta from take() back in front of anything recorded since, after a
+	 * failed write
+	 */
+	synchronized void restore(Map<Bigram, TObjectIntMap<String>> taken) {
+		if(taken == null) return;
+		Map<Bigram, TObjectIntMap<String>> since = this.delta;
+		this.delta = taken;
+		if(since == null) return;
+		for(Map.Entry<Bigram, TObjectIntMap<String>> entry : since.entrySet()) {
+			for(TObjectIntIterator<String> iterator = entry.getValue().iterator(); iterator.hasNext();) {
+				iterator.advance();
+				this.record(entry.getKey(), iterator.key(), iterator.value());
+			}
+		}
+	}
+
+	int count() {
+		return this.files.size();
+	}
+
+	/*
+	 * true if the shard should be written out whole instead of adding a run: no
+	 * shard file yet, too many runs, or runs taking up more space than half the file
+	 */
+	boolean shouldCompact(long shardBytes) {
+		return shardBytes == 0 || this.files.size() >= MAX_RUNS || this.bytes * 2 > shardBytes;
+	}
+
+	/*
+	 * finds the runs for the shard with the given file, oldest first, after cleaning
+	 * up after a compaction that didn't finish (see recover()). only for the one load
+	 * of the shard that goes on to use it, ie the cache's (see ShardLoader), since
+	 * anything else loading it at the same time could be in the middle of a compaction
+	 */
+	List<Path> scan(Path shardFile) throws IOException {
+		this.recover(shardFile);
+		this.scanFiles(shardFile);
+		return Collections.unmodifiableList(this.files);
+	}
+	
+	/*
+	 * like scan(), but for reading a shard outside the cache: nothing is deleted. runs
+	 * that a compaction has already moved into the shard's file are skipped
+	 */
+	List<Path> list(Path shardFile) throws IOException {
+		if(movedIn(shardFile)) {
+			this.reset();
+		} else {
+			this.scanFiles(shardFile);
+		}
+		return Collections.unmodifiableList(this.files);
+	}
+	
+	private void scanFiles(Path shardFile) throws IOException {
+		this.files.clear();
+		this.bytes = 0;
+		this.nextIndex = 0;
+		String prefix = prefix(shardFile);
+		List<Path> found = new ArrayList<>(0);
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(shardFile.getParent(), prefix + "*" + SUFFIX)) {
+			for(Path path : stream) {
+				if(index(path, prefix) >= 0) found.add(path);
+			}
+		} catch (NoSuchFileException e) {
+			//no directory, so no shard file and no runs either
+		}
+		Collections.sort(found, Comparator.comparingInt(path -> index(path, prefix)));
+		for(Path path : found) {
+			this.files.add(path);
+			this.bytes += Files.size(path);
+		}
+		if(!found.isEmpty()) this.nextIndex = index(found.get(found.size() - 1), prefix) + 1;
+	}
+
+	/*
+	 * writes the given delta (from take()) as the shard's next run. trailer writes
+	 * whatever the shard appends after the run's data (AppliedRecords)
+	 * written to a temp file and moved into place, so a run is either all there or
+	 * not there at all
+	 */
+	void write(Path shardFile, Map<Bigram, TObjectIntMap<String>> taken, Trailer trailer) throws IOException {
+		Path file = shardFile.resolveSibling(prefix(shardFile) + this.nextIndex + SUFFIX);
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.createDirectories(file.getParent());
+		TreeMap<Bigram, TObjectIntMap<String>> sorted = new TreeMap<>(taken);
+		try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(temp))) {
+			DataOutputStream out = new DataOutputStream(stream);
+			out.writeLong(MAGIC);
+			out.writeInt(sorted.size());
+			for(Map.Entry<Bigram, TObjectIntMap<String>> entry : sorted.entrySet()) {
+				out.writeUTF(entry.getKey().getWord1());
+				out.writeUTF(entry.getKey().getWord2());
+				out.writeInt(entry.getValue().size());
+				for(TObjectIntIterator<String> iterator = entry.getValue().iterator(); iterator.hasNext();) {
+					iterator.advance();
+					out.writeUTF(iterator.key());
+					out.writeInt(iterator.value());
+				}
+			}
+			out.flush();
+			trailer.write(stream);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.files.add(file);
+		this.bytes += Files.size(file);
+		this.nextIndex++;
+	}
+
+	@FunctionalInterface
+	static interface Trailer {
+		void write(OutputStream out) throws IOException;
+	}
+
+	/*
+	 * reads a run back, in bigram order
+	 */
+	static Map<Bigram, TObjectIntMap<String>> read(Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if(in.readLong() != MAGIC) throw new IOException(file + " isn't a shard run");
+			int size = in.readInt();
+			Map<Bigram, TObjectIntMap<String>> run = new TreeMap<>();
+			for(int i=0; i < size; i++) {
+				Bigram bigram = new Bigram(MyStringPool.INSTANCE.intern(in.readUTF()),
+						MyStringPool.INSTANCE.intern(in.readUTF()));
+				int words = in.readInt();
+				TObjectIntMap<String> counts = new TObjectIntHashMap<>(words * 2);
+				for(int j=0; j < words; j++) {
+					counts.put(MyStringPool.INSTANCE.intern(in.readUTF()), in.readInt());
+				}
+				run.put(bigram, counts);
+			}
+			return run;
+		}
+	}
+
+	/*
+	 * deletes every run, once the shard's file has all of them (compaction). the
+	 * delta is left alone
+	 */
+	void deleteAll() throws IOException {
+		for(Path path : this.files) {
+			Files.deleteIfExists(path);
+		}
+		this.files.clear();
+		this.bytes = 0;
+		this.nextIndex = 0;
+	}
+
+	/*
+	 * forgets everything, for a shard that's been emptied (its files go with it)
+	 */
+	synchronized void reset() {
+		this.delta = null;
+		this.files.clear();
+		this.bytes = 0;
+		this.nextIndex = 0;
+	}
+
+	/*
+	 * where the shard should write its file: straight to it normally, or next to it if
+	 * this is a compaction (see compacted())
+	 */
+	Path target(Path shardFile) {
+		return this.files.isEmpty() ? shardFile : compacting(shardFile);
+	}
+	
+	/*
+	 * finishes a compaction once the shard's been written to target(). does nothing if
+	 * there weren't any runs
+	 */
+	void compacted(Path shardFile) throws IOException {
+		if(this.files.isEmpty()) return;
+		Path marker = marker(shardFile);
+		Files.deleteIfExists(marker);
+		Files.createFile(marker);
+		Files.move(compacting(shardFile), shardFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.deleteAll();
+		Files.delete(marker);
+	}
+	
+	/*
+	 * cleans up after a compaction that didn't finish. if the new file was moved into
+	 * place, the runs left over are already in it, so they go. otherwise the new file
+	 * is thrown away and the runs still count
+	 */
+	private void recover(Path shardFile) throws IOException {
+		if(movedIn(shardFile)) {
+			this.scanFiles(shardFile);
+			this.deleteAll();
+		}
+		Files.deleteIfExists(compacting(shardFile));
+		Files.deleteIfExists(marker(shardFile));
+	}
+	
+	/*
+	 * true if a compaction got as far as moving the new file into place, so whatever
+	 * runs are left are already in it
+	 */
+	private static boolean movedIn(Path shardFile) {
+		return Files.exists(marker(shardFile)) && !Files.exists(compacting(shardFile));
+	}
+	
+	/*
+	 * the newest run, or null if there aren't any
+	 */
+	Path newest() {
+		return this.files.isEmpty() ? null : this.files.get(this.files.size() - 1);
+	}
+
+	private static Path compacting(Path shardFile) {
+		return shardFile.resolveSibling(shardFile.getFileName() + COMPACTING_SUFFIX);
+	}
+	
+	private static Path marker(Path shardFile) {
+		return shardFile.resolveSibling(prefix(shardFile) + MARKER_SUFFIX);
+	}
+	
+	private static String prefix(Path shardFile) {
+		String name = shardFile.getFileName().toString();
+		return name.substring(0, name.lastIndexOf('.') + 1);
+	}
+
+	/*
+	 * n from <key>.<n>.run, or -1 if the file isn't one of this shard's runs
+	 */
+	private static int index(Path path, String prefix) {
+		String name = path.getFileName().toString();
+		if(!name.startsWith(prefix) || !name.endsWith(SUFFIX)) return -1;
+		try {
+			return Integer.parseInt(name.substring(prefix.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package my.cute.markov2.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ * jfr event for a shard being written to disk by the ShardCache, either because
+ * it was removed from the cache (cause is the caffeine RemovalCause, eg SIZE for
+ * an eviction) or from ShardCache.save() (cause is SAVE)
+ * duration covers serializing + writing the file
+ */
+@Name("my.cute.markov2.ShardSave")
+@Label("Shard Save")
+@Category({"markov2", "Shards"})
+@Description("A database shard written to disk on eviction or save")
+class ShardSaveEvent extends Event {
+
+	static final String CAUSE_SAVE = "SAVE";
+	static final String CAUSE_COMPACT = "COMPACT";
+
+	@Label("Database")
+	String databaseId;
+
+	@Label("Shard Key")
+	String key;
+
+	@Label("Cause")
+	String cause;
+
+	@Label("File Size")
+	@DataAmount
+	long bytes;
+}
@@ -4,12 +4,15 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 
 import org.nustaq.serialization.FSTObjectOutput;
 import org.nustaq.serialization.annotations.Flat;
 
+import my.cute.markov2.RandomSource;
+
 /*
  * FollowingWordSet implementation used for less commonly used bigrams
  * set is maintained as a simple arraylist and each time a word is used it's
@@ -66,8 +69,19 @@ class SmallFollowingWordSet implements FollowingWordSet, Serializable, Iterable<
 	}
 
 	@Override
-	public String getRandomWeightedWord() {
-		return this.words.get(RANDOM.nextInt(this.words.size()));
+	public String getRandomWeightedWord(RandomSource random) {
+		return this.words.get(random.nextInt(this.words.size()));
+	}
+	
+	/*
+	 * counts and sorts the whole list, O(n log n). fine at the sizes small sets are
+	 * kept to
+	 */
+	@Override
+	public TopWords getTopWords(int k) {
+		synchronized(this.words) {
+			return TopWords.of(this.words, k);
+		}
 	}
 
 	@Override
@@ -102,6 +116,16 @@ class SmallFollowingWordSet implements FollowingWordSet, Serializable, Iterable<
 		}
 	}
 	
+	/*
+	 * number of distinct words in the set. O(n), used to decide when to switch to
+	 * LargeFollowingWordSet (see FollowingWordSetPolicy)
+	 */
+	int countUniqueWords() {
+		synchronized(this.words) {
+			return new HashSet<>(this.words).size();
+		}
+	}
+	
 	@Override
 	public boolean isEmpty() {
 		return this.words.isEmpty();
@@ -5,18 +5,22 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Map;
-import java.util.Random;
 
 import org.nustaq.serialization.FSTObjectInput;
 import org.nustaq.serialization.FSTObjectOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import gnu.trove.iterator.TObjectIntIterator;
+import gnu.trove.map.TObjectIntMap;
+import my.cute.markov2.RandomSource;
 import my.cute.markov2.exceptions.FollowingWordRemovalException;
 
 /*
@@ -27,7 +31,6 @@ import my.cute.markov2.exceptions.FollowingWordRemovalException;
 class StartDatabaseShard extends DatabaseShard {
 
 	private static final Logger logger = LoggerFactory.getLogger(StartDatabaseShard.class);
-	private static transient final Random RANDOM = new Random();
 	
 	/*
 	 * the total number of processed bigrams in this shard. because each
@@ -35,59 +38,159 @@ class StartDatabaseShard extends DatabaseShard {
 	 * the number of lines currently processed in the database
 	 */
 	private int totalCount;
+	/*
+	 * start word -> number of lines starting with it, for sampling start words in
+	 * O(log n). kept in step with the database on every add/remove, and rebuilt
+	 * from it on load
+	 * its monitor is the lock for every change to this shard: the database, the
+	 * index and totalCount are always changed together under it, so concurrent
+	 * writers can't lose an update to the (copy-on-write) tiny sets while still
+	 * counting it in the index. sampling doesn't take it (see StartWordIndex)
+	 */
+	private final StartWordIndex startWords = new StartWordIndex();
 	
-	StartDatabaseShard(String id, String key, String parentPath) {
-		super(id, key, parentPath);
+	StartDatabaseShard(String id, String key, String parentPath, FollowingWordSetPolicy policy) {
+		super(id, key, parentPath, policy);
 		this.totalCount = 0;
 	}
 	
+	/*
+	 * the lock every change to this shard holds (startWords' monitor, reentrant). taken
+	 * by callers that need a change and its write-ahead log note to land together, or
+	 * the shard to hold still while it's written out whole (see ShardCache.save())
+	 */
+	Object getWriteLock() {
+		return this.startWords;
+	}
+	
 	@Override
 	boolean addFollowingWord(Bigram bigram, String followingWord) {
-		boolean result = super.addFollowingWord(bigram, followingWord);
-		this.totalCount++;
-		return result;
+		synchronized(this.startWords) {
+			boolean result = super.addFollowingWord(bigram, followingWord);
+			this.startWords.adjust(bigram.getWord2(), 1);
+			this.totalCount++;
+			return result;
+		}
+	}
+	
+	@Override
+	void addFollowingWords(Bigram bigram, TObjectIntMap<String> counts) {
+		int added = 0;
+		for(TObjectIntIterator<String> iterator = counts.iterator(); iterator.hasNext();) {
+			iterator.advance();
+			added += iterator.value();
+		}
+		synchronized(this.startWords) {
+			super.addFollowingWords(bigram, counts);
+			this.startWords.adjust(bigram.getWord2(), added);
+			this.totalCount += added;
+		}
 	}
 	
 	@Override
 	void removeFollowingWord(Bigram bigram, String followingWord) throws FollowingWordRemovalException {
-		super.removeFollowingWord(bigram, followingWord);
-		this.totalCount--;
+		/*
+		 * index first, so line generation (which doesn't lock) stops picking the word
+		 * before its bigram can disappear. put it back if the removal fails
+		 */
+		synchronized(this.startWords) {
+			this.startWords.adjust(bigram.getWord2(), -1);
+			this.totalCount--;
+			try {
+				super.removeFollowingWord(bigram, followingWord);
+			} catch (FollowingWordRemovalException | RuntimeException e) {
+				this.startWords.adjust(bigram.getWord2(), 1);
+				this.totalCount++;
+				throw e;
+			}
+		}
 	}
 	
 	/*
 	 * gets a random word used to start a message, weighted by word use
 	 * in the start shard, all bigrams have word1 = START_TOKEN, and word2 = actual starting word
-	 * O(n) but its expensive on memory to get faster than that and memory is more of a premium
-	 * throws illegalargumentexception if totalCount == 0 (empty database)
+	 * O(log n) via startWords
+	 * throws illegalargumentexception if the database is empty
 	 */
-	String getRandomWeightedStartWord() throws IllegalArgumentException {
-		String word = null;
-		//throws IllegalArgumentException if totalCount==0 (database is empty)
-		int count = RANDOM.nextInt(this.totalCount);
-		for(Map.Entry<Bigram, FollowingWordSet> entry : this.database.entrySet()) {
-			if(count < entry.getValue().size()) {
-				word = entry.getKey().getWord2();
-				break;
-			} else {
-				count -= entry.getValue().size();
-			}
-		}
+	String getRandomWeightedStartWord(RandomSource random) throws IllegalArgumentException {
+		if(this.startWords.getTotal() <= 0) throw new IllegalArgumentException("no start words in " + this);
+		String word = this.startWords.sample(random);
 		
-		/* sum of totalWordCount over all entries should be the same as this.totalCount
-		 * so the only way this returns default string "hello" is if db is empty, in
-		 * which case illegalargumentexception should have ben thrown
+		/* only null if the last line was removed since the check above
 		 */
 		if(word == null) {
-			logger.warn(this + ": getRandomWeightedStartWord() returned null; totalCount probably wrong! "
+			this.metrics.recordWordCountMismatch();
+			logger.warn(this + ": getRandomWeightedStartWord() returned null; database emptied during sampling? "
 					+ "totalCount: " + this.totalCount);
 			word = "hello";
 		}
 		return word;
 	}
 	
+	/*
+	 * the k most common start words (see TopWords)
+	 * throws illegalargumentexception if the database is empty
+	 */
+	TopWords getTopStartWords(int k) throws IllegalArgumentException {
+		TopWords top = this.startWords.top(k);
+		if(top.isEmpty()) throw new IllegalArgumentException("no start words in " + this);
+		return top;
+	}
+	
+	/*
+	 * rebuilds startWords from the database after it's been replaced (load)
+	 * totalCount is also recomputed, since the counts in the database are what
+	 * sampling actually uses
+	 */
+	private void rebuildStartWords() {
+		synchronized(this.startWords) {
+			this.startWords.clear();
+			long sum = 0;
+			for(Map.Entry<Bigram, FollowingWordSet> entry : this.database.entrySet()) {
+				int count = entry.getValue().size();
+				this.startWords.adjust(entry.getKey().getWord2(), count);
+				sum += count;
+			}
+			if(sum != this.totalCount) {
+				logger.warn(this + ": saved totalCount " + this.totalCount + " doesn't match start shard contents ("
+						+ sum + "), using " + sum);
+				this.metrics.recordWordCountMismatch();
+				this.totalCount = (int) sum;
+				//so the corrected count gets saved
+				this.modified();
+			}
+		}
+	}
+	
+	/*
+	 * the sampling index, for footprint estimates
+	 */
+	StartWordIndex getStartWordIndex() {
+		return this.startWords;
+	}
+	
+	@Override
+	void load(SaveType saveType, boolean recover) throws IOException {
+		super.load(saveType, recover);
+		this.rebuildStartWords();
+	}
+	
+	/*
+	 * total number of lines processed into this shard (see totalCount)
+	 */
+	int getTotalCount() {
+		return this.totalCount;
+	}
+	
 	void clear() {
-		this.database = new DatabaseWrapper(this.key, this.parentDatabaseId);
-		this.totalCount = 0;
+		synchronized(this.startWords) {
+			this.database = new DatabaseWrapper(this.key, this.parentDatabaseId);
+			this.totalCount = 0;
+			this.startWords.clear();
+		}
+		//its runs are deleted along with the rest of the files
+		this.runs.reset();
+		this.modified();
 	}
 	
 	@Override
@@ -110,17 +213,29 @@ class StartDatabaseShard extends DatabaseShard {
 	@Override
 	void saveAsObject() throws IOException {
 		FileOutputStream fileOutputStream = null;
+		//next to the old file if this is replacing runs (see ShardRuns.compacted())
+		Path target = this.runs.target(this.path);
 		try {
-			fileOutputStream = new FileOutputStream(this.path.toString());
+			fileOutputStream = new FileOutputStream(target.toString());
 		} catch (FileNotFoundException ex) {
 			this.path.toFile().getParentFile().mkdirs();
-			fileOutputStream = new FileOutputStream(this.path.toString());
+			fileOutputStream = new FileOutputStream(target.toString());
 		}
 		FSTObjectOutput out = CONF.getObjectOutput(fileOutputStream);
 		out.writeObject(this.database, DatabaseWrapper.class);
 		out.writeInt(this.totalCount);
 		out.flush();
+		this.writeAppliedRecords(fileOutputStream);
 		fileOutputStream.close();
+		this.runs.compacted(this.path);
+	}
+	
+	@Override
+	protected void writeEmpty(OutputStream output) throws IOException {
+		FSTObjectOutput out = CONF.getObjectOutput(output);
+		out.writeObject(new DatabaseWrapper(this.key, this.parentDatabaseId), DatabaseWrapper.class);
+		out.writeInt(0);
+		out.flush();
 	}
 	
 	@Override
@@ -0,0 +1,163 @@
+package my.cute.markov2.impl;
+
+import java.util.concurrent.locks.StampedLock;
+
+import my.cute.markov2.RandomSource;
+
+/*
+ * weighted index over the start shard's words, for O(log n) start word sampling
+ * (see StartDatabaseShard.getRandomWeightedStartWord())
+ * a WeightedIndex holds the number of lines starting with each word, so a weighted
+ * sample is a single O(log n) descent of its tree instead of a walk over the whole
+ * shard
+ * top() also keeps a CountOrder of the words, built the first time it's called
+ * guarded by a StampedLock: changes take the write lock, and sample()/top() take
+ * the read lock, so line generation from many threads doesn't serialize on it and
+ * only waits out the O(log n) changes themselves. sample() doesn't read
+ * optimistically, since retrying would draw a second random number and seeded
+ * generation would depend on timing. the index's own monitor isn't used here;
+ * StartDatabaseShard holds it to keep its writes in step with the index
+ */
+final class StartWordIndex {
+
+	private final StampedLock lock = new StampedLock();
+	private WeightedIndex index = new WeightedIndex();
+	/*
+	 * words by count for top(), or null if it hasn't been asked for yet (or was
+	 * dropped by a bulk change)
+	 */
+	private CountOrder order = null;
+
+	/*
+	 * adds delta to the count for the given word. a word whose count reaches 0 is
+	 * dropped from the index. counts are clamped at 0 rather than going negative
+	 */
+	void adjust(String word, int delta) {
+		long stamp = this.lock.writeLock();
+		try {
+			delta = this.index.adjust(word, delta);
+			if(this.order != null) {
+				if(delta == 1) {
+					this.order.increment(word);
+				} else if(delta == -1) {
+					this.order.decrement(word);
+				} else if(delta != 0) {
+					//only rebuilds on load do this. just build it again next time
+					this.order = null;
+				}
+			}
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+	
+	/*
+	 * the k most common start words (see TopWords)
+	 */
+	TopWords top(int k) {
+		long stamp = this.lock.readLock();
+		try {
+			if(this.order == null) {
+				long writeStamp = this.lock.tryConvertToWriteLock(stamp);
+				if(writeStamp == 0L) {
+					this.lock.unlockRead(stamp);
+					writeStamp = this.lock.writeLock();
+				}
+				stamp = writeStamp;
+				//may have been built while waiting for the write lock
+				if(this.order == null) this.buildOrder();
+			}
+			return this.order.top(k, this.index.getTotal());
+		} finally {
+			this.lock.unlock(stamp);
+		}
+	}
+	
+	/*
+	 * must hold the write lock
+	 */
+	private void buildOrder() {
+		int n = this.index.size();
+		String[] keys = new String[n];
+		int[] counts = new int[n];
+		int[] added = {0};
+		this.index.forEachEntry((word, count) ->
+		{
+			keys[added[0]] = word;
+			counts[added[0]] = count;
+			added[0]++;
+			return true;
+		});
+		this.order = new CountOrder(keys, counts, added[0]);
+	}
+	
+	/*
+	 * the count index, or null if there isn't one. used for memory footprint estimates
+	 */
+	CountOrder getCountOrder() {
+		long stamp = this.lock.readLock();
+		try {
+			return this.order;
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * weighted random word, or null if the index is empty
+	 */
+	String sample(RandomSource random) {
+		long stamp = this.lock.readLock();
+		try {
+			return this.index.sample(random);
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	long getTotal() {
+		long stamp = this.lock.tryOptimisticRead();
+		long total = this.index.getTotal();
+		if(this.lock.validate(stamp)) return total;
+		stamp = this.lock.readLock();
+		try {
+			return this.index.getTotal();
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * number of distinct words in the index
+	 */
+	int size() {
+		long stamp = this.lock.readLock();
+		try {
+			return this.index.size();
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * number of slots allocated, for memory footprint estimates
+	 */
+	int capacity() {
+		long stamp = this.lock.readLock();
+		try {
+			return this.index.capacity();
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	void clear() {
+		long stamp = this.lock.writeLock();
+		try {
+			this.index = new WeightedIndex();
+			this.order = null;
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+}
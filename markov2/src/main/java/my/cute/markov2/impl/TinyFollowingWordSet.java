@@ -13,6 +13,8 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Interner;
 import com.google.common.collect.Interners;
 
+import my.cute.markov2.RandomSource;
+
 /*
  * FollowingWordSet implementation for very small sets, backed by guava 
  * immutablelist and pooled via guava interner
@@ -21,7 +23,7 @@ import com.google.common.collect.Interners;
  * example, only the end-of-line token. if those were all tracked as 
  * smallfollowingwordset a lot of memory would be wasted on duplicate objects,
  * so by pooling them as immutablelists we save a lot of memory
- * only used up to a particular size (as defined by DatabaseShard.SMALL_WORD_SET_THRESHOLD),
+ * only used up to a particular size (as defined by FollowingWordSetPolicy.tinyMaxSize),
  * at which point SmallFollowingWordSet is used, to avoid over-pooling objects
  * note that unlike the other fws implementations, this one is deeply immutable
  */
@@ -113,8 +115,13 @@ class TinyFollowingWordSet implements FollowingWordSet, Serializable, Iterable<S
 	}
 
 	@Override
-	public String getRandomWeightedWord() {
-		return this.words.get(RANDOM.nextInt(this.size()));
+	public String getRandomWeightedWord(RandomSource random) {
+		return this.words.get(random.nextInt(this.size()));
+	}
+	
+	@Override
+	public TopWords getTopWords(int k) {
+		return TopWords.of(this.words, k);
 	}
 
 	@Override
@@ -0,0 +1,124 @@
+package my.cute.markov2.impl;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import my.cute.markov2.RandomSource;
+
+/*
+ * the most frequent words of a FollowingWordSet (or of the start words), with their
+ * counts, for top-k sampling and beam search (see FollowingWordSet.getTopWords())
+ * holds the k most frequent words (or all of them, if there are fewer), highest
+ * count first and ties in alphabetical order. words tied with the kth that don't
+ * fit are left out alphabetically too, so it only depends on the set's contents.
+ * that keeps seeded top-k generation reproducible
+ * immutable snapshot; later changes to the set don't show up in it
+ */
+final class TopWords {
+
+	private final String[] words;
+	private final int[] counts;
+	/*
+	 * sum of counts
+	 */
+	private final int total;
+	/*
+	 * size of the whole set these were taken from, so getCount(i) / outOf is the
+	 * probability the set gives word i
+	 */
+	private final long outOf;
+
+	private TopWords(String[] words, int[] counts, int total, long outOf) {
+		this.words = words;
+		this.counts = counts;
+		this.total = total;
+		this.outOf = outOf;
+	}
+
+	/*
+	 * the first n words/counts, which must already be highest count first
+	 * (arrays are taken over)
+	 */
+	static TopWords of(String[] words, int[] counts, int n, long outOf) {
+		int total = 0;
+		for(int i=0; i < n; i++) {
+			total += counts[i];
+		}
+		//put each run of equal counts in alphabetical order. only the k results, so O(k log k)
+		for(int start=0; start < n;) {
+			int end = start + 1;
+			while(end < n && counts[end] == counts[start]) end++;
+			if(end - start > 1) Arrays.sort(words, start, end);
+			start = end;
+		}
+		return new TopWords(words, counts, total, outOf);
+	}
+
+	/*
+	 * top k of a set stored as one list element per occurrence (tiny and small sets)
+	 * O(n log n), but those sets are small
+	 * caller synchronizes on the collection if it needs to
+	 */
+	static TopWords of(Collection<String> occurrences, int k) {
+		TObjectIntMap<String> wordCounts = new TObjectIntHashMap<>(Math.max(occurrences.size() * 2, 8), 0.5f);
+		for(String word : occurrences) {
+			wordCounts.adjustOrPutValue(word, 1, 1);
+		}
+		int n = wordCounts.size();
+		String[] words = wordCounts.keys(new String[n]);
+		Integer[] indices = new Integer[n];
+		for(int i=0; i < n; i++) {
+			indices[i] = i;
+		}
+		Arrays.sort(indices, (first, second) ->
+		{
+			int byCount = Integer.compare(wordCounts.get(words[second]), wordCounts.get(words[first]));
+			return byCount != 0 ? byCount : words[first].compareTo(words[second]);
+		});
+		int end = Math.min(k, n);
+		String[] topWords = new String[end];
+		int[] topCounts = new int[end];
+		int total = 0;
+		for(int i=0; i < end; i++) {
+			topWords[i] = words[indices[i]];
+			topCounts[i] = wordCounts.get(topWords[i]);
+			total += topCounts[i];
+		}
+		return new TopWords(topWords, topCounts, total, occurrences.size());
+	}
+
+	/*
+	 * random word from these, weighted by count. O(size()), which is about k
+	 */
+	String sample(RandomSource random) {
+		int target = random.nextInt(this.total);
+		for(int i=0; i < this.words.length; i++) {
+			if(target < this.counts[i]) return this.words[i];
+			target -= this.counts[i];
+		}
+		//unreachable, total is the sum of counts
+		return this.words[this.words.length - 1];
+	}
+
+	int size() {
+		return this.words.length;
+	}
+
+	boolean isEmpty() {
+		return this.words.length == 0;
+	}
+
+	String getWord(int i) {
+		return this.words[i];
+	}
+
+	int getCount(int i) {
+		return this.counts[i];
+	}
+
+	long getOutOf() {
+		return this.outOf;
+	}
+}
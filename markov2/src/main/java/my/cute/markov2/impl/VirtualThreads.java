@@ -0,0 +1,25 @@
+package my.cute.markov2.impl;
+
+import java.util.concurrent.ExecutorService;
+
+/*
+ * virtual thread support for MarkovDatabaseBuilder.virtualThreads()
+ * this is the version used before jdk 21, which doesn't have virtual threads. the jar
+ * is multi-release, and on jdk 21+ the version in src/main/java21 is loaded instead
+ * (only there when the jar was built on jdk 21+, see the java21 profile in pom.xml)
+ */
+final class VirtualThreads {
+
+	private VirtualThreads() {}
+
+	static boolean isSupported() {
+		return false;
+	}
+
+	/*
+	 * executor that starts a new virtual thread for every task
+	 */
+	static ExecutorService newExecutor() {
+		throw new UnsupportedOperationException("virtual threads need jdk 21+");
+	}
+}
@@ -0,0 +1,203 @@
+package my.cute.markov2.impl;
+
+import java.util.Arrays;
+
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.procedure.TObjectIntProcedure;
+import my.cute.markov2.RandomSource;
+
+/*
+ * words with integer weights, for O(log n) weighted sampling that's also updated in
+ * place in O(log n). used by StartWordIndex and LargeFollowingWordSet
+ * each word gets a slot, and a fenwick tree over the slots holds each word's weight,
+ * so a weighted sample is a single O(log n) descent of the tree
+ * slots freed when a word's weight drops to 0 are reused, so the arrays only grow
+ * to the largest number of distinct words the index has had at once
+ * costs a slot map entry + a word reference + one int per word
+ * sampling draws one number and picks exactly weight/total of them for each word.
+ * which word a given number picks depends on the slots, ie on the order words were
+ * added and removed, so the same changes and the same random numbers always give
+ * the same word
+ * not thread-safe, owners do the locking
+ */
+final class WeightedIndex {
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int NO_SLOT = -1;
+
+	/*
+	 * word -> slot, slots are 0-based
+	 */
+	private final TObjectIntMap<String> slots;
+	/*
+	 * slot -> word, null for free slots
+	 */
+	private String[] words;
+	/*
+	 * fenwick tree, 1-based: tree[i] is the sum of the weights of slots
+	 * (i - lowbit(i), i] (as 1-based slots). length is always a power of two + 1
+	 */
+	private int[] tree;
+	/*
+	 * free slots below nextUnusedSlot, used as a stack
+	 */
+	private int[] freeSlots = new int[INITIAL_CAPACITY];
+	private int freeCount = 0;
+	/*
+	 * slots at or above this have never been used
+	 */
+	private int nextUnusedSlot = 0;
+	private long total = 0;
+
+	WeightedIndex() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/*
+	 * sized for the given number of words
+	 */
+	WeightedIndex(int expectedSize) {
+		int capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize - 1)) << 1);
+		this.slots = new TObjectIntHashMap<>(capacity, 0.5f, NO_SLOT);
+		this.words = new String[capacity];
+		this.tree = new int[capacity + 1];
+	}
+
+	/*
+	 * adds delta to the weight of the given word. a word whose weight reaches 0 is
+	 * dropped from the index. weights are clamped at 0 rather than going negative
+	 * returns the change actually made
+	 */
+	int adjust(String word, int delta) {
+		int slot = this.slots.get(word);
+		if(slot == NO_SLOT) {
+			if(delta <= 0) return 0;
+			slot = this.allocateSlot(word);
+		} else if(delta < 0) {
+			delta = Math.max(delta, -this.weightAt(slot));
+		}
+		this.add(slot + 1, delta);
+		this.total += delta;
+		if(this.weightAt(slot) <= 0) {
+			this.releaseSlot(word, slot);
+		}
+		return delta;
+	}
+
+	/*
+	 * weighted random word, or null if the index is empty
+	 */
+	String sample(RandomSource random) {
+		if(this.total <= 0) return null;
+		//weights are counts of something held in an int, so total fits in one
+		int target = random.nextInt((int) Math.min(this.total, Integer.MAX_VALUE));
+		//fenwick descent: find the first slot whose prefix sum is > target
+		int position = 0;
+		for(int step = Integer.highestOneBit(this.tree.length - 1); step > 0; step >>= 1) {
+			int next = position + step;
+			if(next < this.tree.length && this.tree[next] <= target) {
+				position = next;
+				target -= this.tree[next];
+			}
+		}
+		//position is the number of slots before the chosen one, so it's the 0-based slot
+		return this.words[position];
+	}
+
+	int getWeight(String word) {
+		int slot = this.slots.get(word);
+		return slot == NO_SLOT ? 0 : this.weightAt(slot);
+	}
+
+	long getTotal() {
+		return this.total;
+	}
+
+	/*
+	 * number of distinct words in the index
+	 */
+	int size() {
+		return this.slots.size();
+	}
+
+	/*
+	 * number of slots allocated, for memory footprint estimates
+	 */
+	int capacity() {
+		return this.words.length;
+	}
+
+	/*
+	 * calls the given procedure with each word and its weight, in slot order,
+	 * stopping early if it returns false
+	 */
+	boolean forEachEntry(TObjectIntProcedure<String> procedure) {
+		for(int slot=0; slot < this.nextUnusedSlot; slot++) {
+			if(this.words[slot] == null) continue;
+			if(!procedure.execute(this.words[slot], this.weightAt(slot))) return false;
+		}
+		return true;
+	}
+
+	private int allocateSlot(String word) {
+		int slot;
+		if(this.freeCount > 0) {
+			slot = this.freeSlots[--this.freeCount];
+		} else {
+			if(this.nextUnusedSlot == this.words.length) {
+				this.grow();
+			}
+			slot = this.nextUnusedSlot++;
+		}
+		this.words[slot] = word;
+		this.slots.put(word, slot);
+		return slot;
+	}
+
+	private void releaseSlot(String word, int slot) {
+		this.slots.remove(word);
+		this.words[slot] = null;
+		if(this.freeCount == this.freeSlots.length) {
+			this.freeSlots = Arrays.copyOf(this.freeSlots, this.freeSlots.length * 2);
+		}
+		this.freeSlots[this.freeCount++] = slot;
+	}
+
+	/*
+	 * doubles capacity. with a power of two capacity n, every tree node <= n keeps
+	 * the same range, the new node 2n covers everything, and every other new node
+	 * only covers new (empty) slots
+	 */
+	private void grow() {
+		int capacity = this.words.length;
+		this.words = Arrays.copyOf(this.words, capacity * 2);
+		int[] newTree = Arrays.copyOf(this.tree, capacity * 2 + 1);
+		newTree[capacity * 2] = this.tree[capacity];
+		this.tree = newTree;
+	}
+
+	/*
+	 * adds delta at 1-based position
+	 */
+	private void add(int position, int delta) {
+		for(; position < this.tree.length; position += position & -position) {
+			this.tree[position] += delta;
+		}
+	}
+
+	/*
+	 * sum of slots [0, slot] (0-based)
+	 */
+	private int prefixSum(int slot) {
+		int sum = 0;
+		for(int position = slot + 1; position > 0; position -= position & -position) {
+			sum += this.tree[position];
+		}
+		return sum;
+	}
+
+	private int weightAt(int slot) {
+		return this.prefixSum(slot) - (slot == 0 ? 0 : this.prefixSum(slot - 1));
+	}
+}
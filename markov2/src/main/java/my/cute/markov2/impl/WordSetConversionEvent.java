@@ -0,0 +1,38 @@
+package my.cute.markov2.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ * jfr event for a followingwordset switching implementation (tiny/small/large)
+ * as words are added or removed, see DatabaseShard.addFollowingWord() and
+ * DatabaseShard.removeFollowingWord(). duration covers building the replacement set
+ * size is the number of words in the set after the conversion
+ */
+@Name("my.cute.markov2.WordSetConversion")
+@Label("Word Set Conversion")
+@Category({"markov2", "Shards"})
+@Description("A following word set converted between the tiny, small and large implementations")
+class WordSetConversionEvent extends Event {
+
+	@Label("Database")
+	String databaseId;
+
+	@Label("Shard Key")
+	String key;
+
+	@Label("Bigram")
+	String bigram;
+
+	@Label("From")
+	String from;
+
+	@Label("To")
+	String to;
+
+	@Label("Size")
+	int size;
+}
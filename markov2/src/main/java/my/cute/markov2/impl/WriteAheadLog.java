@@ -0,0 +1,408 @@
+package my.cute.markov2.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * append-only log of every processLine()/processLines()/removeLine() since the last
+ * save(), so a crash doesn't lose changes that only ever made it into shards in
+ * memory (see MarkovDatabaseBuilder.writeAheadLog())
+ * a change is written and fsynced before it's applied. fsyncs are group commits:
+ * whoever gets to sync first writes every record appended so far with a single
+ * force(), and everyone whose record was in it just returns. so concurrent writers
+ * share fsyncs instead of queueing for one each
+ * on load() the log is replayed. shards saved since the log started (by eviction)
+ * may already have some records, so each shard keeps track of which records it has
+ * (AppliedRecords) and replay skips those. save() is a checkpoint: changes are held
+ * off for its duration (checkpointLock), so once it's saved everything every record
+ * is on disk and the log is emptied
+ *
+ * file layout: MAGIC, next sequence number, then records of
+ * 	length (of what follows the crc), crc32, sequence number, type, number of lines,
+ * 	then each line as its number of words and the words
+ * a record that's cut off, says it's longer than what's left of the file, or fails
+ * its crc ends the log (crash partway through a write). sequence numbers keep counting up across checkpoints and restarts, since
+ * shard files remember them
+ */
+final class WriteAheadLog {
+
+	private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+	private static final long MAGIC = 0x6d6b763257414c31L;
+	private static final int HEADER_BYTES = 16;
+	/*
+	 * passed instead of a sequence number for changes that aren't logged
+	 * (reverse index, databases without a log)
+	 */
+	static final long NO_RECORD = -1;
+	static final byte PROCESS = 1;
+	static final byte REMOVE = 2;
+
+	/*
+	 * called with each record in the log by open()
+	 * lines are as stored (MarkovDatabaseImpl.toLine()), ending in END_TOKEN
+	 */
+	@FunctionalInterface
+	static interface Replayer {
+		void replay(long seq, byte type, List<String[]> lines) throws IOException;
+	}
+
+	private final String id;
+	private final Path file;
+	private final DatabaseMetrics metrics;
+	/*
+	 * held (read) by every logged change from append until it's applied, and
+	 * (write) by checkpoint(), so a checkpoint never sees a change half applied
+	 */
+	private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+	/*
+	 * held while writing to the file. the lock on this is held while appending to
+	 * pending, which is never held while waiting for io
+	 */
+	private final Object ioLock = new Object();
+	private volatile FileChannel channel;
+	/*
+	 * records appended but not written yet. guarded by this
+	 */
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private int pendingRecords = 0;
+	private long nextSeq;
+	/*
+	 * appended records that haven't been applied yet (see getWatermark()). guarded by this
+	 */
+	private final TreeSet<Long> unfinished = new TreeSet<>();
+	/*
+	 * everything up to here is durable. guarded by ioLock
+	 */
+	private long synced;
+	/*
+	 * set once a write fails. the log can't say what made it to disk after that, so
+	 * every change fails until the database is loaded again
+	 */
+	private volatile IOException failure = null;
+
+	WriteAheadLog(String id, Path file, DatabaseMetrics metrics) {
+		this.id = id;
+		this.file = file;
+		this.metrics = metrics;
+	}
+
+	/*
+	 * replays every record in the log, then opens it for appending
+	 * returns the number of records replayed
+	 */
+	int open(Replayer replayer) throws IOException {
+		synchronized(this.ioLock) {
+			this.close();
+			long next = System.currentTimeMillis() * 1000;
+			int replayed = 0;
+			if(Files.exists(this.file)) {
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.file)))) {
+					if(in.readLong() != MAGIC) throw new IOException(this + ": " + this.file + " isn't a write-ahead log");
+					next = in.readLong();
+					long remaining = Files.size(this.file) - HEADER_BYTES;
+					for(Record record = Record.read(in, remaining); record != null; record = Record.read(in, remaining)) {
+						replayer.replay(record.seq, record.type, record.lines);
+						next = Math.max(next, record.seq + 1);
+						remaining -= record.bytes;
+						replayed++;
+					}
+				} catch (EOFException e) {
+					//no header. nothing was ever logged
+				}
+			}
+			synchronized(this) {
+				this.nextSeq = next;
+				this.synced = next - 1;
+				this.unfinished.clear();
+				this.pending.reset();
+				this.pendingRecords = 0;
+			}
+			this.failure = null;
+			if(replayed == 0) this.rewrite();
+			this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+			return replayed;
+		}
+	}
+
+	/*
+	 * starts a logged change: writes the record, waits until it's durable and returns
+	 * its sequence number. the change must be applied and then end() called with the
+	 * number (in a finally), whatever happens. lines as in Replayer
+	 */
+	long begin(byte type, List<String[]> lines) throws IOException {
+		this.checkpointLock.readLock().lock();
+		long seq = NO_RECORD;
+		try {
+			IOException failed = this.failure;
+			if(failed != null) throw new IOException(this + ": write-ahead log failed earlier", failed);
+			if(this.channel == null) throw new IOException(this + ": write-ahead log isn't open (database not loaded?)");
+			byte[] record = Record.encode(type, lines);
+			synchronized(this) {
+				seq = this.nextSeq++;
+				Record.writeSeq(record, seq);
+				this.pending.write(record, 0, record.length);
+				this.pendingRecords++;
+				this.unfinished.add(seq);
+			}
+			this.sync(seq);
+			return seq;
+		} catch (IOException | RuntimeException e) {
+			this.end(seq);
+			throw e;
+		}
+	}
+
+	/*
+	 * finishes a change started with begin()
+	 */
+	void end(long seq) {
+		if(seq != NO_RECORD) {
+			synchronized(this) {
+				this.unfinished.remove(seq);
+			}
+		}
+		this.checkpointLock.readLock().unlock();
+	}
+
+	/*
+	 * group commit: writes everything pending with one fsync, unless someone else
+	 * already did while we waited for ioLock
+	 */
+	private void sync(long seq) throws IOException {
+		synchronized(this.ioLock) {
+			if(this.synced >= seq) return;
+			IOException failed = this.failure;
+			if(failed != null) throw new IOException(this + ": write-ahead log failed earlier", failed);
+			byte[] batch;
+			int records;
+			long last;
+			synchronized(this) {
+				batch = this.pending.toByteArray();
+				records = this.pendingRecords;
+				last = this.nextSeq - 1;
+				this.pending.reset();
+				this.pendingRecords = 0;
+			}
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(batch);
+				while(buffer.hasRemaining()) {
+					this.channel.write(buffer);
+				}
+				this.channel.force(false);
+			} catch (IOException e) {
+				this.failure = e;
+				throw e;
+			}
+			this.synced = last;
+			this.metrics.recordLogSync(records);
+		}
+	}
+
+	/*
+	 * every record up to this one has been applied (or failed)
+	 */
+	synchronized long getWatermark() {
+		return this.unfinished.isEmpty() ? this.nextSeq - 1 : this.unfinished.first() - 1;
+	}
+
+	/*
+	 * runs the given save with changes held off, and empties the log if it worked
+	 * returns the save's result
+	 */
+	boolean checkpoint(Checkpoint save) throws IOException {
+		LockWaitEvent wait = LockWaitEvent.begin(this.id, LockWaitEvent.CHECKPOINT_LOCK, "WriteAheadLog.checkpoint");
+		this.checkpointLock.writeLock().lock();
+		wait.acquired();
+		try {
+			if(!save.save()) {
+				logger.warn(this + ": save failed, keeping write-ahead log");
+				return false;
+			}
+			this.reset();
+			return true;
+		} finally {
+			this.checkpointLock.writeLock().unlock();
+		}
+	}
+
+	@FunctionalInterface
+	static interface Checkpoint {
+		boolean save() throws IOException;
+	}
+
+	/*
+	 * empties the log without saving anything, for when the database it covers is
+	 * thrown away (clear(), backup load)
+	 */
+	void reset() throws IOException {
+		synchronized(this.ioLock) {
+			synchronized(this) {
+				this.pending.reset();
+				this.pendingRecords = 0;
+				this.synced = this.nextSeq - 1;
+			}
+			this.close();
+			this.rewrite();
+			this.failure = null;
+			this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+		}
+	}
+
+	/*
+	 * replaces the file with an empty log. written to a temp file and moved into
+	 * place, so a crash leaves either the old log or the new one
+	 */
+	private void rewrite() throws IOException {
+		long next;
+		synchronized(this) {
+			next = this.nextSeq;
+		}
+		Path temp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+		Files.createDirectories(this.file.getParent());
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			header.putLong(MAGIC).putLong(next).flip();
+			while(header.hasRemaining()) {
+				out.write(header);
+			}
+			out.force(true);
+		}
+		Files.move(temp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	void close() throws IOException {
+		synchronized(this.ioLock) {
+			if(this.channel != null) {
+				this.channel.close();
+				this.channel = null;
+			}
+		}
+	}
+
+	/*
+	 * deletes the log file, for databases that don't use a log anymore
+	 */
+	void delete() throws IOException {
+		this.close();
+		Files.deleteIfExists(this.file);
+	}
+
+	@Override
+	public String toString() {
+		return "WriteAheadLog-" + this.id;
+	}
+
+	/*
+	 * one decoded record
+	 */
+	private static final class Record {
+		private final long seq;
+		private final byte type;
+		private final List<String[]> lines;
+		/*
+		 * size in the file, length and crc included
+		 */
+		private final int bytes;
+
+		private Record(long seq, byte type, List<String[]> lines, int bytes) {
+			this.seq = seq;
+			this.type = type;
+			this.lines = lines;
+			this.bytes = bytes;
+		}
+
+		/*
+		 * encodes a record with a placeholder sequence number (see writeSeq())
+		 */
+		static byte[] encode(byte type, List<String[]> lines) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeLong(0);
+			out.writeByte(type);
+			out.writeInt(lines.size());
+			for(String[] line : lines) {
+				out.writeInt(line.length);
+				for(String word : line) {
+					out.writeUTF(word);
+				}
+			}
+			out.flush();
+			return bytes.toByteArray();
+		}
+
+		/*
+		 * fills in the sequence number, length and crc
+		 */
+		static void writeSeq(byte[] record, long seq) {
+			ByteBuffer buffer = ByteBuffer.wrap(record);
+			buffer.putLong(8, seq);
+			buffer.putInt(0, record.length - 8);
+			CRC32 crc = new CRC32();
+			crc.update(record, 8, record.length - 8);
+			buffer.putInt(4, (int) crc.getValue());
+		}
+
+		/*
+		 * next record, or null at the end of the log (including a torn or corrupt
+		 * record at the end). remaining is the number of bytes left in the file, so a
+		 * garbage length can't make it allocate more than the file could hold
+		 */
+		static Record read(DataInputStream in, long remaining) throws IOException {
+			byte[] body;
+			int expectedCrc;
+			try {
+				int length = in.readInt();
+				expectedCrc = in.readInt();
+				if(length < 13 || length > remaining - 8) return null;
+				body = new byte[length];
+				in.readFully(body);
+			} catch (EOFException e) {
+				return null;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(body, 0, body.length);
+			if((int) crc.getValue() != expectedCrc) {
+				logger.warn("write-ahead log record failed its checksum, ignoring it and everything after it");
+				return null;
+			}
+			DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+			long seq = record.readLong();
+			byte type = record.readByte();
+			int count = record.readInt();
+			List<String[]> lines = new ArrayList<>(count);
+			for(int i=0; i < count; i++) {
+				String[] line = new String[record.readInt()];
+				for(int j=0; j < line.length; j++) {
+					line[j] = MyStringPool.INSTANCE.intern(record.readUTF());
+				}
+				lines.add(line);
+			}
+			return new Record(seq, type, lines, body.length + 8);
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package my.cute.markov2.impl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * virtual thread support for MarkovDatabaseBuilder.virtualThreads()
+ * jdk 21+ version, compiled into META-INF/versions/21 of the multi-release jar by the
+ * java21 profile. has to keep the same methods as the one in src/main/java
+ */
+final class VirtualThreads {
+
+	private VirtualThreads() {}
+
+	static boolean isSupported() {
+		return true;
+	}
+
+	/*
+	 * executor that starts a new virtual thread for every task. virtual threads are
+	 * daemons and the executor holds nothing once its tasks finish, so it never needs
+	 * shutting down
+	 */
+	static ExecutorService newExecutor() {
+		return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("markov2-virtual-", 0).factory());
+	}
+}
@@ -0,0 +1,87 @@
+package my.cute.markov2.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+/*
+ * CountOrder against a reference map under random increments and decrements:
+ * top(k) has to be exactly the first k words by count, ties broken alphabetically
+ */
+public class CountOrderTest {
+
+	@Test
+	public void topIsExactlyKWords() {
+		String[] words = new String[5000];
+		int[] counts = new int[words.length];
+		for(int i=0; i < words.length; i++) {
+			words[i] = "w" + i;
+			counts[i] = 1;
+		}
+		CountOrder order = new CountOrder(words, counts, words.length);
+		TopWords top = order.top(1, words.length);
+		assertEquals(1, top.size());
+		assertEquals("w0", top.getWord(0));
+		assertEquals(3, order.top(3, words.length).size());
+		assertEquals(words.length, order.top(words.length + 10, words.length).size());
+	}
+
+	@Test
+	public void matchesReferenceUnderRandomChanges() {
+		Random random = new Random(5);
+		TObjectIntMap<String> expected = new TObjectIntHashMap<>();
+		//start from a few words so the constructor's ordering is covered too
+		String[] words = {"m", "c", "x", "a"};
+		int[] counts = {3, 1, 3, 2};
+		for(int i=0; i < words.length; i++) {
+			expected.put(words[i], counts[i]);
+		}
+		CountOrder order = new CountOrder(words.clone(), counts.clone(), words.length);
+		for(int step=0; step < 20000; step++) {
+			String word = "w" + random.nextInt(60);
+			//more increments than decrements, so counts spread out into many buckets
+			if(random.nextInt(3) < 2) {
+				order.increment(word);
+				expected.adjustOrPutValue(word, 1, 1);
+			} else {
+				order.decrement(word);
+				if(expected.get(word) > 1) {
+					expected.adjustValue(word, -1);
+				} else {
+					expected.remove(word);
+				}
+			}
+			if(step % 100 == 0) {
+				this.assertTop(expected, order, 1 + random.nextInt(20));
+			}
+		}
+		assertEquals(expected.size(), order.size());
+		this.assertTop(expected, order, expected.size());
+		this.assertTop(expected, order, 7);
+	}
+
+	private void assertTop(TObjectIntMap<String> expected, CountOrder order, int k) {
+		List<String> reference = new ArrayList<>(expected.keySet());
+		Collections.sort(reference, (first, second) ->
+		{
+			int byCount = Integer.compare(expected.get(second), expected.get(first));
+			return byCount != 0 ? byCount : first.compareTo(second);
+		});
+		reference = reference.subList(0, Math.min(k, reference.size()));
+
+		TopWords top = order.top(k, 0);
+		assertEquals(reference.size(), top.size());
+		for(int i=0; i < top.size(); i++) {
+			assertEquals(reference.get(i), top.getWord(i));
+			assertEquals(expected.get(reference.get(i)), top.getCount(i));
+		}
+	}
+}
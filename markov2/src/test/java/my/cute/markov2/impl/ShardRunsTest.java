@@ -0,0 +1,347 @@
+package my.cute.markov2.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import gnu.trove.iterator.TObjectIntIterator;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import my.cute.markov2.exceptions.FollowingWordRemovalException;
+
+/*
+ * log-structured storage (see ShardRuns): runs written on save, merged on load
+ * (removals included), compaction, and recovering from a crash at each step of
+ * ShardRuns.compacted()
+ */
+public class ShardRunsTest {
+
+	private static final String ID = "shardrunstest";
+	private static final String KEY = "AB~CD";
+	private static final Bigram FIRST = new Bigram("ab", "cd");
+	private static final Bigram SECOND = new Bigram("abc", "cde");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String parentPath;
+	/*
+	 * what the shard should hold: bigram -> word -> count
+	 */
+	private Map<Bigram, TObjectIntMap<String>> expected;
+	/*
+	 * the shard file from before and after a compaction, for putting together what a
+	 * crash partway through ShardRuns.compacted() leaves behind
+	 */
+	private byte[] oldFile;
+	private byte[] compactedFile;
+
+	@Before
+	public void setUp() {
+		this.parentPath = this.folder.getRoot().toString();
+		this.expected = new HashMap<>();
+	}
+
+	@Test
+	public void savesOnlyRunsAfterTheFirstSave() throws IOException, FollowingWordRemovalException {
+		DatabaseShard shard = this.newShard();
+		this.add(shard, FIRST, "hello", 3);
+		//no file yet, so the first eviction writes it whole
+		assertTrue(shard.save(SaveType.SERIALIZE, true));
+		assertTrue(Files.exists(shard.path));
+		assertEquals(0, this.runFiles(shard).size());
+
+		this.add(shard, SECOND, "there", 2);
+		this.remove(shard, FIRST, "hello");
+		assertTrue(shard.save(SaveType.SERIALIZE, false));
+		List<Path> runs = this.runFiles(shard);
+		assertEquals(1, runs.size());
+
+		Map<Bigram, TObjectIntMap<String>> run = ShardRuns.read(runs.get(0));
+		assertEquals(2, run.size());
+		assertEquals(-1, run.get(FIRST).get("hello"));
+		assertEquals(2, run.get(SECOND).get("there"));
+	}
+
+	@Test
+	public void firstRunGetsAnEmptyShardFile() throws IOException {
+		DatabaseShard shard = this.newShard();
+		this.add(shard, FIRST, "hello", 1);
+		//not exclusive, so this is a run even though there's no file yet
+		assertTrue(shard.save(SaveType.SERIALIZE, false));
+		assertTrue(Files.exists(shard.path));
+		this.assertContents(this.loadShard());
+	}
+
+	@Test
+	public void mergesRunsOnLoad() throws IOException, FollowingWordRemovalException {
+		DatabaseShard shard = this.newShard();
+		this.writeRuns(shard, 3);
+		assertEquals(3, this.runFiles(shard).size());
+
+		DatabaseShard loaded = this.loadShard();
+		this.assertContents(loaded);
+		assertFalse(loaded.isDirty());
+		assertFalse(loaded.needsCompaction());
+	}
+
+	@Test
+	public void mergesRemovalsOfWholeBigrams() throws IOException, FollowingWordRemovalException {
+		DatabaseShard shard = this.newShard();
+		this.add(shard, FIRST, "gone", 2);
+		this.add(shard, SECOND, "stays", 1);
+		shard.save(SaveType.SERIALIZE, true);
+		this.remove(shard, FIRST, "gone");
+		this.remove(shard, FIRST, "gone");
+		shard.save(SaveType.SERIALIZE, false);
+
+		DatabaseShard loaded = this.loadShard();
+		assertFalse(loaded.contains(FIRST, "gone"));
+		this.assertContents(loaded);
+	}
+
+	@Test
+	public void compactionReplacesRuns() throws IOException, FollowingWordRemovalException {
+		DatabaseShard shard = this.newShard();
+		this.writeRuns(shard, ShardRuns.MAX_RUNS);
+		assertTrue(this.loadShard().needsCompaction());
+
+		this.add(shard, SECOND, "last", 1);
+		assertTrue(shard.save(SaveType.SERIALIZE, true));
+		assertEquals(0, this.runFiles(shard).size());
+		assertFalse(Files.exists(this.marker(shard)));
+		assertFalse(Files.exists(this.compacting(shard)));
+
+		DatabaseShard loaded = this.loadShard();
+		this.assertContents(loaded);
+		assertFalse(loaded.needsCompaction());
+	}
+
+	@Test
+	public void recoversFromCrashBeforeMarker() throws IOException, FollowingWordRemovalException {
+		DatabaseShard shard = this.crashedCompaction();
+		Files.write(this.compacting(shard), this.compactedFile);
+		Files.write(shard.path, this.oldFile);
+
+		this.assertRecovered(ShardRuns.MAX_RUNS);
+	}
+
+	@Test
+	public void recoversFromCrashAfterMarker() throws IOException, FollowingWordRemovalException {
+		DatabaseShard shard = this.crashedCompaction();
+		Files.write(this.compacting(shard), this.compactedFile);
+		Files.write(shard.path, this.oldFile);
+		Files.createFile(this.marker(shard));
+
+		this.assertRecovered(ShardRuns.MAX_RUNS);
+	}
+
+	@Test
+	public void recoversFromCrashAfterMove() throws IOException, FollowingWordRemovalException {
+		DatabaseShard shard = this.crashedCompaction();
+		Files.createFile(this.marker(shard));
+
+		this.assertRecovered(0);
+	}
+
+	@Test
+	public void recoversFromCrashDeletingRuns() throws IOException, FollowingWordRemovalException {
+		DatabaseShard shard = this.crashedCompaction();
+		Files.createFile(this.marker(shard));
+		List<Path> runs = this.runFiles(shard);
+		for(Path run : runs.subList(0, runs.size() / 2)) {
+			Files.delete(run);
+		}
+
+		this.assertRecovered(0);
+	}
+
+	@Test
+	public void outOfCacheLoadDoesNotCleanUp() throws IOException, FollowingWordRemovalException {
+		DatabaseShard shard = this.crashedCompaction();
+		Files.createFile(this.marker(shard));
+
+		//moved in already, so the runs left over aren't applied twice
+		DatabaseShard read = this.newShard();
+		read.load(SaveType.SERIALIZE, false);
+		this.assertContents(read);
+		assertTrue(Files.exists(this.marker(shard)));
+		assertEquals(ShardRuns.MAX_RUNS, this.runFiles(shard).size());
+
+		//not moved in yet, so the runs still count and the new file is ignored
+		Files.delete(this.marker(shard));
+		Files.write(shard.path, this.oldFile);
+		Files.write(this.compacting(shard), this.compactedFile);
+		Files.createFile(this.marker(shard));
+		read = this.newShard();
+		read.load(SaveType.SERIALIZE, false);
+		this.assertContents(read);
+		assertTrue(Files.exists(this.marker(shard)));
+		assertTrue(Files.exists(this.compacting(shard)));
+		assertEquals(ShardRuns.MAX_RUNS, this.runFiles(shard).size());
+	}
+
+	@Test
+	public void compactsResidentShardsOnSave() throws IOException {
+		//no maximum size, so nothing is ever evicted, and the start shard never is anyway
+		ShardCache cache = new ShardCache(ID, -1, this.parentPath, SaveType.SERIALIZE, null, -1,
+				FollowingWordSetPolicy.DEFAULT, null, true);
+		cache.load();
+		Bigram start = new Bigram(MarkovDatabaseImpl.START_TOKEN, "ab");
+		for(int i=0; i < 5 * ShardRuns.MAX_RUNS; i++) {
+			cache.addFollowingWord(KEY, FIRST, "word" + i);
+			cache.addFollowingWord(MarkovDatabaseImpl.START_KEY, start, "word" + i);
+			assertTrue(cache.save());
+			//MAX_RUNS runs and the next save compacts them
+			int runs = (i + 1) % (ShardRuns.MAX_RUNS + 1);
+			assertEquals(runs, this.runFiles(cache.get(KEY)).size());
+			assertEquals(runs, this.runFiles(cache.getStartShard()).size());
+		}
+
+		for(int i=0; i < 5 * ShardRuns.MAX_RUNS; i++) {
+			this.expected.computeIfAbsent(FIRST, bigram -> new TObjectIntHashMap<>()).put("word" + i, 1);
+		}
+		this.assertContents(this.loadShard());
+		StartDatabaseShard loaded = new StartDatabaseShard(ID, MarkovDatabaseImpl.START_KEY, this.parentPath,
+				FollowingWordSetPolicy.DEFAULT);
+		loaded.setLogStructured(true);
+		loaded.load(SaveType.SERIALIZE);
+		assertEquals(5 * ShardRuns.MAX_RUNS, loaded.getTotalCount());
+	}
+
+	/*
+	 * writes MAX_RUNS runs and compacts them, then puts the runs back. the shard file
+	 * is the compacted one, ie as it'd be right after the move
+	 */
+	private DatabaseShard crashedCompaction() throws IOException, FollowingWordRemovalException {
+		DatabaseShard shard = this.newShard();
+		this.writeRuns(shard, ShardRuns.MAX_RUNS);
+		this.oldFile = Files.readAllBytes(shard.path);
+		Map<Path, byte[]> runs = new HashMap<>();
+		for(Path run : this.runFiles(shard)) {
+			runs.put(run, Files.readAllBytes(run));
+		}
+
+		DatabaseShard compacting = this.loadShard();
+		assertTrue(compacting.save(SaveType.SERIALIZE, true));
+		assertEquals(0, this.runFiles(shard).size());
+		this.compactedFile = Files.readAllBytes(shard.path);
+
+		for(Map.Entry<Path, byte[]> run : runs.entrySet()) {
+			Files.write(run.getKey(), run.getValue());
+		}
+		return shard;
+	}
+
+	/*
+	 * loads the shard the way the cache does and checks it has everything once, with
+	 * nothing but the given number of runs left next to it
+	 */
+	private void assertRecovered(int runsLeft) throws IOException {
+		DatabaseShard loaded = this.loadShard();
+		this.assertContents(loaded);
+		assertFalse(Files.exists(this.marker(loaded)));
+		assertFalse(Files.exists(this.compacting(loaded)));
+		assertEquals(runsLeft, this.runFiles(loaded).size());
+
+		//and it carries on from there
+		this.add(loaded, SECOND, "after", 1);
+		assertTrue(loaded.save(SaveType.SERIALIZE, true));
+		this.assertContents(this.loadShard());
+	}
+
+	/*
+	 * saves the shard once, then writes the given number of runs, each adding and
+	 * removing words
+	 */
+	private void writeRuns(DatabaseShard shard, int runs) throws IOException, FollowingWordRemovalException {
+		this.add(shard, FIRST, "base", 4);
+		this.add(shard, SECOND, "base", 1);
+		assertTrue(shard.save(SaveType.SERIALIZE, true));
+		for(int i=0; i < runs; i++) {
+			this.add(shard, FIRST, "word" + i, i + 1);
+			this.add(shard, SECOND, "base", 1);
+			if(i % 2 == 0) this.remove(shard, FIRST, "base");
+			if(i > 0) this.remove(shard, FIRST, "word" + (i - 1));
+			assertTrue(shard.save(SaveType.SERIALIZE, false));
+		}
+		assertEquals(runs, this.runFiles(shard).size());
+	}
+
+	private DatabaseShard newShard() {
+		DatabaseShard shard = new DatabaseShard(ID, KEY, this.parentPath, FollowingWordSetPolicy.DEFAULT);
+		shard.setLogStructured(true);
+		return shard;
+	}
+
+	private DatabaseShard loadShard() throws IOException {
+		DatabaseShard shard = this.newShard();
+		shard.load(SaveType.SERIALIZE);
+		return shard;
+	}
+
+	private void add(DatabaseShard shard, Bigram bigram, String word, int count) {
+		for(int i=0; i < count; i++) {
+			shard.addFollowingWord(bigram, word);
+		}
+		TObjectIntMap<String> words = this.expected.get(bigram);
+		if(words == null) {
+			words = new TObjectIntHashMap<>();
+			this.expected.put(bigram, words);
+		}
+		words.adjustOrPutValue(word, count, count);
+	}
+
+	private void remove(DatabaseShard shard, Bigram bigram, String word) throws FollowingWordRemovalException {
+		shard.removeFollowingWord(bigram, word);
+		this.expected.get(bigram).adjustValue(word, -1);
+	}
+
+	private void assertContents(DatabaseShard shard) {
+		for(Map.Entry<Bigram, TObjectIntMap<String>> bigram : this.expected.entrySet()) {
+			for(TObjectIntIterator<String> iterator = bigram.getValue().iterator(); iterator.hasNext();) {
+				iterator.advance();
+				String message = bigram.getKey() + " -> " + iterator.key() + " x" + iterator.value();
+				if(iterator.value() > 0) {
+					assertTrue(message, shard.contains(bigram.getKey(), iterator.key(), iterator.value()));
+				}
+				assertFalse(message, shard.contains(bigram.getKey(), iterator.key(), iterator.value() + 1));
+			}
+		}
+	}
+
+	private List<Path> runFiles(DatabaseShard shard) throws IOException {
+		List<Path> runs = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(shard.path.getParent(), shard.key + ".*.run")) {
+			for(Path path : stream) {
+				runs.add(path);
+			}
+		}
+		Collections.sort(runs);
+		return runs;
+	}
+
+	private Path marker(DatabaseShard shard) {
+		return shard.path.resolveSibling(KEY + ".compacted");
+	}
+
+	private Path compacting(DatabaseShard shard) {
+		return shard.path.resolveSibling(shard.path.getFileName() + ".compacting");
+	}
+
+}
@@ -0,0 +1,94 @@
+package my.cute.markov2.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import my.cute.markov2.exceptions.FollowingWordRemovalException;
+
+/*
+ * the start shard's sets, its StartWordIndex and totalCount staying in step when
+ * many threads write to it at once
+ */
+public class StartDatabaseShardTest {
+
+	private static final int THREADS = 8;
+	private static final int LINES_PER_THREAD = 20000;
+	private static final String[] START_WORDS = {"a", "b", "c", "d"};
+	private static final String[] FOLLOWING_WORDS = {"x", "y", "z"};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void concurrentWritesAreNeverLost() throws Exception {
+		StartDatabaseShard shard = new StartDatabaseShard("startshardtest", MarkovDatabaseImpl.START_KEY,
+				this.folder.getRoot().toString(), FollowingWordSetPolicy.DEFAULT);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> futures = new ArrayList<>();
+		try {
+			for(int t=0; t < THREADS; t++) {
+				int thread = t;
+				futures.add(executor.submit(() ->
+				{
+					start.await();
+					for(int i=0; i < LINES_PER_THREAD; i++) {
+						Bigram bigram = new Bigram(MarkovDatabaseImpl.START_TOKEN, START_WORDS[(i + thread) % START_WORDS.length]);
+						shard.addFollowingWord(bigram, FOLLOWING_WORDS[i % FOLLOWING_WORDS.length]);
+						//some removals too, so tiny sets shrink as well as grow
+						if(i % 10 == 9) shard.removeFollowingWord(bigram, FOLLOWING_WORDS[i % FOLLOWING_WORDS.length]);
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			for(Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		long lines = (long) THREADS * LINES_PER_THREAD * 9 / 10;
+		assertEquals(lines, shard.getTotalCount());
+		assertEquals(lines, shard.getStartWordIndex().getTotal());
+		TopWords top = shard.getStartWordIndex().top(START_WORDS.length);
+		assertEquals(START_WORDS.length, top.size());
+		long inSets = 0;
+		for(int i=0; i < top.size(); i++) {
+			int size = shard.database.get(new Bigram(MarkovDatabaseImpl.START_TOKEN, top.getWord(i))).size();
+			assertEquals(top.getWord(i), size, top.getCount(i));
+			inSets += size;
+		}
+		assertEquals(lines, inSets);
+	}
+
+	@Test
+	public void failedRemovalPutsIndexBack() {
+		StartDatabaseShard shard = new StartDatabaseShard("startshardtest", MarkovDatabaseImpl.START_KEY,
+				this.folder.getRoot().toString(), FollowingWordSetPolicy.DEFAULT);
+		Bigram bigram = new Bigram(MarkovDatabaseImpl.START_TOKEN, "a");
+		shard.addFollowingWord(bigram, "x");
+		try {
+			shard.removeFollowingWord(bigram, "y");
+			fail("removed a word that isn't there");
+		} catch (FollowingWordRemovalException expected) {
+			//the point of the test
+		}
+		assertEquals(1, shard.getTotalCount());
+		assertEquals(1, shard.getStartWordIndex().getTotal());
+		assertTrue(shard.contains(bigram, "x"));
+	}
+}
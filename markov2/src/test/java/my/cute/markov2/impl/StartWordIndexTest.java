@@ -0,0 +1,93 @@
+package my.cute.markov2.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+/*
+ * StartWordIndex against a reference map under random changes: exact sampling
+ * frequencies (every possible draw once), growing past the initial capacity,
+ * slots reused after words drop out, and top() kept in step
+ */
+public class StartWordIndexTest {
+
+	private static final int WORDS = 100;
+
+	@Test
+	public void matchesReferenceUnderRandomChanges() {
+		Random random = new Random(17);
+		StartWordIndex index = new StartWordIndex();
+		TObjectIntMap<String> expected = new TObjectIntHashMap<>();
+		int largestSize = 0;
+		for(int step=0; step < 20000; step++) {
+			String word = "w" + random.nextInt(WORDS);
+			//mostly single lines, with the odd bulk change like a load does
+			int delta = random.nextInt(50) == 0 ? random.nextInt(9) - 4 : (random.nextInt(5) < 3 ? 1 : -1);
+			index.adjust(word, delta);
+			int count = Math.max(0, expected.get(word) + delta);
+			if(count > 0) {
+				expected.put(word, count);
+			} else {
+				expected.remove(word);
+			}
+			largestSize = Math.max(largestSize, expected.size());
+			//top() is kept up to date from here on
+			if(step == 100) index.top(5);
+			if(step % 500 == 0) {
+				this.assertMatches(expected, index);
+			}
+		}
+		this.assertMatches(expected, index);
+		//freed slots were reused rather than the arrays growing past what was needed
+		assertTrue(index.capacity() < 2 * Math.max(16, largestSize));
+	}
+
+	@Test
+	public void clearEmptiesIndex() {
+		StartWordIndex index = new StartWordIndex();
+		for(int i=0; i < 40; i++) {
+			index.adjust("w" + i, i + 1);
+		}
+		index.top(3);
+		index.clear();
+		assertEquals(0, index.getTotal());
+		assertEquals(0, index.size());
+		assertNull(index.sample(bound -> 0));
+		assertTrue(index.top(3).isEmpty());
+	}
+
+	private void assertMatches(TObjectIntMap<String> expected, StartWordIndex index) {
+		int sum = 0;
+		for(int count : expected.values()) {
+			sum += count;
+		}
+		int total = sum;
+		assertEquals(total, index.getTotal());
+		assertEquals(expected.size(), index.size());
+
+		TObjectIntMap<String> sampled = new TObjectIntHashMap<>();
+		for(int target=0; target < total; target++) {
+			int draw = target;
+			sampled.adjustOrPutValue(index.sample(bound ->
+			{
+				assertEquals(total, bound);
+				return draw;
+			}), 1, 1);
+		}
+		assertEquals(expected, sampled);
+
+		TopWords top = index.top(expected.size());
+		assertEquals(expected.size(), top.size());
+		for(int i=0; i < top.size(); i++) {
+			assertEquals(expected.get(top.getWord(i)), top.getCount(i));
+			if(i > 0) assertTrue(top.getCount(i) <= top.getCount(i - 1));
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package my.cute.markov2.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import my.cute.markov2.RandomSource;
+
+/*
+ * WeightedIndex sampling, checked exactly: sampling once with every possible random
+ * number has to pick each word exactly weight times. also covers the index kept up
+ * to date by LargeFollowingWordSet
+ */
+public class WeightedIndexTest {
+
+	private static final String[] WORDS = {"a", "b", "c", "d", "e", "f", "g", "h", "i", "j",
+			"k", "l", "m", "n", "o", "p", "q", "r", "s", "t"};
+
+	@Test
+	public void emptyIndexSamplesNothing() {
+		WeightedIndex index = new WeightedIndex();
+		assertNull(index.sample(bound -> 0));
+		index.adjust("a", 2);
+		index.adjust("a", -2);
+		assertNull(index.sample(bound -> 0));
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void samplesEachWordByWeight() {
+		WeightedIndex index = new WeightedIndex();
+		TObjectIntMap<String> expected = new TObjectIntHashMap<>();
+		for(int i=0; i < 5; i++) {
+			index.adjust(WORDS[i], i + 1);
+			expected.put(WORDS[i], i + 1);
+		}
+		assertFrequencies(expected, index);
+	}
+
+	@Test
+	public void clampsAtZero() {
+		WeightedIndex index = new WeightedIndex();
+		index.adjust("a", 3);
+		index.adjust("b", 1);
+		assertEquals(-3, index.adjust("a", -10));
+		assertEquals(0, index.adjust("c", -1));
+		assertEquals(0, index.getWeight("a"));
+		assertEquals(1, index.getTotal());
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	public void reusesFreedSlots() {
+		WeightedIndex index = new WeightedIndex();
+		for(int i=0; i < 16; i++) {
+			index.adjust(WORDS[i], 1);
+		}
+		for(int i=0; i < 8; i++) {
+			index.adjust(WORDS[i], -1);
+		}
+		for(int i=16; i < WORDS.length; i++) {
+			index.adjust(WORDS[i], 2);
+		}
+		assertEquals(16, index.capacity());
+
+		TObjectIntMap<String> expected = new TObjectIntHashMap<>();
+		for(int i=8; i < 16; i++) {
+			expected.put(WORDS[i], 1);
+		}
+		for(int i=16; i < WORDS.length; i++) {
+			expected.put(WORDS[i], 2);
+		}
+		assertFrequencies(expected, index);
+	}
+
+	@Test
+	public void matchesReferenceUnderRandomChanges() {
+		Random random = new Random(9);
+		WeightedIndex index = new WeightedIndex();
+		TObjectIntMap<String> expected = new TObjectIntHashMap<>();
+		for(int step=0; step < 2000; step++) {
+			String word = WORDS[random.nextInt(WORDS.length)];
+			int delta = random.nextInt(7) - 3;
+			int before = expected.get(word);
+			int applied = index.adjust(word, delta);
+			assertEquals(Math.max(delta, -before), applied);
+			if(before + applied > 0) {
+				expected.put(word, before + applied);
+			} else {
+				expected.remove(word);
+			}
+			if(step % 50 == 0) {
+				assertFrequencies(expected, index);
+			}
+		}
+		assertFrequencies(expected, index);
+	}
+
+	@Test
+	public void largeSetKeepsSamplerUpToDate() throws Exception {
+		SmallFollowingWordSet small = new SmallFollowingWordSet(WORDS[0], new Bigram("x", "y"), "weightedindextest");
+		for(int i=1; i < 8; i++) {
+			small.addWord(WORDS[i % 4]);
+		}
+		LargeFollowingWordSet set = new LargeFollowingWordSet(small);
+		TObjectIntMap<String> expected = new TObjectIntHashMap<>();
+		for(int i=0; i < 4; i++) {
+			expected.put(WORDS[i], 2);
+		}
+		//builds the index
+		assertSetFrequencies(expected, set);
+		WeightedIndex sampler = set.getSampler();
+
+		set.addWord("e");
+		set.addWord("a");
+		set.remove("b");
+		set.remove("c");
+		set.remove("c");
+		expected.put("e", 1);
+		expected.put("a", 3);
+		expected.put("b", 1);
+		expected.remove("c");
+		assertSetFrequencies(expected, set);
+		//updated in place rather than thrown away
+		assertEquals(sampler, set.getSampler());
+		assertEquals(expected.size(), sampler.size());
+	}
+
+	/*
+	 * samples once with each possible random number and checks every word came up
+	 * exactly as many times as its weight
+	 */
+	private static void assertFrequencies(TObjectIntMap<String> expected, WeightedIndex index) {
+		long total = 0;
+		for(int weight : expected.values()) {
+			total += weight;
+		}
+		assertEquals(total, index.getTotal());
+		assertEquals(expected.size(), index.size());
+		assertEquals(expected, frequencies((int) total, index::sample));
+	}
+
+	private static void assertSetFrequencies(TObjectIntMap<String> expected, LargeFollowingWordSet set) {
+		int total = 0;
+		for(int weight : expected.values()) {
+			total += weight;
+		}
+		assertEquals(total, set.size());
+		assertEquals(expected, frequencies(total, set::getRandomWeightedWord));
+	}
+
+	private static TObjectIntMap<String> frequencies(int total, Sampler sampler) {
+		Map<String, Integer> counts = new HashMap<>();
+		for(int target=0; target < total; target++) {
+			int draw = target;
+			String word = sampler.sample(bound ->
+			{
+				assertEquals(total, bound);
+				return draw;
+			});
+			counts.merge(word, 1, Integer::sum);
+		}
+		TObjectIntMap<String> result = new TObjectIntHashMap<>();
+		counts.forEach(result::put);
+		return result;
+	}
+
+	@FunctionalInterface
+	private interface Sampler {
+		String sample(RandomSource random);
+	}
+}
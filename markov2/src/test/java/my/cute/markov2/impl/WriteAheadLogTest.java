@@ -0,0 +1,358 @@
+package my.cute.markov2.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import my.cute.markov2.MarkovDatabase;
+import my.cute.markov2.exceptions.FollowingWordRemovalException;
+
+/*
+ * write-ahead log (see WriteAheadLog): replay, checkpoints, the watermark, a cut off
+ * last record, and the AppliedRecords trailer that keeps replay from applying a record
+ * twice to a shard that was saved after it
+ */
+public class WriteAheadLogTest {
+
+	private static final String ID = "waltest";
+	private static final String[] FIRST_LINE = { "hello", "there", MarkovDatabaseImpl.END_TOKEN };
+	private static final String[] SECOND_LINE = { "general", "kenobi", MarkovDatabaseImpl.END_TOKEN };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path file;
+
+	@Before
+	public void setUp() {
+		this.file = this.folder.getRoot().toPath().resolve("~wal");
+	}
+
+	@Test
+	public void replaysRecordsInOrder() throws IOException {
+		WriteAheadLog log = this.openLog();
+		long first = this.append(log, WriteAheadLog.PROCESS, FIRST_LINE, SECOND_LINE);
+		long second = this.append(log, WriteAheadLog.REMOVE, FIRST_LINE);
+		assertTrue(second > first);
+		//crash: never checkpointed
+		log.close();
+
+		List<Replayed> replayed = new ArrayList<>();
+		WriteAheadLog reopened = this.newLog();
+		assertEquals(2, reopened.open((seq, type, lines) -> replayed.add(new Replayed(seq, type, lines))));
+		assertEquals(2, replayed.size());
+		assertEquals(first, replayed.get(0).seq);
+		assertEquals(WriteAheadLog.PROCESS, replayed.get(0).type);
+		assertEquals(2, replayed.get(0).lines.size());
+		assertArrayEquals(FIRST_LINE, replayed.get(0).lines.get(0));
+		assertArrayEquals(SECOND_LINE, replayed.get(0).lines.get(1));
+		assertEquals(second, replayed.get(1).seq);
+		assertEquals(WriteAheadLog.REMOVE, replayed.get(1).type);
+		assertArrayEquals(FIRST_LINE, replayed.get(1).lines.get(0));
+
+		//sequence numbers carry on from the replayed records, since shard files remember them
+		assertTrue(this.append(reopened, WriteAheadLog.PROCESS, FIRST_LINE) > second);
+		reopened.close();
+	}
+
+	@Test
+	public void checkpointEmptiesLog() throws IOException {
+		WriteAheadLog log = this.openLog();
+		long first = this.append(log, WriteAheadLog.PROCESS, FIRST_LINE);
+		assertFalse(log.checkpoint(() -> false));
+		log.close();
+		assertEquals(1, this.replayCount());
+
+		log = this.newLog();
+		log.open((seq, type, lines) -> {});
+		assertTrue(log.checkpoint(() -> true));
+		long after = this.append(log, WriteAheadLog.PROCESS, SECOND_LINE);
+		assertTrue(after > first);
+		log.close();
+
+		List<Long> replayed = new ArrayList<>();
+		log = this.newLog();
+		log.open((seq, type, lines) -> replayed.add(seq));
+		assertEquals(Collections.singletonList(after), replayed);
+		log.close();
+	}
+
+	@Test
+	public void watermarkStopsAtOldestUnfinishedRecord() throws IOException {
+		WriteAheadLog log = this.openLog();
+		long first = log.begin(WriteAheadLog.PROCESS, Collections.singletonList(FIRST_LINE));
+		long second = log.begin(WriteAheadLog.PROCESS, Collections.singletonList(SECOND_LINE));
+		assertEquals(first - 1, log.getWatermark());
+		log.end(second);
+		assertEquals(first - 1, log.getWatermark());
+		log.end(first);
+		assertEquals(second, log.getWatermark());
+		log.close();
+	}
+
+	@Test
+	public void ignoresCutOffLastRecord() throws IOException {
+		WriteAheadLog log = this.openLog();
+		this.append(log, WriteAheadLog.PROCESS, FIRST_LINE);
+		this.append(log, WriteAheadLog.PROCESS, SECOND_LINE);
+		log.close();
+
+		try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 3);
+		}
+		assertEquals(1, this.replayCount());
+	}
+
+	@Test
+	public void ignoresPartialRecordHeader() throws IOException {
+		WriteAheadLog log = this.openLog();
+		this.append(log, WriteAheadLog.PROCESS, FIRST_LINE);
+		log.close();
+
+		//a length and part of a crc, then nothing
+		Files.write(this.file, new byte[] { 0, 0, 0, 40, 1, 2, 3 }, StandardOpenOption.APPEND);
+		assertEquals(1, this.replayCount());
+	}
+
+	@Test
+	public void ignoresLengthPastEndOfFile() throws IOException {
+		WriteAheadLog log = this.openLog();
+		this.append(log, WriteAheadLog.PROCESS, FIRST_LINE);
+		log.close();
+
+		//garbage length, which would be a 2gb allocation if it were believed
+		Files.write(this.file, new byte[] { 0x7f, -1, -1, -1, 1, 2, 3, 4, 5, 6, 7, 8 }, StandardOpenOption.APPEND);
+		assertEquals(1, this.replayCount());
+	}
+
+	@Test
+	public void ignoresRecordFailingChecksum() throws IOException {
+		WriteAheadLog log = this.openLog();
+		this.append(log, WriteAheadLog.PROCESS, FIRST_LINE);
+		this.append(log, WriteAheadLog.PROCESS, SECOND_LINE);
+		log.close();
+
+		try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer last = ByteBuffer.allocate(1);
+			channel.read(last, channel.size() - 1);
+			last.put(0, (byte) (last.get(0) ^ 0xff)).rewind();
+			channel.write(last, channel.size() - 1);
+		}
+		assertEquals(1, this.replayCount());
+	}
+
+	@Test
+	public void appliedRecordsRoundTrip() throws IOException {
+		AppliedRecords applied = new AppliedRecords();
+		assertTrue(applied.isEmpty());
+		applied.applied(10, 3, 5);
+		applied.applied(11, 1, 5);
+		applied.applied(11, 1, 5);
+		assertTrue(applied.has(10, 2));
+		assertFalse(applied.has(10, 3));
+		assertTrue(applied.has(11, 1));
+		assertFalse(applied.has(12, 0));
+
+		//after some shard data, as in a shard file
+		Path shardFile = this.folder.newFile("shard.database").toPath();
+		try (OutputStream out = Files.newOutputStream(shardFile)) {
+			out.write(new byte[] { 1, 2, 3, 4, 5 });
+			applied.write(out, 10);
+		}
+		AppliedRecords read = new AppliedRecords();
+		read.read(shardFile);
+		assertFalse(read.isEmpty());
+		//everything up to the watermark is in
+		assertTrue(read.has(10, 100));
+		assertTrue(read.has(11, 1));
+		assertFalse(read.has(11, 2));
+		assertFalse(read.has(12, 0));
+	}
+
+	@Test
+	public void appliedRecordsFoldsFinishedRecordsIntoWatermark() {
+		AppliedRecords applied = new AppliedRecords();
+		for(long seq=1; seq <= 16; seq++) {
+			applied.applied(seq, 1, 8);
+		}
+		assertTrue(applied.has(8, 5));
+		assertTrue(applied.has(9, 0));
+		assertFalse(applied.has(9, 1));
+		//already folded in, so this is a no-op
+		applied.applied(3, 1, 8);
+		assertTrue(applied.has(3, 100));
+	}
+
+	@Test
+	public void fileWithoutTrailerHasNothing() throws IOException {
+		Path shardFile = this.folder.newFile("old.database").toPath();
+		Files.write(shardFile, new byte[64]);
+		AppliedRecords read = new AppliedRecords();
+		read.read(shardFile);
+		assertTrue(read.isEmpty());
+		assertFalse(read.has(0, 0));
+	}
+
+	@Test
+	public void recoversDatabaseAfterCrash() throws IOException, FollowingWordRemovalException {
+		this.assertRecovers(false);
+	}
+
+	@Test
+	public void recoversLogStructuredDatabaseAfterCrash() throws IOException, FollowingWordRemovalException {
+		this.assertRecovers(true);
+	}
+
+	/*
+	 * runs the same changes on a database with a log, which is then abandoned without
+	 * saving, and on one without that's saved. with a small cache, shards are evicted
+	 * (saved with their AppliedRecords) all the way through, some partway through a
+	 * record. once the crashed database is loaded again its shards have to match
+	 */
+	private void assertRecovers(boolean logStructured) throws IOException, FollowingWordRemovalException {
+		String path = this.folder.getRoot().toString();
+		List<List<String>> lines = lines(400);
+
+		MarkovDatabase reference = new MarkovDatabaseBuilder("reference", path).build();
+		reference.load();
+		this.apply(reference, lines);
+		reference.save();
+		reference.close();
+
+		//evictions run on the calling thread, so nothing is still writing after the crash
+		MarkovDatabase crashed = new MarkovDatabaseBuilder(ID, path)
+				.shardCacheSize(4)
+				.executorService(MoreExecutors.newDirectExecutorService())
+				.writeAheadLog(true)
+				.logStructuredStorage(logStructured)
+				.build();
+		crashed.load();
+		this.apply(crashed, lines);
+		assertTrue(crashed.getMetrics().getShardSaveCount() > 0);
+
+		MarkovDatabase recovered = new MarkovDatabaseBuilder(ID, path)
+				.writeAheadLog(true)
+				.logStructuredStorage(logStructured)
+				.build();
+		recovered.load();
+		assertEquals(this.readShards(path, "reference"), this.readShards(path, ID));
+		recovered.close();
+	}
+
+	private void apply(MarkovDatabase database, List<List<String>> lines) throws IOException, FollowingWordRemovalException {
+		int third = lines.size() / 3;
+		for(List<String> line : lines.subList(0, third)) {
+			database.processLine(line);
+		}
+		database.processLines(lines.subList(third, 2 * third));
+		for(int i=0; i < third; i += 3) {
+			database.removeLine(lines.get(i));
+		}
+		for(List<String> line : lines.subList(2 * third, lines.size())) {
+			database.processLine(line);
+		}
+	}
+
+	/*
+	 * every bigram -> word -> count in the given database's shard files
+	 */
+	private Map<Bigram, TObjectIntMap<String>> readShards(String path, String id) throws IOException {
+		Path directory = Path.of(path, id, MarkovDatabaseImpl.DATABASE_DIRECTORY_NAME);
+		ShardLoader loader = new ShardLoader(id, directory.toString(), SaveType.SERIALIZE, FollowingWordSetPolicy.DEFAULT);
+		List<Path> files;
+		try (Stream<Path> stream = Files.walk(directory)) {
+			files = stream.filter(file -> file.toString().endsWith(".database")).collect(Collectors.toList());
+		}
+		Map<Bigram, TObjectIntMap<String>> shards = new HashMap<>();
+		for(Path file : files) {
+			for(Map.Entry<Bigram, FollowingWordSet> entry : loader.getShardFromFile(file).database.entrySet()) {
+				TObjectIntMap<String> counts = new TObjectIntHashMap<>();
+				for(String word : entry.getValue().getWords()) {
+					counts.adjustOrPutValue(word, 1, 1);
+				}
+				shards.put(entry.getKey(), counts);
+			}
+		}
+		return shards;
+	}
+
+	/*
+	 * random lines over a small vocabulary, so bigrams repeat and sets get big. words
+	 * start with different letters so they're spread over plenty of shards
+	 */
+	private static List<List<String>> lines(int count) {
+		SplittableRandom random = new SplittableRandom(22);
+		List<List<String>> lines = new ArrayList<>(count);
+		for(int i=0; i < count; i++) {
+			String[] words = new String[2 + random.nextInt(7)];
+			for(int j=0; j < words.length; j++) {
+				int letters = random.nextBoolean() ? 3 : 8;
+				words[j] = "" + (char) ('a' + random.nextInt(letters)) + (char) ('a' + random.nextInt(letters));
+			}
+			lines.add(Arrays.asList(words));
+		}
+		return lines;
+	}
+
+	private WriteAheadLog newLog() {
+		return new WriteAheadLog(ID, this.file, DatabaseMetrics.create(ID));
+	}
+
+	private WriteAheadLog openLog() throws IOException {
+		WriteAheadLog log = this.newLog();
+		assertEquals(0, log.open((seq, type, lines) -> {}));
+		return log;
+	}
+
+	private long append(WriteAheadLog log, byte type, String[]... lines) throws IOException {
+		long seq = log.begin(type, Arrays.asList(lines));
+		log.end(seq);
+		return seq;
+	}
+
+	private int replayCount() throws IOException {
+		WriteAheadLog log = this.newLog();
+		int replayed = log.open((seq, type, lines) -> {});
+		log.close();
+		return replayed;
+	}
+
+	private static final class Replayed {
+		private final long seq;
+		private final byte type;
+		private final List<String[]> lines;
+
+		Replayed(long seq, byte type, List<String[]> lines) {
+			this.seq = seq;
+			this.type = type;
+			this.lines = lines;
+		}
+	}
+}